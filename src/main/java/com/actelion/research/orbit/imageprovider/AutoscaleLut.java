@@ -0,0 +1,135 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.function.Supplier;
+
+/**
+ * 16bit -> 8bit autoscale lookup tables per (image, series, channel, analysis flag, scaling mode).
+ * <p>
+ * A table is compiled once from the channel min/max and reused for all tiles. Each table remembers the min/max
+ * it was built with and is rebuilt as soon as a different min/max is requested (e.g. changed minMaxAnalysis values).
+ * </p>
+ */
+public final class AutoscaleLut {
+
+    public static final int SIZE = 65536;
+    /**
+     * Scaling mode for tables which follow AWTImageTools.autoscale() (brightfield/grayscale images).
+     */
+    public static final int SCALING_AWT = -1;
+
+    // 64k per table -> 256 tables = 16MB max
+    private static final Cache<LutKey, AutoscaleLut> luts = CacheBuilder.
+            newBuilder().
+            maximumSize(256).
+            build();
+
+    private final int min;
+    private final int max;
+    private final byte[] table;
+
+    private AutoscaleLut(int min, int max, byte[] table) {
+        this.min = min;
+        this.max = max;
+        this.table = table;
+    }
+
+    /**
+     * Returns the table for a fluorescence channel (see FluoChannelMerger.autoscale()). Use (table[s] &amp; 0xFF) for 0 &lt;= s &lt; SIZE.
+     */
+    public static byte[] getFluoLut(String filename, int series, int channel, boolean analysis, final int scaling, final int min, final int max) {
+        return getLut(filename, series, channel, analysis, scaling, min, max, () -> {
+            byte[] table = new byte[SIZE];
+            for (int s = 0; s < SIZE; s++) {
+                table[s] = (byte) FluoChannelMerger.autoscale(s, scaling, min, max);
+            }
+            return table;
+        });
+    }
+
+    /**
+     * Returns the cached table for the key if it was built with the same min/max, otherwise builds (and caches) a new one.
+     */
+    public static byte[] getLut(String filename, int series, int channel, boolean analysis, int scaling, int min, int max, Supplier<byte[]> builder) {
+        final LutKey key = new LutKey(filename, series, channel, analysis, scaling);
+        AutoscaleLut lut = luts.getIfPresent(key);
+        if (lut == null || lut.min != min || lut.max != max) {
+            lut = new AutoscaleLut(min, max, builder.get());
+            luts.put(key, lut);
+        }
+        return lut.table;
+    }
+
+    /**
+     * Removes all tables of an image series, e.g. after its min/max values have been recomputed.
+     */
+    public static void invalidate(String filename, int series) {
+        luts.asMap().keySet().removeIf(key -> key.series == series && key.filename.equals(filename));
+    }
+
+    public static void invalidateAll() {
+        luts.invalidateAll();
+    }
+
+    private static final class LutKey {
+        final String filename;
+        final int series;
+        final int channel;
+        final boolean analysis;
+        final int scaling;
+
+        LutKey(String filename, int series, int channel, boolean analysis, int scaling) {
+            this.filename = filename;
+            this.series = series;
+            this.channel = channel;
+            this.analysis = analysis;
+            this.scaling = scaling;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            LutKey lutKey = (LutKey) o;
+
+            if (series != lutKey.series) return false;
+            if (channel != lutKey.channel) return false;
+            if (analysis != lutKey.analysis) return false;
+            if (scaling != lutKey.scaling) return false;
+            return filename.equals(lutKey.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = filename.hashCode();
+            result = 31 * result + series;
+            result = 31 * result + channel;
+            result = 31 * result + (analysis ? 1 : 0);
+            result = 31 * result + scaling;
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.actelion.research.orbit.utils.RawUtilsCommon;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.MinMaxCalculator;
+import omero.api.RawPixelsStorePrx;
+import omero.romio.PlaneDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Display windows (min/max intensity per channel) of 16bit images, computed from per channel histograms of the lowest resolution level.
+ * <p>
+ * The histograms are computed by the server (RawPixelsStore.getHistogram(), one bin per intensity over the global range of the channel,
+ * thus they are exact). If that is not available, they are streamed from the lowest level in strips.
+ * Optionally the windows are clipped at a percentile (clipPercent, e.g. 0.1 = 0.1% at both ends).
+ * </p>
+ * <p>
+ * Windows are computed asynchronously, at most once per image and series (concurrent requests share the future), without any global lock.
+ * Failed computations are not cached, the next request computes them again.
+ * Results are cached (at most MAX_CACHED_ENTRIES images) and persisted to a properties file (keyed by image, series and server, validated by image update time and clip percentage),
+ * thus opening the image again later does not need any server round trip.
+ * </p>
+ */
+public final class ChannelMinMax {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChannelMinMax.class);
+    public static final double CLIP_PERCENT_DEFAULT = 0d;
+    private static final int MAX_SERVER_HISTOGRAM_BINS = 65536;
+    private static final int STREAM_ROWS = 256;
+    private static final int MAX_PERSISTENT_ENTRIES = 10000;
+    private static final int MAX_CACHED_ENTRIES = 1000;
+    private static final String COMMENT = "Orbit Omero channel min/max (imageId.series@host:port = updateTime/clipPercent;min;max)";
+
+    private static volatile double clipPercent = CLIP_PERCENT_DEFAULT;
+    private static volatile File persistentFile = new File(System.getProperty("user.home"), "OrbitOmeroMinMax.properties");
+    private static final Cache<String, CompletableFuture<MinMaxPerChan>> windows = CacheBuilder.
+            newBuilder().
+            maximumSize(MAX_CACHED_ENTRIES).
+            build();
+    private static final Object persistentLock = new Object();
+    private static Properties persistent;   // guarded by persistentLock, loaded on first use
+    private static final ExecutorService executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicLong threadCount = new AtomicLong(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "omero-minmax-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates a reader of the lowest resolution level (with id and series set), only used if the server cannot compute histograms.
+     */
+    public interface LowestLevelReaderFactory {
+        IFormatReader create() throws Exception;
+    }
+
+    private ChannelMinMax() {
+    }
+
+    /**
+     * Returns the (possibly running) computation of the windows of an image. The future never completes exceptionally,
+     * it completes with null if the windows cannot be computed (e.g. a network error). In that case the entry is dropped,
+     * thus the next request computes the windows again; callers use fullRange() meanwhile.
+     *
+     * @param pixelType pixel type of the image (FormatTools)
+     */
+    public static CompletableFuture<MinMaxPerChan> request(final ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long groupId, final ImageDescriptor desc,
+                                                           final int series, final int sizeC, final int pixelType, final LowestLevelReaderFactory readerFactory) {
+        final String key = desc.getImageId() + "." + series + "@" + gatewayAndCtx.getServer();   // image ids are only unique per server
+        final List<CompletableFuture<MinMaxPerChan>> created = new ArrayList<>(1);
+        final CompletableFuture<MinMaxPerChan> future;
+        try {
+            future = windows.get(key, () -> {
+                final CompletableFuture<MinMaxPerChan> f = new CompletableFuture<>();
+                created.add(f);
+                return f;
+            });
+        } catch (ExecutionException e) {
+            logger.warn("cannot request channel min/max of image " + key, e);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!created.isEmpty() && created.get(0) == future) {   // started after the future is in the cache, thus a failure can always drop it
+            executor.execute(() -> {
+                MinMaxPerChan minMax = null;
+                try {
+                    minMax = compute(key, gatewayAndCtx, groupId, desc, sizeC, pixelType, readerFactory);
+                } finally {
+                    if (minMax == null) windows.asMap().remove(key, future);   // not cached, computed again with the next request
+                    future.complete(minMax);
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Removes the cached windows of an image (all series and servers), e.g. after the image has been changed.
+     */
+    public static void invalidate(long imageId) {
+        final String prefix = imageId + ".";
+        windows.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    private static MinMaxPerChan compute(String key, ImageProviderOmero.GatewayAndCtx gatewayAndCtx, long groupId, ImageDescriptor desc, int sizeC, int pixelType, LowestLevelReaderFactory readerFactory) {
+        final double clip = clipPercent;
+        final String stamp = desc.getUpdateTime() + "/" + clip;
+        MinMaxPerChan minMax = loadPersistent(key, stamp, sizeC);
+        if (minMax != null) {
+            logger.debug("channel min/max of " + key + " loaded from " + persistentFile);
+            return minMax;
+        }
+        long startt = System.currentTimeMillis();
+        try {
+            Histogram[] histograms = null;
+            try {
+                histograms = serverHistograms(gatewayAndCtx, groupId, desc, sizeC, pixelType);
+            } catch (Exception e) {
+                logger.debug("server histogram not available for " + key + ", streaming lowest level", e);
+            }
+            if (histograms == null) {
+                histograms = streamedHistograms(readerFactory, sizeC, pixelType);
+            }
+            minMax = histograms != null ? getWindows(histograms, clip) : exactMinMax(readerFactory, sizeC);
+            logger.debug("channel min/max of " + key + " computed in " + (System.currentTimeMillis() - startt) + "ms: min " + Arrays.toString(minMax.getMin()) + " max " + Arrays.toString(minMax.getMax()));
+            storePersistent(key, stamp, minMax);
+            return minMax;
+        } catch (Exception e) {
+            logger.warn("cannot compute channel min/max of image " + key + ", using full range until the next request", e);
+            return null;
+        }
+    }
+
+    /**
+     * Window of the full 16bit range for all channels.
+     */
+    public static MinMaxPerChan fullRange(int sizeC) {
+        int[] max = new int[sizeC];
+        Arrays.fill(max, RawUtilsCommon.MAX_INTENS_16BIT);
+        return new MinMaxPerChan(new int[sizeC], max);
+    }
+
+    /**
+     * Histograms of the lowest level (plane z=0, t=0) computed by the server over the global range of each channel (see serverHistogramLayout()).
+     *
+     * @return null if the pixel type is not supported, the global range of a channel is not known or the server histogram does not cover
+     * all pixels of the plane (e.g. outdated statistics)
+     */
+    private static Histogram[] serverHistograms(ImageProviderOmero.GatewayAndCtx gatewayAndCtx, long groupId, ImageDescriptor desc, int sizeC, int pixelType) throws Exception {
+        if (pixelType == FormatTools.FLOAT || pixelType == FormatTools.DOUBLE) return null;
+        final List<ImageDescriptor.ChannelDescriptor> channels = desc.getChannels();
+        if (channels.size() < sizeC) return null;
+        Histogram[] histograms = new Histogram[sizeC];
+        for (int c = 0; c < sizeC; c++) {
+            histograms[c] = serverHistogramLayout(channels.get(c).getGlobalMin(), channels.get(c).getGlobalMax());
+            if (histograms[c] == null) return null;
+        }
+        final int lowestLevel = desc.getResolutionLevels() - 1;
+        final long planeSize = lowestLevel > 0 ? (long) desc.getSizeX(lowestLevel) * desc.getSizeY(lowestLevel) : (long) desc.getSizeX() * desc.getSizeY();
+        RawPixelsStorePrx store = gatewayAndCtx.getGateway().createPixelsStore(gatewayAndCtx.getCtx(groupId));
+        try {
+            store.setPixelsId(desc.getPixelsId(), false);
+            store.setResolutionLevel(0);   // lowest resolution (Omero numbering)
+            PlaneDef plane = new PlaneDef();
+            plane.slice = omero.romio.XY.value;
+            plane.z = 0;
+            plane.t = 0;
+            for (int c = 0; c < sizeC; c++) {   // one request per channel, the bin count depends on the global range
+                final long[] bins = histograms[c].counts;
+                int[] counts = store.getHistogram(new int[]{c}, bins.length, true, plane).get(c);
+                if (counts == null || counts.length != bins.length) return null;
+                long total = 0;
+                for (int i = 0; i < counts.length; i++) {
+                    bins[i] = counts[i];
+                    total += counts[i];
+                }
+                if (total != planeSize) {
+                    logger.debug("server histogram of channel " + c + " covers " + total + " of " + planeSize + " pixels");
+                    return null;
+                }
+            }
+            return histograms;
+        } finally {
+            try {
+                store.close();
+            } catch (Exception e) {
+                logger.trace("error closing pixels store", e);
+            }
+        }
+    }
+
+    /**
+     * Bin layout of RawPixelsStore.getHistogram() with globalRange=true: the server spans the bins over the global range of the channel
+     * (StatsInfo) and counts value v in bin (int) ((v - globalMin) / ((globalMax - globalMin + 1) / bins)). With one bin per intensity
+     * the histogram is exact, thus the windows equal the min/max of the plane (MinMaxCalculator) if nothing is clipped.
+     *
+     * @return null if the global range is not known, not integral or needs more than MAX_SERVER_HISTOGRAM_BINS bins
+     */
+    public static Histogram serverHistogramLayout(double globalMin, double globalMax) {
+        if (Double.isNaN(globalMin) || Double.isNaN(globalMax) || globalMax < globalMin) return null;
+        if (globalMin != Math.rint(globalMin) || globalMax != Math.rint(globalMax)) return null;
+        final double range = globalMax - globalMin + 1;
+        if (range > MAX_SERVER_HISTOGRAM_BINS) return null;
+        return new Histogram(globalMin, 1d, (int) range);
+    }
+
+    /**
+     * Exact histograms of the lowest level (plane of z=0, t=0), read in strips of STREAM_ROWS rows.
+     *
+     * @return null if the pixel type is not a 16bit type
+     */
+    private static Histogram[] streamedHistograms(LowestLevelReaderFactory readerFactory, int sizeC, int pixelType) throws Exception {
+        if (pixelType != FormatTools.UINT16 && pixelType != FormatTools.INT16) return null;
+        final boolean signed = pixelType == FormatTools.INT16;
+        final long lo = signed ? Short.MIN_VALUE : 0;
+        IFormatReader r = readerFactory.create();
+        try {
+            final int[] nos = r.getZCTCoords(0);
+            final boolean little = r.isLittleEndian();
+            final int sizeX = r.getSizeX();
+            final int sizeY = r.getSizeY();
+            Histogram[] histograms = new Histogram[sizeC];
+            for (int c = 0; c < sizeC && c < r.getSizeC(); c++) {
+                final Histogram histogram = new Histogram(lo, 1d, 65536);
+                final int no = r.getIndex(nos[0], c, nos[2]);
+                for (int y = 0; y < sizeY; y += STREAM_ROWS) {
+                    final int h = Math.min(STREAM_ROWS, sizeY - y);
+                    final byte[] strip = r.openBytes(no, 0, y, sizeX, h);
+                    for (int i = 0; i + 1 < strip.length; i += 2) {
+                        int v = little ? (strip[i] & 0xFF) | ((strip[i + 1] & 0xFF) << 8) : ((strip[i] & 0xFF) << 8) | (strip[i + 1] & 0xFF);
+                        if (signed) v = (short) v;
+                        histogram.counts[(int) (v - lo)]++;
+                    }
+                }
+                histograms[c] = histogram;
+            }
+            return histograms;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Exact min/max of the lowest level for other pixel types (no percentile clipping).
+     */
+    private static MinMaxPerChan exactMinMax(LowestLevelReaderFactory readerFactory, int sizeC) throws Exception {
+        MinMaxCalculator minMax = new MinMaxCalculator(readerFactory.create());
+        try {
+            int[] nos = minMax.getZCTCoords(0);
+            int[] min = new int[sizeC];
+            int[] max = new int[sizeC];
+            for (int c = 0; c < minMax.getSizeC() && c < sizeC; c++) {
+                minMax.openBytes(minMax.getIndex(nos[0], c, nos[2]));   // needed to make min,max available
+                min[c] = (int) minMax.getChannelKnownMinimum(c).doubleValue();
+                max[c] = (int) minMax.getChannelKnownMaximum(c).doubleValue();
+            }
+            return new MinMaxPerChan(min, max);
+        } finally {
+            minMax.close();
+        }
+    }
+
+    /**
+     * Windows covering all but clip percent of the pixels at both ends of each histogram.
+     */
+    public static MinMaxPerChan getWindows(Histogram[] histograms, double clip) {
+        int[] min = new int[histograms.length];
+        int[] max = new int[histograms.length];
+        for (int c = 0; c < histograms.length; c++) {
+            final Histogram histogram = histograms[c];
+            long total = 0;
+            for (long count : histogram.counts) total += count;
+            if (total == 0) {
+                min[c] = (int) histogram.lo;
+                max[c] = (int) Math.ceil(histogram.lo + histogram.counts.length * histogram.binWidth) - 1;
+                continue;
+            }
+            final long limit = (long) Math.floor(total * clip / 100d);
+            int minBin = 0;
+            long sum = 0;
+            for (int i = 0; i < histogram.counts.length; i++) {
+                sum += histogram.counts[i];
+                if (sum > limit) {
+                    minBin = i;
+                    break;
+                }
+            }
+            int maxBin = histogram.counts.length - 1;
+            sum = 0;
+            for (int i = histogram.counts.length - 1; i >= 0; i--) {
+                sum += histogram.counts[i];
+                if (sum > limit) {
+                    maxBin = i;
+                    break;
+                }
+            }
+            min[c] = (int) Math.floor(histogram.lo + minBin * histogram.binWidth);
+            max[c] = (int) Math.ceil(histogram.lo + (maxBin + 1) * histogram.binWidth) - 1;
+        }
+        return new MinMaxPerChan(min, max);
+    }
+
+    private static MinMaxPerChan loadPersistent(String key, String stamp, int sizeC) {
+        if (persistentFile == null || stamp.startsWith("0/")) return null;   // no update time -> cannot validate
+        synchronized (persistentLock) {
+            final String value = getPersistent().getProperty(key);
+            if (value == null) return null;
+            try {
+                String[] parts = value.split(";");
+                if (parts.length != 3 || !parts[0].equals(stamp)) return null;
+                int[] min = Arrays.stream(parts[1].split(",")).mapToInt(Integer::parseInt).toArray();
+                int[] max = Arrays.stream(parts[2].split(",")).mapToInt(Integer::parseInt).toArray();
+                if (min.length != sizeC || max.length != sizeC) return null;
+                return new MinMaxPerChan(min, max);
+            } catch (Exception e) {
+                logger.debug("invalid persistent channel min/max entry " + key + "=" + value);
+                return null;
+            }
+        }
+    }
+
+    private static void storePersistent(String key, String stamp, MinMaxPerChan minMax) {
+        final File file = persistentFile;
+        if (file == null || stamp.startsWith("0/")) return;
+        synchronized (persistentLock) {
+            Properties props = getPersistent();
+            if (props.size() >= MAX_PERSISTENT_ENTRIES) props.clear();
+            props.setProperty(key, stamp + ";" + join(minMax.getMin()) + ";" + join(minMax.getMax()));
+            File tmp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, COMMENT);
+            } catch (Exception e) {
+                logger.warn("cannot save channel min/max to " + tmp.getAbsolutePath(), e);
+                return;
+            }
+            if (!tmp.renameTo(file)) {
+                if (!file.delete() || !tmp.renameTo(file)) logger.warn("cannot save channel min/max to " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    private static Properties getPersistent() {
+        if (persistent == null) {
+            persistent = new Properties();
+            final File file = persistentFile;
+            if (file != null && file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    persistent.load(in);
+                } catch (Exception e) {
+                    logger.warn("cannot load channel min/max from " + file.getAbsolutePath(), e);
+                }
+            }
+        }
+        return persistent;
+    }
+
+    private static String join(int[] values) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+
+    public static double getClipPercent() {
+        return clipPercent;
+    }
+
+    /**
+     * Percentage of pixels clipped at both ends of the channel histograms (0 = plain min/max). Applies to windows computed afterwards.
+     */
+    public static void setClipPercent(double clipPercent) {
+        ChannelMinMax.clipPercent = Math.max(0d, Math.min(49d, clipPercent));
+    }
+
+    public static File getPersistentFile() {
+        return persistentFile;
+    }
+
+    /**
+     * File where computed windows are persisted, null disables persistence.
+     */
+    public static void setPersistentFile(File persistentFile) {
+        synchronized (persistentLock) {
+            ChannelMinMax.persistentFile = persistentFile;
+            ChannelMinMax.persistent = null;
+        }
+    }
+
+    /**
+     * Histogram of bins with equal width, bin i covers [lo + i * binWidth, lo + (i + 1) * binWidth).
+     */
+    public static final class Histogram {
+        final double lo;
+        final double binWidth;
+        final long[] counts;
+
+        public Histogram(double lo, double binWidth, int bins) {
+            this.lo = lo;
+            this.binWidth = binWidth;
+            this.counts = new long[bins];
+        }
+
+        public int getBins() {
+            return counts.length;
+        }
+
+        public void add(int bin, long count) {
+            counts[bin] += count;
+        }
+    }
+
+}
@@ -0,0 +1,452 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent tile cache for raw OMERO pixel data (the byte arrays returned by RawPixelsStorePrx.getTile()).
+ * <p>
+ * Tiles are appended to memory-mapped segment files (tiles-[seq].seg) in the cache directory. Each record carries its key,
+ * the update timestamp of the image and a CRC32 of the data, thus the segment files are the index: on startup the segments
+ * are scanned and the in-memory index is rebuilt, a torn record (e.g. after a crash) ends the scan of its segment.
+ * New tiles are always written to a new segment, old segments are only read.
+ * </p>
+ * <p>
+ * The size limit is applied per segment: if the cache exceeds maxBytes, the least recently used segment is deleted.
+ * A tile is only returned if the stored update timestamp matches the current one of the image.
+ * Only one process can use a cache directory at a time (file lock), other processes run without disk cache.
+ * </p>
+ */
+public class DiskTileCache implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskTileCache.class);
+    public static final int DEFAULT_SIZE_MB = 2048;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int MAGIC = 0x4F54_4331;   // OTC1
+    // magic, pixelsId, res, z, c, t, x, y, w, h, updateTime, length, crc
+    private static final int HEADER_SIZE = 4 + 8 + 8 * 4 + 8 + 4 + 4;
+    private static final String SEGMENT_PREFIX = "tiles-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File dir;
+    private final long maxBytes;
+    private final int segmentSize;
+    private final Map<TileKey, Location> index = new ConcurrentHashMap<>();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final RandomAccessFile lockFile;
+    private final FileLock fileLock;
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong staleCount = new AtomicLong(0);
+    private Segment active = null;
+    private long nextSeq = 0;
+    private boolean closed = false;
+
+    private DiskTileCache(File dir, long maxBytes, int segmentSize, RandomAccessFile lockFile, FileLock fileLock) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.segmentSize = segmentSize;
+        this.lockFile = lockFile;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Opens (or creates) a disk cache in dir and recovers the index from the existing segments.
+     *
+     * @return the cache or null if the directory cannot be used (e.g. it is locked by another process)
+     */
+    public static DiskTileCache open(File dir, long maxBytes) {
+        return open(dir, maxBytes, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public static DiskTileCache open(File dir, long maxBytes, int segmentSize) {
+        RandomAccessFile lockFile = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                logger.warn("cannot create disk tile cache directory " + dir.getAbsolutePath());
+                return null;
+            }
+            lockFile = new RandomAccessFile(new File(dir, "cache.lock"), "rw");
+            FileLock fileLock = lockFile.getChannel().tryLock();
+            if (fileLock == null) {
+                logger.info("disk tile cache " + dir.getAbsolutePath() + " is used by another process, running without disk cache");
+                lockFile.close();
+                return null;
+            }
+            DiskTileCache cache = new DiskTileCache(dir, maxBytes, segmentSize, lockFile, fileLock);
+            cache.recover();
+            logger.info("disk tile cache opened: " + cache);
+            return cache;
+        } catch (Exception e) {
+            logger.warn("cannot open disk tile cache " + dir.getAbsolutePath(), e);
+            if (lockFile != null) {
+                try {
+                    lockFile.close();
+                } catch (IOException e1) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Copies the cached tile into buf.
+     *
+     * @return true if the tile is cached with the given updateTime and fits into buf
+     */
+    public boolean read(TileKey key, long updateTime, byte[] buf) {
+        lock.readLock().lock();
+        try {
+            Location loc = closed ? null : index.get(key);
+            if (loc == null || loc.length > buf.length) {
+                missCount.incrementAndGet();
+                return false;
+            }
+            if (loc.updateTime != updateTime) {
+                index.remove(key, loc);   // image has been modified, the record is dropped with its segment
+                staleCount.incrementAndGet();
+                missCount.incrementAndGet();
+                return false;
+            }
+            ByteBuffer data = loc.segment.buffer.duplicate();
+            data.position(loc.offset + HEADER_SIZE);
+            data.get(buf, 0, loc.length);
+            loc.segment.lastAccess = System.currentTimeMillis();
+            hitCount.incrementAndGet();
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a tile to the active segment. Errors are logged, the tile is then simply not cached.
+     */
+    public void write(TileKey key, long updateTime, byte[] data) {
+        final int recordSize = align(HEADER_SIZE + data.length);
+        if (recordSize > segmentSize) return;
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            if (active == null || active.position + recordSize > segmentSize) {
+                active = createSegment();
+                evictToBudget();
+            }
+            final int offset = active.position;
+            MappedByteBuffer buffer = active.buffer;
+            buffer.position(offset + 4);
+            buffer.putLong(key.pixelsId);
+            buffer.putInt(key.res);
+            buffer.putInt(key.z);
+            buffer.putInt(key.c);
+            buffer.putInt(key.t);
+            buffer.putInt(key.x);
+            buffer.putInt(key.y);
+            buffer.putInt(key.w);
+            buffer.putInt(key.h);
+            buffer.putLong(updateTime);
+            buffer.putInt(data.length);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(data);
+            buffer.putInt(offset, MAGIC);   // the record becomes valid with the magic
+            active.position = offset + recordSize;
+            index.put(key, new Location(active, offset, data.length, updateTime));
+        } catch (IOException e) {
+            logger.warn("error writing to disk tile cache", e);
+            active = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all tiles of a pixels object from the index (the data is deleted with their segments).
+     */
+    public void invalidate(long pixelsId) {
+        index.keySet().removeIf(key -> key.pixelsId == pixelsId);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) return;
+        for (File file : files) {
+            long seq;
+            try {
+                seq = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() != segmentSize) {
+                // other segment size configured before, or a segment file which could not be created completely
+                deleteFile(file);
+                continue;
+            }
+            Segment segment = new Segment(seq, file, map(file));
+            segment.lastAccess = file.lastModified();
+            segments.put(seq, segment);
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+        final CRC32 crc = new CRC32();
+        for (Segment segment : segments.values()) {   // ascending seq -> newer records replace older ones
+            MappedByteBuffer buffer = segment.buffer;
+            int offset = 0;
+            while (offset + HEADER_SIZE <= segmentSize && buffer.getInt(offset) == MAGIC) {
+                buffer.position(offset + 4);
+                TileKey key = new TileKey(buffer.getLong(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+                long updateTime = buffer.getLong();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || offset + HEADER_SIZE + length > segmentSize) break;
+                ByteBuffer tile = buffer.duplicate();
+                tile.limit(offset + HEADER_SIZE + length);
+                tile.position(offset + HEADER_SIZE);
+                crc.reset();
+                crc.update(tile);
+                if ((int) crc.getValue() != checksum) {
+                    logger.debug("torn record in " + segment.file.getName() + " at offset " + offset);
+                    break;
+                }
+                index.put(key, new Location(segment, offset, length, updateTime));
+                offset += align(HEADER_SIZE + length);
+            }
+            segment.position = segmentSize;   // recovered segments are read-only
+        }
+        evictToBudget();
+    }
+
+    private Segment createSegment() throws IOException {
+        File file = new File(dir, SEGMENT_PREFIX + nextSeq + SEGMENT_SUFFIX);
+        Segment segment = new Segment(nextSeq, file, map(file));
+        segments.put(nextSeq, segment);
+        nextSeq++;
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);   // mapping stays valid after close
+        }
+    }
+
+    /**
+     * Deletes the least recently used segments (never the active one) until the cache fits into maxBytes.
+     */
+    private void evictToBudget() {
+        while ((long) segments.size() * segmentSize > maxBytes && segments.size() > 1) {
+            Segment lru = null;
+            for (Segment segment : segments.values()) {
+                if (segment != active && (lru == null || segment.lastAccess < lru.lastAccess)) lru = segment;
+            }
+            if (lru == null) return;
+            final Segment evicted = lru;
+            segments.remove(evicted.seq);
+            index.values().removeIf(loc -> loc.segment == evicted);
+            deleteFile(evicted.file);
+            logger.debug("disk tile cache segment evicted: " + evicted.file.getName());
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();   // e.g. still mapped on Windows
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+            index.clear();
+            segments.clear();
+            active = null;
+            fileLock.release();
+            lockFile.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "DiskTileCache{" +
+                    "dir=" + dir.getAbsolutePath() +
+                    ", maxBytes=" + maxBytes +
+                    ", segments=" + segments.size() +
+                    ", tiles=" + index.size() +
+                    ", hits=" + hitCount.get() +
+                    ", misses=" + missCount.get() +
+                    ", stale=" + staleCount.get() +
+                    '}';
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Raw tile region of a pixels object at a resolution level.
+     */
+    public static final class TileKey {
+        final long pixelsId;
+        final int res, z, c, t, x, y, w, h;
+
+        public TileKey(long pixelsId, int res, int z, int c, int t, int x, int y, int w, int h) {
+            this.pixelsId = pixelsId;
+            this.res = res;
+            this.z = z;
+            this.c = c;
+            this.t = t;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            TileKey tileKey = (TileKey) o;
+
+            if (pixelsId != tileKey.pixelsId) return false;
+            if (res != tileKey.res) return false;
+            if (z != tileKey.z) return false;
+            if (c != tileKey.c) return false;
+            if (t != tileKey.t) return false;
+            if (x != tileKey.x) return false;
+            if (y != tileKey.y) return false;
+            if (w != tileKey.w) return false;
+            return h == tileKey.h;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (pixelsId ^ (pixelsId >>> 32));
+            result = 31 * result + res;
+            result = 31 * result + z;
+            result = 31 * result + c;
+            result = 31 * result + t;
+            result = 31 * result + x;
+            result = 31 * result + y;
+            result = 31 * result + w;
+            result = 31 * result + h;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "TileKey{" +
+                    "pixelsId=" + pixelsId +
+                    ", res=" + res +
+                    ", z=" + z +
+                    ", c=" + c +
+                    ", t=" + t +
+                    ", x=" + x +
+                    ", y=" + y +
+                    ", w=" + w +
+                    ", h=" + h +
+                    '}';
+        }
+    }
+
+    private static final class Segment {
+        final long seq;
+        final File file;
+        final MappedByteBuffer buffer;
+        int position = 0;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Segment(long seq, File file, MappedByteBuffer buffer) {
+            this.seq = seq;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int length;
+        final long updateTime;
+
+        Location(Segment segment, int offset, int length, long updateTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.updateTime = updateTime;
+        }
+    }
+
+}
@@ -0,0 +1,259 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Merges single fluorescence channels into a packed RGB (TYPE_INT_RGB) buffer.
+ * <p>
+ * Produces exactly the same pixels as the former per-pixel getSample/getPixel/HSBtoRGB loop in
+ * OrbitImageBioformatsOmero.getPlane(), but works directly on the primitive data buffer arrays
+ * and uses a precomputed 256-entry color table per (hue, channel contribution).
+ * </p>
+ * One instance holds the scratch rows for one tile and must not be shared between threads.
+ */
+public final class FluoChannelMerger {
+
+    /**
+     * Scaling modes, one per pixel container type as returned by AWTImageTools.getPixels().
+     */
+    public static final int SCALING_NONE = 0;
+    public static final int SCALING_SHORT = 1;
+    public static final int SCALING_INT = 2;
+    public static final int SCALING_DOUBLE = 3;
+
+    private static final int MAX_COLOR_TABLES = 1024;
+    private static final Map<Long, int[]> colorTables = new ConcurrentHashMap<>();
+
+    private final int width;
+    private final int height;
+    private final int scanlineStride;
+    private final int[] row;
+    private final int[] sum;
+
+    public FluoChannelMerger(int width, int height) {
+        this(width, height, width);
+    }
+
+    /**
+     * @param scanlineStride scanline stride of the destination array, e.g. the tile width if the merged region is smaller (edge tiles)
+     */
+    public FluoChannelMerger(int width, int height, int scanlineStride) {
+        this.width = width;
+        this.height = height;
+        this.scanlineStride = scanlineStride;
+        this.row = new int[width];
+        this.sum = new int[width];
+    }
+
+    /**
+     * Returns the scaling mode for a pixel container (byte[][], short[][], int[][], float[][] or double[][]).
+     */
+    public static int getScaling(Object pixels) {
+        if (pixels instanceof short[][]) return SCALING_SHORT;
+        if (pixels instanceof int[][]) return SCALING_INT;
+        if (pixels instanceof float[][]) return SCALING_INT;    // same (integer division) behaviour as int[][]
+        if (pixels instanceof double[][]) return SCALING_DOUBLE;
+        return SCALING_NONE;
+    }
+
+    /**
+     * Returns the scaling mode for a raster, based on the transfer type like AWTImageTools.getPixels() does.
+     */
+    public static int getScaling(Raster raster) {
+        switch (raster.getTransferType()) {
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                return SCALING_SHORT;
+            case DataBuffer.TYPE_INT:
+            case DataBuffer.TYPE_FLOAT:
+                return SCALING_INT;
+            case DataBuffer.TYPE_DOUBLE:
+                return SCALING_DOUBLE;
+            default:
+                return SCALING_NONE;
+        }
+    }
+
+    /**
+     *  see AWTImageTools.autoscale()
+     *  (the int/float containers keep the integer division of the former implementation to stay pixel-identical)
+     */
+    public static int autoscale(int s, int scaling, int min, int max) {
+        int out;
+        switch (scaling) {
+            case SCALING_SHORT: {
+                if (s < 0) s += 32767;
+                int diff = max - min;
+                float dist = (float) (s - min) / diff;
+                if (s >= max) out = 255;
+                else if (s <= min) out = 0;
+                else out = (int) (dist * 256);
+                return out;
+            }
+            case SCALING_INT: {
+                if (s >= max) out = 255;
+                else if (s <= min) out = 0;
+                else {
+                    int diff = max - min;
+                    float dist = (s - min) / diff;
+                    out = (int) (dist * 256);
+                }
+                return out;
+            }
+            case SCALING_DOUBLE: {
+                if (s >= max) out = 255;
+                else if (s <= min) out = 0;
+                else {
+                    int diff = max - min;
+                    float dist = (float) (s - min) / diff;
+                    out = (int) (dist * 256);
+                }
+                return out;
+            }
+            default:
+                return s;
+        }
+    }
+
+    /**
+     * Packed RGB color (0x00RRGGBB) for a summed channel intensity s.
+     *
+     * @param contribution channel contribution or Float.NaN if no contributions are set
+     */
+    public static int color(int s, float hue, float contribution) {
+        if (!Float.isNaN(contribution)) {
+            s *= contribution;
+        }
+        int intens = s <= 255 ? s : 255;
+        return Color.HSBtoRGB(hue, 1f, intens / 255f) & 0xFFFFFF;
+    }
+
+    /**
+     * Returns the (cached) 256-entry color table for a hue and channel contribution (Float.NaN for none).
+     */
+    public static int[] getColorTable(float hue, float contribution) {
+        final Long key = ((long) Float.floatToIntBits(hue) << 32) | (Float.floatToIntBits(contribution) & 0xFFFFFFFFL);
+        int[] table = colorTables.get(key);
+        if (table == null) {
+            table = new int[256];
+            for (int s = 0; s < 256; s++) {
+                table[s] = color(s, hue, contribution);
+            }
+            if (colorTables.size() > MAX_COLOR_TABLES) colorTables.clear();
+            colorTables.put(key, table);
+        }
+        return table;
+    }
+
+    /**
+     * Adds one channel to the packed RGB destination (starting at index 0 with scanlineStride), clipping each component at 255.
+     *
+     * @param src          raster of the channel tile (all bands are summed up)
+     * @param rgb          TYPE_INT_RGB data array of the destination tile
+     * @param hue          hue of the channel
+     * @param contribution channel contribution or Float.NaN if no contributions are set
+     * @param scaling      one of the SCALING_* modes, SCALING_NONE for 8bit images
+     * @param min          min intensity (only used if scaling != SCALING_NONE)
+     * @param max          max intensity (only used if scaling != SCALING_NONE)
+     * @param lut          optional autoscale table for samples 0..65535 (see AutoscaleLut), can be null
+     */
+    public void mergeChannel(Raster src, int[] rgb, float hue, float contribution, int scaling, int min, int max, byte[] lut) {
+        final int[] table = getColorTable(hue, contribution);
+        final int numBands = src.getSampleModel().getNumBands();
+        for (int iy = 0; iy < height; iy++) {
+            final int[] s;
+            if (numBands == 1) {
+                readRow(src, iy, 0, width, row);
+                if (scaling != SCALING_NONE) {
+                    for (int ix = 0; ix < width; ix++) {
+                        row[ix] = scale(row[ix], scaling, min, max, lut);
+                    }
+                }
+                s = row;
+            } else {
+                for (int ix = 0; ix < width; ix++) sum[ix] = 0;
+                for (int b = 0; b < numBands; b++) {
+                    readRow(src, iy, b, width, row);
+                    for (int ix = 0; ix < width; ix++) {
+                        sum[ix] += scaling != SCALING_NONE ? scale(row[ix], scaling, min, max, lut) : row[ix];
+                    }
+                }
+                s = sum;
+            }
+
+            int p = iy * scanlineStride;
+            for (int ix = 0; ix < width; ix++, p++) {
+                final int v = s[ix];
+                final int col = (v >= 0 && v < 256) ? table[v] : color(v, hue, contribution);
+                final int dst = rgb[p];
+                int r = ((dst >> 16) & 0xFF) + ((col >> 16) & 0xFF);
+                int g = ((dst >> 8) & 0xFF) + ((col >> 8) & 0xFF);
+                int bl = (dst & 0xFF) + (col & 0xFF);
+                if (r > 255) r = 255;
+                if (g > 255) g = 255;
+                if (bl > 255) bl = 255;
+                rgb[p] = (r << 16) | (g << 8) | bl;
+            }
+        }
+    }
+
+    private static int scale(int s, int scaling, int min, int max, byte[] lut) {
+        if (lut != null && s >= 0 && s < lut.length) return lut[s] & 0xFF;
+        return autoscale(s, scaling, min, max);
+    }
+
+    /**
+     * Reads the samples of one row (tile coordinates starting at 0, like getSample(ix, iy, band)) and band into dst, directly from the primitive array if the layout is known.
+     * Subclasses of the standard data buffers (e.g. signed buffers) might override getElem(), so they use the generic path.
+     */
+    static void readRow(Raster src, int iy, int band, int width, int[] dst) {
+        final DataBuffer db = src.getDataBuffer();
+        final SampleModel sm = src.getSampleModel();
+        if (sm instanceof ComponentSampleModel) {
+            final Class<?> dbClass = db.getClass();
+            if (dbClass == DataBufferByte.class || dbClass == DataBufferUShort.class || dbClass == DataBufferInt.class) {
+                final ComponentSampleModel csm = (ComponentSampleModel) sm;
+                final int bank = csm.getBankIndices()[band];
+                final int pixelStride = csm.getPixelStride();
+                int i = db.getOffsets()[bank] + csm.getBandOffsets()[band]
+                        + (iy - src.getSampleModelTranslateY()) * csm.getScanlineStride()
+                        - src.getSampleModelTranslateX() * pixelStride;
+                if (dbClass == DataBufferByte.class) {
+                    final byte[] data = ((DataBufferByte) db).getData(bank);
+                    for (int ix = 0; ix < width; ix++, i += pixelStride) dst[ix] = data[i] & 0xFF;
+                } else if (dbClass == DataBufferUShort.class) {
+                    final short[] data = ((DataBufferUShort) db).getData(bank);
+                    for (int ix = 0; ix < width; ix++, i += pixelStride) dst[ix] = data[i] & 0xFFFF;
+                } else {
+                    final int[] data = ((DataBufferInt) db).getData(bank);
+                    for (int ix = 0; ix < width; ix++, i += pixelStride) dst[ix] = data[i];
+                }
+                return;
+            }
+        }
+        src.getSamples(0, iy, width, 1, band, dst);
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import omero.RLong;
+import omero.RType;
+import omero.api.IQueryPrx;
+import omero.model.IObject;
+import omero.sys.ParametersI;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Resolves the Omero group of images, datasets, projects and annotations with one query over all groups
+ * (group context -1) instead of probing each group of the user.
+ * <p>
+ * Results are kept in the static group maps of ImageProviderOmero (bounded, see setMaxEntries() and setTimeToLiveMinutes()),
+ * which are also filled when objects are loaded with a known group.
+ * If the server rejects the all groups query, the groups of the user are probed with the same (bulk) query.
+ * </p>
+ */
+public class GroupResolver {
+
+    private static final Logger logger = LoggerFactory.getLogger(GroupResolver.class);
+    public static final long ALL_GROUPS = -1;
+    private static final int BATCH_SIZE = 500;
+    public static final int MAX_ENTRIES_DEFAULT = 1000000;
+    public static final int TTL_MINUTES_DEFAULT = 0;   // never expire, expiry is opt-in (e.g. if objects are moved between groups)
+
+    public enum Kind {
+        IMAGE("Image"), DATASET("Dataset"), PROJECT("Project"), ANNOTATION("Annotation");
+
+        private final String entity;
+
+        Kind(String entity) {
+            this.entity = entity;
+        }
+
+        private LongLongCache groupMap() {
+            switch (this) {
+                case IMAGE:
+                    return ImageProviderOmero.rdfGroupMap;
+                case DATASET:
+                    return ImageProviderOmero.datasetGroupMap;
+                case PROJECT:
+                    return ImageProviderOmero.projectGroupMap;
+                default:
+                    return ImageProviderOmero.metaGroupMap;
+            }
+        }
+    }
+
+    private final ImageProviderOmero.GatewayAndCtx gatewayAndCtx;
+    private final Supplier<List<Long>> groups;
+    private volatile boolean allGroupsQuery = true;
+
+    /**
+     * @param groups groups of the user, only used if the all groups query is not possible
+     */
+    public GroupResolver(ImageProviderOmero.GatewayAndCtx gatewayAndCtx, Supplier<List<Long>> groups) {
+        this.gatewayAndCtx = gatewayAndCtx;
+        this.groups = groups;
+    }
+
+    /**
+     * @return the group of the object or -1 if it does not exist (or is not readable)
+     */
+    public long resolve(Kind kind, long id) {
+        final long cached = kind.groupMap().get(id, -1);
+        if (cached >= 0) return cached;
+        final Long group = resolveAll(kind, Collections.singleton(id)).get(id);
+        return group != null ? group : -1;
+    }
+
+    /**
+     * Resolves many objects at once (one query per BATCH_SIZE ids which are not cached yet).
+     *
+     * @return group per id, objects which do not exist are missing
+     */
+    public Map<Long, Long> resolveAll(Kind kind, Collection<Long> ids) {
+        final LongLongCache groupMap = kind.groupMap();
+        final Map<Long, Long> result = new HashMap<>(ids.size());
+        final Set<Long> missingIds = new LinkedHashSet<>();
+        for (Long id : ids) {
+            final long group = groupMap.get(id, -1);
+            if (group >= 0) result.put(id, group);
+            else missingIds.add(id);
+        }
+        final List<Long> missing = new ArrayList<>(missingIds);
+        for (int i = 0; i < missing.size(); i += BATCH_SIZE) {
+            final List<Long> batch = missing.subList(i, Math.min(missing.size(), i + BATCH_SIZE));
+            final Map<Long, Long> found = query(kind, batch);
+            for (Map.Entry<Long, Long> entry : found.entrySet()) {
+                groupMap.put(entry.getKey(), entry.getValue());
+            }
+            result.putAll(found);
+        }
+        return result;
+    }
+
+    private Map<Long, Long> query(Kind kind, List<Long> ids) {
+        if (allGroupsQuery) {
+            try {
+                return query(kind, ids, ALL_GROUPS);
+            } catch (Exception e) {
+                allGroupsQuery = false;
+                logger.warn("cannot query over all groups, probing the groups of the user instead", e);
+            }
+        }
+        final Map<Long, Long> result = new HashMap<>(ids.size());
+        final Set<Long> remaining = new HashSet<>(ids);
+        for (long group : groups.get()) {
+            try {
+                final Map<Long, Long> found = query(kind, new ArrayList<>(remaining), group);
+                result.putAll(found);
+                remaining.removeAll(found.keySet());
+            } catch (Exception e) {
+                logger.debug("cannot query group " + group, e);
+            }
+            if (remaining.isEmpty()) break;
+        }
+        return result;
+    }
+
+    private Map<Long, Long> query(Kind kind, List<Long> ids, long group) throws Exception {
+        final ParametersI param = new ParametersI();
+        param.addIds(ids);
+        final IQueryPrx queryService = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group));
+        final List<List<RType>> rows = queryService.projection("select o.id, o.details.group.id from " + kind.entity + " o where o.id in (:ids)", param);
+        final Map<Long, Long> result = new HashMap<>(rows.size());
+        for (List<RType> row : rows) {
+            result.put(((RLong) row.get(0)).getValue(), ((RLong) row.get(1)).getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Remembers the group of an object which has been loaded in a known group.
+     */
+    public static void put(Kind kind, long id, long group) {
+        kind.groupMap().put(id, group);
+    }
+
+    /**
+     * Remembers the group of a loaded object if its details contain the group.
+     */
+    public static void put(Kind kind, IObject object) {
+        if (object == null || object.getId() == null || object.getDetails() == null || object.getDetails().getGroup() == null) return;
+        final RLong group = object.getDetails().getGroup().getId();
+        if (group != null) put(kind, object.getId().getValue(), group.getValue());
+    }
+
+    /**
+     * E.g. if an object has been moved to another group or deleted.
+     */
+    public static void invalidate(Kind kind, long id) {
+        kind.groupMap().remove(id);
+    }
+
+    /**
+     * Forgets all objects of a group (e.g. if the group has been deleted or objects have been moved out of it).
+     */
+    public static void invalidateGroup(long group) {
+        for (Kind kind : Kind.values()) {
+            kind.groupMap().removeValue(group);
+        }
+    }
+
+    public static void invalidateAll() {
+        for (Kind kind : Kind.values()) {
+            kind.groupMap().clear();
+        }
+    }
+
+    /**
+     * Maximum number of cached entries per object type.
+     */
+    public static void setMaxEntries(int maxEntries) {
+        for (Kind kind : Kind.values()) {
+            kind.groupMap().setMaxSize(maxEntries);
+        }
+    }
+
+    /**
+     * Cached groups are resolved again after this time (0 = never, default).
+     * Callers which need a group must fall back to resolve() if the cached group has expired (see ImageProviderOmero.getImageGroup()).
+     */
+    public static void setTimeToLiveMinutes(int minutes) {
+        for (Kind kind : Kind.values()) {
+            kind.groupMap().setTimeToLive(minutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Number of cached entries of all object types.
+     */
+    public static long getSize() {
+        long size = 0;
+        for (Kind kind : Kind.values()) {
+            size += kind.groupMap().size();
+        }
+        return size;
+    }
+
+    /**
+     * Heap used by the group maps of all object types.
+     */
+    public static long getMemoryBytes() {
+        long bytes = 0;
+        for (Kind kind : Kind.values()) {
+            bytes += kind.groupMap().getMemoryBytes();
+        }
+        return bytes;
+    }
+
+}
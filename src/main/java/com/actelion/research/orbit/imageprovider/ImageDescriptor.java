@@ -0,0 +1,359 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import loci.formats.FormatException;
+import ome.units.UNITS;
+import omero.RString;
+import omero.RTime;
+import omero.api.IPixelsPrx;
+import omero.api.RawPixelsStorePrx;
+import omero.gateway.facility.BrowseFacility;
+import omero.gateway.model.ImageData;
+import omero.model.*;
+import omero.romio.ResolutionDescription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ome.formats.model.UnitsFactory.convertLength;
+import static ome.formats.model.UnitsFactory.convertTime;
+
+/**
+ * Immutable metadata of an OMERO image: everything OmeroReaderOrbit.initFile() needs to populate the reader metadata.
+ * <p>
+ * Descriptors are cached process-wide per imageId, thus opening an image again (other thread, level, min/max reader, ...)
+ * does not need any metadata round trip. Entries expire after 30 minutes to pick up renamed images.
+ * </p>
+ */
+public final class ImageDescriptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageDescriptor.class);
+    private static final Cache<Long, ImageDescriptor> descriptors = CacheBuilder.
+            newBuilder().
+            maximumSize(1000).
+            expireAfterWrite(30, TimeUnit.MINUTES).
+            build();
+
+    private final long imageId;
+    private final long pixelsId;
+    private final String name;
+    private final String description;
+    private final Long acquisitionDate;
+    private final long updateTime;
+    private final int sizeX, sizeY, sizeZ, sizeC, sizeT;
+    private final String pixelType;
+    private final ome.units.quantity.Length physicalSizeX, physicalSizeY, physicalSizeZ;
+    private final ome.units.quantity.Time timeIncrement;
+    private final List<ChannelDescriptor> channels;
+    private final int resolutionLevels;
+    private final int[][] resolutionSizes;   // [level][sizeX, sizeY], level 0 = full resolution
+    private final boolean rgbImage;
+
+    private ImageDescriptor(ImageData image, Pixels pix, int resolutionLevels, ResolutionDescription[] resolutions) {
+        omero.model.Image img = image.asImage();
+        this.imageId = image.getId();
+        this.pixelsId = img.getPixels(0).getId().getValue();
+        RString imageName = img.getName();
+        this.name = imageName == null ? null : imageName.getValue();
+        RString imgDescription = img.getDescription();
+        this.description = imgDescription == null ? null : imgDescription.getValue();
+        RTime date = img.getAcquisitionDate();
+        this.acquisitionDate = date == null ? null : date.getValue();
+        this.updateTime = getUpdateTime(image);
+
+        this.sizeZ = pix.getSizeZ() != null ? pix.getSizeZ().getValue() : 0;
+        this.sizeC = pix.getSizeC() != null ? pix.getSizeC().getValue() : 0;
+        this.sizeT = pix.getSizeT() != null ? pix.getSizeT().getValue() : 0;
+        this.pixelType = pix.getPixelsType().getValue().getValue();
+        this.physicalSizeX = convertLength(pix.getPhysicalSizeX());
+        this.physicalSizeY = convertLength(pix.getPhysicalSizeY());
+        this.physicalSizeZ = convertLength(pix.getPhysicalSizeZ());
+        this.timeIncrement = convertTime(pix.getTimeIncrement());
+
+        List<ChannelDescriptor> channelList = new ArrayList<>();
+        for (Channel channel : pix.copyChannels()) {
+            LogicalChannel lc = channel.getLogicalChannel();
+            RString cname = lc.getName();
+            StatsInfo stats = channel.getStatsInfo();
+            boolean hasStats = stats != null && stats.getGlobalMin() != null && stats.getGlobalMax() != null;
+            channelList.add(new ChannelDescriptor(cname == null ? null : cname.getValue(), convertLength(lc.getEmissionWave()),
+                    convertLength(lc.getExcitationWave()), convertLength(lc.getPinHoleSize()),
+                    hasStats ? stats.getGlobalMin().getValue() : Double.NaN, hasStats ? stats.getGlobalMax().getValue() : Double.NaN));
+        }
+        this.channels = Collections.unmodifiableList(channelList);
+
+        this.resolutionLevels = resolutionLevels;
+        this.resolutionSizes = new int[resolutions.length][];
+        for (int i = 0; i < resolutions.length; i++) {
+            resolutionSizes[i] = new int[]{resolutions[i].sizeX, resolutions[i].sizeY};
+        }
+        this.sizeX = resolutionSizes.length > 0 ? resolutionSizes[0][0] : (pix.getSizeX() != null ? pix.getSizeX().getValue() : 0);
+        this.sizeY = resolutionSizes.length > 0 ? resolutionSizes[0][1] : (pix.getSizeY() != null ? pix.getSizeY().getValue() : 0);
+        this.rgbImage = checkRGBImage(channelList);
+    }
+
+    /**
+     * Returns the cached descriptor or loads it (only one load per image, concurrent callers wait for it).
+     *
+     * @param store an unused pixels store which may be bound to the pixels of the image to read the resolution descriptions.
+     *              The caller has to (re-)bind it afterwards.
+     */
+    public static ImageDescriptor get(final ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long groupId, final long imageId, final RawPixelsStorePrx store) throws ExecutionException {
+        return descriptors.get(imageId, () -> load(gatewayAndCtx, groupId, imageId, store));
+    }
+
+    /**
+     * Returns the cached descriptor or null (never loads).
+     */
+    public static ImageDescriptor getIfPresent(long imageId) {
+        return descriptors.getIfPresent(imageId);
+    }
+
+    public static void invalidate(long imageId) {
+        descriptors.invalidate(imageId);
+    }
+
+    public static void invalidateAll() {
+        descriptors.invalidateAll();
+    }
+
+    private static ImageDescriptor load(ImageProviderOmero.GatewayAndCtx gatewayAndCtx, long groupId, long imageId, RawPixelsStorePrx store) throws Exception {
+        logger.debug("loading image descriptor for image " + imageId);
+        BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
+        ImageData image = browse.getImage(gatewayAndCtx.getCtx(groupId), imageId);
+        long pixelsId = image.asImage().getPixels(0).getId().getValue();
+        long pixId = image.getDefaultPixels().getId();
+        IPixelsPrx pixelService = gatewayAndCtx.getGateway().getPixelsService(gatewayAndCtx.getCtx(groupId));
+        Pixels pix = pixelService.retrievePixDescription(pixId);
+        if (pix == null) {
+            throw new FormatException("Error retrieving pixels object for image " + imageId + ", pixelsId: " + pixId + " groupId: " + groupId);
+        }
+        store.setPixelsId(pixelsId, false);
+        return new ImageDescriptor(image, pix, store.getResolutionLevels(), store.getResolutionDescriptions());
+    }
+
+    /**
+     * Last modification of the image (creation if not available), 0 if unknown.
+     */
+    private static long getUpdateTime(ImageData image) {
+        try {
+            if (image.getUpdated() != null) return image.getUpdated().getTime();
+        } catch (Exception e) {
+            logger.trace("no update timestamp for image " + image.getId());
+        }
+        try {
+            if (image.getCreated() != null) return image.getCreated().getTime();
+        } catch (Exception e) {
+            logger.trace("no creation timestamp for image " + image.getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Checks if it is a real rgb image (r,g,b, channels, e.g. brightfield).
+     */
+    private static boolean checkRGBImage(List<ChannelDescriptor> channels) {
+        boolean isRGBImage = true;
+        if (channels.size() == 3) {
+            String red = channels.get(0).getName();
+            String green = channels.get(1).getName();
+            String blue = channels.get(2).getName();
+            if (red != null && !(red.equalsIgnoreCase("red") || red.equalsIgnoreCase("tl brightfield"))) isRGBImage = false;
+            else if (green != null && !(green.equalsIgnoreCase("green") || (red != null && red.equalsIgnoreCase("tl brightfield")))) isRGBImage = false;
+            else if (blue != null && !(blue.equalsIgnoreCase("blue") || (red != null && red.equalsIgnoreCase("tl brightfield")))) isRGBImage = false;
+        } else isRGBImage = false;
+        return isRGBImage;
+    }
+
+    public long getImageId() {
+        return imageId;
+    }
+
+    public long getPixelsId() {
+        return pixelsId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return acquisition date in ms or null
+     */
+    public Long getAcquisitionDate() {
+        return acquisitionDate;
+    }
+
+    /**
+     * @return last modification in ms, 0 if unknown
+     */
+    public long getUpdateTime() {
+        return updateTime;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public int getSizeC() {
+        return sizeC;
+    }
+
+    public int getSizeT() {
+        return sizeT;
+    }
+
+    public String getPixelType() {
+        return pixelType;
+    }
+
+    public ome.units.quantity.Length getPhysicalSizeX() {
+        return physicalSizeX;
+    }
+
+    public ome.units.quantity.Length getPhysicalSizeY() {
+        return physicalSizeY;
+    }
+
+    public ome.units.quantity.Length getPhysicalSizeZ() {
+        return physicalSizeZ;
+    }
+
+    /**
+     * @return physical pixel width in micrometers or null if not available
+     */
+    public Double getPhysicalSizeXMicrometer() {
+        if (physicalSizeX == null) return null;
+        Number mupp = physicalSizeX.value(UNITS.MICROMETER);
+        return mupp == null ? null : mupp.doubleValue();
+    }
+
+    public ome.units.quantity.Time getTimeIncrement() {
+        return timeIncrement;
+    }
+
+    public List<ChannelDescriptor> getChannels() {
+        return channels;
+    }
+
+    public int getResolutionLevels() {
+        return resolutionLevels;
+    }
+
+    /**
+     * @param resolution 0 = full resolution
+     */
+    public int getSizeX(int resolution) {
+        return resolutionSizes[resolution][0];
+    }
+
+    /**
+     * @param resolution 0 = full resolution
+     */
+    public int getSizeY(int resolution) {
+        return resolutionSizes[resolution][1];
+    }
+
+    public boolean isRGBImage() {
+        return rgbImage;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageDescriptor{" +
+                "imageId=" + imageId +
+                ", pixelsId=" + pixelsId +
+                ", name='" + name + '\'' +
+                ", size=" + sizeX + "x" + sizeY + "x" + sizeZ + "x" + sizeC + "x" + sizeT +
+                ", pixelType='" + pixelType + '\'' +
+                ", resolutionLevels=" + resolutionLevels +
+                ", rgbImage=" + rgbImage +
+                '}';
+    }
+
+    public static final class ChannelDescriptor {
+        private final String name;
+        private final ome.units.quantity.Length emissionWave;
+        private final ome.units.quantity.Length excitationWave;
+        private final ome.units.quantity.Length pinholeSize;
+        private final double globalMin, globalMax;
+
+        ChannelDescriptor(String name, ome.units.quantity.Length emissionWave, ome.units.quantity.Length excitationWave, ome.units.quantity.Length pinholeSize,
+                          double globalMin, double globalMax) {
+            this.name = name;
+            this.emissionWave = emissionWave;
+            this.excitationWave = excitationWave;
+            this.pinholeSize = pinholeSize;
+            this.globalMin = globalMin;
+            this.globalMax = globalMax;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public ome.units.quantity.Length getEmissionWave() {
+            return emissionWave;
+        }
+
+        public ome.units.quantity.Length getExcitationWave() {
+            return excitationWave;
+        }
+
+        public ome.units.quantity.Length getPinholeSize() {
+            return pinholeSize;
+        }
+
+        /**
+         * Minimum intensity of the channel over all planes (StatsInfo of the server), NaN if not available.
+         */
+        public double getGlobalMin() {
+            return globalMin;
+        }
+
+        /**
+         * Maximum intensity of the channel over all planes (StatsInfo of the server), NaN if not available.
+         */
+        public double getGlobalMax() {
+            return globalMax;
+        }
+    }
+
+}
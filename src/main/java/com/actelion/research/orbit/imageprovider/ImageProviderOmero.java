@@ -67,7 +67,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static omero.rtypes.rstring;
 
@@ -87,14 +88,45 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     public static final String PROPERTY_SEARCH_LIMIT = "SearchLimit";
     public static final String PROPERTY_OMERO_USER_SCALEOUT = "OmeroUserScaleout";
     public static final String PROPERTY_OMERO_PASSWORD_SCALEOUT = "OmeroPasswordScaleout";
+    public static final String PROPERTY_TILE_CACHE_SIZE_MB = "TileCacheSizeMB";
+    public static final String PROPERTY_DISK_TILE_CACHE_DIR = "DiskTileCacheDir";
+    public static final String PROPERTY_DISK_TILE_CACHE_SIZE_MB = "DiskTileCacheSizeMB";
+    public static final String PROPERTY_CHANNEL_FETCH_CONCURRENCY = "ChannelFetchConcurrency";
+    public static final String PROPERTY_MAX_READERS_PER_IMAGE = "MaxReadersPerImage";
+    public static final String PROPERTY_MAX_STORES_PER_SESSION = "MaxStoresPerSession";
+    public static final String PROPERTY_PREFETCH_DEPTH = "PrefetchDepth";
+    public static final String PROPERTY_MIN_MAX_CLIP_PERCENT = "MinMaxClipPercent";
+    public static final String PROPERTY_USE_RENDERING_SETTINGS = "UseRenderingSettings";
+    public static final String PROPERTY_TILE_SIZE_MULTIPLIER = "TileSizeMultiplier";
+    public static final String PROPERTY_SYNTHESIZE_LEVELS = "SynthesizeLevels";
+    public static final String PROPERTY_TISSUE_MASK_THRESHOLD = "TissueMaskThreshold";
+    public static final String PROPERTY_GROUP_MAP_SIZE = "GroupMapSize";
+    public static final String PROPERTY_GROUP_MAP_TTL_MINUTES = "GroupMapTTLMinutes";
     public static final String COMMENT_ORBIT_OMERO_CONFIG = "Orbit Omero Config";
     private final ConcurrentHashMap<String, Object> hints = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Long, Long> projectGroupMap = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Long, Long> datasetGroupMap = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Long, Long> rdfGroupMap = new ConcurrentHashMap<>();
-    public static final ConcurrentHashMap<Long, Long> metaGroupMap = new ConcurrentHashMap<>();
+    public static final LongLongCache projectGroupMap = new LongLongCache(GroupResolver.MAX_ENTRIES_DEFAULT, GroupResolver.TTL_MINUTES_DEFAULT, TimeUnit.MINUTES);
+    public static final LongLongCache datasetGroupMap = new LongLongCache(GroupResolver.MAX_ENTRIES_DEFAULT, GroupResolver.TTL_MINUTES_DEFAULT, TimeUnit.MINUTES);
+    public static final LongLongCache rdfGroupMap = new LongLongCache(GroupResolver.MAX_ENTRIES_DEFAULT, GroupResolver.TTL_MINUTES_DEFAULT, TimeUnit.MINUTES);
+    public static final LongLongCache metaGroupMap = new LongLongCache(GroupResolver.MAX_ENTRIES_DEFAULT, GroupResolver.TTL_MINUTES_DEFAULT, TimeUnit.MINUTES);
 
     private static final int INC = 16 * 1024;
+    private static final int DATASET_LINK_BATCH_SIZE = 500;
+    private static final int RDF_PAGE_SIZE = 1000;
+    private static final int SEARCH_THREADS = 8;
+    private static final ExecutorService searchPool = Executors.newFixedThreadPool(SEARCH_THREADS, new ThreadFactory() {
+        private final AtomicLong threadCount = new AtomicLong(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "omero-search-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /**
+     * Image columns of projection queries for createRawDataFile(row, ...): id, name, creation time, update time, owner name and format.
+     */
+    protected static final String IMAGE_COLUMNS = "i.id, i.name, ce.time, ue.time, o.omeName, f.value";
+    protected static final String IMAGE_JOINS = "join i.details.creationEvent as ce join i.details.updateEvent as ue join i.details.owner as o left outer join i.format as f";
     private String omeroUser = "";
     private String omeroPassword = "";
     private String omeroUserScaleout = "";
@@ -104,6 +136,7 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     private int webport = 443; // 443 for https (http not supported here)
     public static boolean useWebSockets = false;
     private transient GatewayAndCtx gatewayAndCtx = new GatewayAndCtx();
+    private final transient GroupResolver groupResolver = new GroupResolver(gatewayAndCtx, this::getGroups);
     protected int searchLimit = 1000;
     protected boolean listAllSeries = true;
     protected int selectedSeries = 0;
@@ -112,6 +145,20 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     private boolean onlyOwnerObjects = false; // show/edit only objects owned by current user (otherwise show/edit all with read/write access)
     private String configFile = "OrbitOmero.properties";
     private boolean useSSL = false;
+    private int tileCacheSizeMB = TileCache.DEFAULT_SIZE_MB;
+    private String diskTileCacheDir = ""; // empty = no disk cache
+    private int diskTileCacheSizeMB = DiskTileCache.DEFAULT_SIZE_MB;
+    private int channelFetchConcurrency = OrbitImageBioformatsOmero.CHANNEL_FETCH_CONCURRENCY_DEFAULT;
+    private int maxReadersPerImage = ReaderPool.MAX_READERS_PER_IMAGE_DEFAULT;
+    private int maxStoresPerSession = ReaderPool.MAX_STORES_PER_SESSION_DEFAULT;
+    private int prefetchDepth = TilePrefetcher.PREFETCH_DEPTH_DEFAULT;
+    private double minMaxClipPercent = ChannelMinMax.CLIP_PERCENT_DEFAULT;
+    private boolean useRenderingSettings = false;
+    private int tileSizeMultiplier = OrbitImageBioformatsOmero.TILE_SIZE_MULTIPLIER_AUTO;
+    private boolean synthesizeLevels = true;
+    private double tissueMaskThreshold = TissueMask.THRESHOLD_DEFAULT;
+    private int groupMapSize = GroupResolver.MAX_ENTRIES_DEFAULT;
+    private int groupMapTTLMinutes = GroupResolver.TTL_MINUTES_DEFAULT;
 
 
     public ImageProviderOmero() {
@@ -124,6 +171,20 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         props.put("SearchLimit", String.valueOf(searchLimit));
         props.put("OmeroUserScaleout", "");
         props.put("OmeroPasswordScaleout", "");
+        props.put("TileCacheSizeMB", String.valueOf(tileCacheSizeMB));
+        props.put("DiskTileCacheDir", diskTileCacheDir);
+        props.put("DiskTileCacheSizeMB", String.valueOf(diskTileCacheSizeMB));
+        props.put("ChannelFetchConcurrency", String.valueOf(channelFetchConcurrency));
+        props.put("MaxReadersPerImage", String.valueOf(maxReadersPerImage));
+        props.put("MaxStoresPerSession", String.valueOf(maxStoresPerSession));
+        props.put("PrefetchDepth", String.valueOf(prefetchDepth));
+        props.put("MinMaxClipPercent", String.valueOf(minMaxClipPercent));
+        props.put("UseRenderingSettings", String.valueOf(useRenderingSettings));
+        props.put("TileSizeMultiplier", String.valueOf(tileSizeMultiplier));
+        props.put("SynthesizeLevels", String.valueOf(synthesizeLevels));
+        props.put("TissueMaskThreshold", String.valueOf(tissueMaskThreshold));
+        props.put("GroupMapSize", String.valueOf(groupMapSize));
+        props.put("GroupMapTTLMinutes", String.valueOf(groupMapTTLMinutes));
         String userDir = System.getProperty("user.dir");
         String userHome = System.getProperty("user.home");
         String propsFilename = null;
@@ -166,6 +227,20 @@ public class ImageProviderOmero extends ImageProviderAbstract {
             searchLimit = Integer.parseInt(props.getProperty(PROPERTY_SEARCH_LIMIT));
             omeroUserScaleout = props.getProperty(PROPERTY_OMERO_USER_SCALEOUT);
             omeroPasswordScaleout = props.getProperty(PROPERTY_OMERO_PASSWORD_SCALEOUT);
+            tileCacheSizeMB = Integer.parseInt(props.getProperty(PROPERTY_TILE_CACHE_SIZE_MB));
+            diskTileCacheDir = props.getProperty(PROPERTY_DISK_TILE_CACHE_DIR);
+            diskTileCacheSizeMB = Integer.parseInt(props.getProperty(PROPERTY_DISK_TILE_CACHE_SIZE_MB));
+            channelFetchConcurrency = Integer.parseInt(props.getProperty(PROPERTY_CHANNEL_FETCH_CONCURRENCY));
+            maxReadersPerImage = Integer.parseInt(props.getProperty(PROPERTY_MAX_READERS_PER_IMAGE));
+            maxStoresPerSession = Integer.parseInt(props.getProperty(PROPERTY_MAX_STORES_PER_SESSION));
+            prefetchDepth = Integer.parseInt(props.getProperty(PROPERTY_PREFETCH_DEPTH));
+            minMaxClipPercent = Double.parseDouble(props.getProperty(PROPERTY_MIN_MAX_CLIP_PERCENT));
+            useRenderingSettings = Boolean.parseBoolean(props.getProperty(PROPERTY_USE_RENDERING_SETTINGS));
+            tileSizeMultiplier = Integer.parseInt(props.getProperty(PROPERTY_TILE_SIZE_MULTIPLIER));
+            synthesizeLevels = Boolean.parseBoolean(props.getProperty(PROPERTY_SYNTHESIZE_LEVELS));
+            tissueMaskThreshold = Double.parseDouble(props.getProperty(PROPERTY_TISSUE_MASK_THRESHOLD));
+            groupMapSize = Integer.parseInt(props.getProperty(PROPERTY_GROUP_MAP_SIZE));
+            groupMapTTLMinutes = Integer.parseInt(props.getProperty(PROPERTY_GROUP_MAP_TTL_MINUTES));
 
 
 
@@ -180,6 +255,30 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         log.info("Omero use WebSockets: " + useWebSockets);
         log.info("Search limit: " + searchLimit);
         log.info("Omero User Scaleout: " + omeroUserScaleout);
+        log.info("Tile cache size (MB): " + tileCacheSizeMB);
+        log.info("Channel fetch concurrency: " + channelFetchConcurrency);
+        log.info("Max readers per image: " + maxReadersPerImage + ", max stores per session: " + maxStoresPerSession);
+        log.info("Tile prefetch depth: " + prefetchDepth);
+        log.info("16bit min/max clip percent: " + minMaxClipPercent);
+        log.info("Use Omero rendering settings: " + useRenderingSettings);
+        log.info("Tile size multiplier: " + (tileSizeMultiplier == OrbitImageBioformatsOmero.TILE_SIZE_MULTIPLIER_AUTO ? "auto" : tileSizeMultiplier));
+        log.info("Synthesize missing pyramid levels: " + synthesizeLevels);
+        log.info("Tissue mask threshold: " + tissueMaskThreshold);
+        log.info("Group map size: " + groupMapSize + ", time to live (minutes): " + groupMapTTLMinutes);
+        log.info("Disk tile cache: " + (diskTileCacheDir == null || diskTileCacheDir.isEmpty() ? "disabled" : diskTileCacheDir + " (" + diskTileCacheSizeMB + " MB)"));
+        OrbitImageBioformatsOmero.tileCache.setMaxBytes(tileCacheSizeMB * 1024L * 1024L);
+        configureDiskTileCache(diskTileCacheDir, diskTileCacheSizeMB);
+        OrbitImageBioformatsOmero.setChannelFetchConcurrency(channelFetchConcurrency);
+        ReaderPool.setMaxReadersPerImage(maxReadersPerImage);
+        ReaderPool.setMaxStoresPerSession(maxStoresPerSession);
+        TilePrefetcher.setPrefetchDepth(prefetchDepth);
+        ChannelMinMax.setClipPercent(minMaxClipPercent);
+        OrbitImageBioformatsOmero.setUseRenderingSettings(useRenderingSettings);
+        OrbitImageBioformatsOmero.setTileSizeMultiplier(tileSizeMultiplier);
+        OrbitImageBioformatsOmero.setSynthesizeLevels(synthesizeLevels);
+        TissueMask.setThreshold(tissueMaskThreshold);
+        GroupResolver.setMaxEntries(groupMapSize);
+        GroupResolver.setTimeToLiveMinutes(groupMapTTLMinutes);
 
 
         if (propsFilename==null || !connectionOk(host,port)) {
@@ -238,6 +337,33 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         searchLimit = omeroConf.getSearchLimit();
         omeroUserScaleout = omeroConf.getUserScaleout();
         omeroPasswordScaleout = omeroConf.getPasswordScaleout();
+        tileCacheSizeMB = omeroConf.getTileCacheSizeMB();
+        diskTileCacheDir = omeroConf.getDiskTileCacheDir();
+        diskTileCacheSizeMB = omeroConf.getDiskTileCacheSizeMB();
+        channelFetchConcurrency = omeroConf.getChannelFetchConcurrency();
+        maxReadersPerImage = omeroConf.getMaxReadersPerImage();
+        maxStoresPerSession = omeroConf.getMaxStoresPerSession();
+        prefetchDepth = omeroConf.getPrefetchDepth();
+        minMaxClipPercent = omeroConf.getMinMaxClipPercent();
+        useRenderingSettings = omeroConf.isUseRenderingSettings();
+        tileSizeMultiplier = omeroConf.getTileSizeMultiplier();
+        synthesizeLevels = omeroConf.isSynthesizeLevels();
+        tissueMaskThreshold = omeroConf.getTissueMaskThreshold();
+        groupMapSize = omeroConf.getGroupMapSize();
+        groupMapTTLMinutes = omeroConf.getGroupMapTTLMinutes();
+        OrbitImageBioformatsOmero.tileCache.setMaxBytes(tileCacheSizeMB * 1024L * 1024L);
+        configureDiskTileCache(diskTileCacheDir, diskTileCacheSizeMB);
+        OrbitImageBioformatsOmero.setChannelFetchConcurrency(channelFetchConcurrency);
+        ReaderPool.setMaxReadersPerImage(maxReadersPerImage);
+        ReaderPool.setMaxStoresPerSession(maxStoresPerSession);
+        TilePrefetcher.setPrefetchDepth(prefetchDepth);
+        ChannelMinMax.setClipPercent(minMaxClipPercent);
+        OrbitImageBioformatsOmero.setUseRenderingSettings(useRenderingSettings);
+        OrbitImageBioformatsOmero.setTileSizeMultiplier(tileSizeMultiplier);
+        OrbitImageBioformatsOmero.setSynthesizeLevels(synthesizeLevels);
+        TissueMask.setThreshold(tissueMaskThreshold);
+        GroupResolver.setMaxEntries(groupMapSize);
+        GroupResolver.setTimeToLiveMinutes(groupMapTTLMinutes);
 
         if (!connectionOk(host,port)) {
             throw new IllegalStateException("Cannot connect to Omero server.\nTried to connect on " + host + ":" + port + ".\n"+omeroConf);
@@ -246,6 +372,30 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         }
     }
 
+    /**
+     * Opens the persistent tile cache for all readers, or disables it if dir is empty.
+     * An already opened cache on the same directory is kept.
+     */
+    private static synchronized void configureDiskTileCache(String dir, int sizeMB) {
+        final boolean enabled = dir != null && !dir.trim().isEmpty();
+        final long maxBytes = sizeMB * 1024L * 1024L;
+        DiskTileCache current = OmeroReaderOrbit.getDiskTileCache();
+        if (current != null) {
+            if (enabled && current.getDir().getAbsoluteFile().equals(new File(dir.trim()).getAbsoluteFile()) && current.getMaxBytes() == maxBytes) {
+                return;
+            }
+            OmeroReaderOrbit.setDiskTileCache(null);
+            try {
+                current.close();
+            } catch (IOException e) {
+                log.warn("error closing disk tile cache", e);
+            }
+        }
+        if (enabled) {
+            OmeroReaderOrbit.setDiskTileCache(DiskTileCache.open(new File(dir.trim()), maxBytes));
+        }
+    }
+
     public static boolean connectionOk(String host, int port) {
         if (useWebSockets) {
             // For websockets we cannot check via InetSocketAddress. Another test should be done here, but for now we just return true.
@@ -369,6 +519,7 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         ImageData image = browse.getImage(gatewayAndCtx.getCtx(group), rdf.getRawDataFileId());
         image.setName(rdf.getFileName());
         dm.updateObject(gatewayAndCtx.getCtx(group), image.asImage(), getParameterWrite());
+        ImageDescriptor.invalidate(rdf.getRawDataFileId());
         return true;
     }
 
@@ -443,33 +594,100 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         return LoadRawDataFilesSearchGeneric("%" + search + "%", limit);
     }
 
-    public List<RawDataFile> LoadRawDataFilesSearchGeneric(String search, int limit) throws Exception {
-        List<RawDataFile> rdfList = new ArrayList<>();
-        BrowseFacility browse = getGatewayAndCtx().getGateway().getFacility(BrowseFacility.class);
-        String query_string = "select i from Image i where UPPER(name) like :search";
-        ParametersI p = new ParametersI();
-        p.add("search", rstring(search.toUpperCase()));
-        p.page(0, limit);
+    /**
+     * Searches the image names (case insensitive like pattern) of all groups in parallel. Each group returns its first limit hits ordered by name,
+     * the group results are merged by name and the limit is applied globally.
+     * <p>
+     * The hits of a group are selected in the order of the database collation (which HQL cannot override), the result is ordered by
+     * String.compareTo() (see mergeByName()). If both orders differ for some names (e.g. case, accents or punctuation), a limited result
+     * contains the first limit hits of each group by database collation, which are not necessarily the first limit hits of all groups by
+     * String order. Results without limit are complete.
+     * </p>
+     */
+    public List<RawDataFile> LoadRawDataFilesSearchGeneric(final String search, final int limit) throws Exception {
+        List<CompletableFuture<List<RawDataFile>>> searches = new ArrayList<>();
         for (RawData rdGroup: loadGroups()) {
-            long group = rdGroup.getRawDataId();
-            List<IObject> results = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group)).findAllByQuery(query_string, p);
-            for (IObject result : results) {
-                Image image = (Image) result;
-                ImageData imageData = browse.getImage(getGatewayAndCtx().getCtx(group), image.getId().getValue());
-                if (imageData.getSeries() == selectedSeries || listAllSeries) {
-                    rdfList.add(createRawDataFile(imageData,group));
+            final long group = rdGroup.getRawDataId();
+            searches.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return searchGroup(search, limit, group);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
                 }
-            }
+            }, searchPool));
         }
-        Collections.sort(rdfList, new Comparator<RawDataFile>() {
-            @Override
-            public int compare(RawDataFile o1, RawDataFile o2) {
-                return o1.getFileName().compareTo(o1.getFileName());
+        List<List<RawDataFile>> groupResults = new ArrayList<>(searches.size());
+        for (CompletableFuture<List<RawDataFile>> groupSearch : searches) {
+            try {
+                groupResults.add(groupSearch.get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null ? e.getCause().getCause() : e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
             }
-        });
+        }
+        return mergeByName(groupResults, limit);
+    }
+
+    /**
+     * One projection query per group for the RawDataFile columns of the first limit images (filtered by series, ordered by name in database collation),
+     * the datasets of these images are loaded with batched link queries (see loadImageDatasetIds()).
+     * The dataset links are not joined, thus the limit applies to images, not to image x dataset rows.
+     */
+    private List<RawDataFile> searchGroup(String search, int limit, long group) throws Exception {
+        ParametersI p = new ParametersI();
+        p.add("search", rstring(search.toUpperCase()));
+        StringBuilder query = new StringBuilder("select " + IMAGE_COLUMNS + " from Image as i " + IMAGE_JOINS + " where upper(i.name) like :search");
+        if (!listAllSeries) {
+            query.append(" and i.series = :series");
+            p.add("series", omero.rtypes.rint(selectedSeries));
+        }
+        query.append(" order by i.name, i.id");
+        if (limit > 0) p.page(0, limit);
+        List<List<omero.RType>> rows = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group)).projection(query.toString(), p);
+        List<Long> imageIds = new ArrayList<>(rows.size());
+        for (List<omero.RType> row : rows) {
+            imageIds.add(((omero.RLong) row.get(0)).getValue());
+        }
+        Map<Long, Integer> datasetIds = loadImageDatasetIds(imageIds, group);
+        List<RawDataFile> rdfList = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Integer datasetId = datasetIds.get(imageIds.get(i));
+            rdfList.add(createRawDataFile(rows.get(i), 0, datasetId != null ? datasetId : 0, group));
+        }
         return rdfList;
     }
 
+    /**
+     * k-way merge of lists by name (and id). The lists are sorted with the same comparator first: the server orders by the collation of
+     * the database, which can differ from String.compareTo(), and the merge needs both in the same order.
+     *
+     * @param limit maximum size of the result, set <= 0 for no limit
+     */
+    static List<RawDataFile> mergeByName(final List<List<RawDataFile>> lists, int limit) {
+        final Comparator<RawDataFile> byName = Comparator.comparing(RawDataFile::getFileName).thenComparingInt(RawDataFile::getRawDataFileId);
+        final List<List<RawDataFile>> sortedLists = new ArrayList<>(lists.size());
+        for (List<RawDataFile> list : lists) {
+            List<RawDataFile> sorted = new ArrayList<>(list);
+            sorted.sort(byName);
+            sortedLists.add(sorted);
+        }
+        // heads: {list index, position}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, sortedLists.size()), (a, b) -> byName.compare(sortedLists.get(a[0]).get(a[1]), sortedLists.get(b[0]).get(b[1])));
+        int total = 0;
+        for (int i = 0; i < sortedLists.size(); i++) {
+            if (!sortedLists.get(i).isEmpty()) heads.add(new int[]{i, 0});
+            total += sortedLists.get(i).size();
+        }
+        List<RawDataFile> merged = new ArrayList<>(limit > 0 ? Math.min(limit, total) : total);
+        while (!heads.isEmpty() && (limit <= 0 || merged.size() < limit)) {
+            int[] head = heads.poll();
+            List<RawDataFile> list = sortedLists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) heads.add(head);
+        }
+        return merged;
+    }
+
     @Override
     public List<RawDataFile> LoadRawDataFilesByPlateName(String plateName, int plateBatch) throws Exception {
         log.error("plate access is currently not supported");
@@ -542,13 +760,19 @@ public class ImageProviderOmero extends ImageProviderAbstract {
 
     public BufferedImage getThumbnail(RawDataFile rdf) throws Exception {
         long group = getRdfGroup(rdf);
-        BrowseFacility browse = getGatewayAndCtx().getGateway().getFacility(BrowseFacility.class);
-        ImageData imageData = browse.getImage(getGatewayAndCtx().getCtx(group), rdf.getRawDataFileId());
+        ImageDescriptor desc = ImageDescriptor.getIfPresent(rdf.getRawDataFileId());
+        long pixelsId;
+        if (desc != null) {
+            pixelsId = desc.getPixelsId();
+        } else {
+            BrowseFacility browse = getGatewayAndCtx().getGateway().getFacility(BrowseFacility.class);
+            ImageData imageData = browse.getImage(getGatewayAndCtx().getCtx(group), rdf.getRawDataFileId());
+            pixelsId = imageData.getDefaultPixels().getId();
+        }
         ThumbnailStorePrx store = gatewayAndCtx.getGateway().getThumbnailService(gatewayAndCtx.getCtx(group));
         ByteArrayInputStream stream = null;
         try {
-            PixelsData pixels = imageData.getDefaultPixels();
-            store.setPixelsId(pixels.getId());
+            store.setPixelsId(pixelsId);
             byte[] array = store.getThumbnailByLongestSide(omero.rtypes.rint(RawUtilsCommon.THUMBNAIL_WIDTH));
             stream = new ByteArrayInputStream(array);
             return ImageIO.read(stream);
@@ -606,12 +830,72 @@ public class ImageProviderOmero extends ImageProviderAbstract {
 
     @Override
     public IOrbitImage createOrbitImage(RawDataFile rdf, int level) throws Exception {
+        return createOrbitImage(rdf, level, false);
+    }
+
+    /**
+     * @param rendered true for a display mode image with server rendered (JPEG) tiles, see OrbitImageRenderedOmero. Analysis tiles are raw pixels in any case.
+     */
+    public IOrbitImage createOrbitImage(RawDataFile rdf, int level, boolean rendered) throws Exception {
         long imageId = rdf.getRawDataFileId();
         long group = getImageGroupCached(imageId);
+        if (group < 0) group = getImageGroup(imageId);   // not cached (yet) or expired, -1 would be the all groups context
+        final String filename = "omeroorbit:iid="+rdf.getRawDataFileId();
+
+        // missing or rejected levels are synthesized from the nearest finer level (see OrbitImageSynthesizedOmero),
+        // the coarsest usable level is known from the descriptor, only levels which fail to load are probed
+        int sourceLevel = level;
+        final ImageDescriptor desc = OrbitImageBioformatsOmero.isSynthesizeLevels() ? loadImageDescriptor(imageId, group) : null;
+        if (desc != null && desc.getResolutionLevels() > 0) {
+            sourceLevel = Math.min(level, desc.getResolutionLevels() - 1);
+            while (sourceLevel > 0 && !OrbitImageBioformatsOmero.hasLevelAspectRatio(desc, desc.getSizeX(sourceLevel), desc.getSizeY(sourceLevel))) {
+                sourceLevel--;
+            }
+        }
+        while (true) {
+            try {
+                if (sourceLevel < level) {
+                    return new OrbitImageSynthesizedOmero(filename, sourceLevel, level, 0, gatewayAndCtx, imageId, group);
+                }
+                if (rendered) {
+                    return new OrbitImageRenderedOmero(filename,level,0, gatewayAndCtx,imageId, group);
+                }
+                boolean useCache = true;
+                OrbitImageBioformatsOmero oi = new OrbitImageBioformatsOmero(filename,level,0, useCache, gatewayAndCtx,imageId, group);
+                return oi;
+            } catch (LevelNotAvailableException e) {
+                if (sourceLevel == 0) throw e;
+                log.debug(e.getMessage() + ", trying level " + (sourceLevel - 1));
+                sourceLevel--;
+            }
+        }
+    }
+
 
-        boolean useCache = true;
-        OrbitImageBioformatsOmero oi = new OrbitImageBioformatsOmero("omeroorbit:iid="+rdf.getRawDataFileId(),level,0, useCache, gatewayAndCtx,imageId, group);
-        return oi;
+    /**
+     * Cached or loaded image descriptor (see ImageDescriptor.get()).
+     *
+     * @return null if it cannot be loaded
+     */
+    private ImageDescriptor loadImageDescriptor(long imageId, long group) {
+        ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+        if (desc != null) return desc;
+        RawPixelsStorePrx store = null;
+        try {
+            store = gatewayAndCtx.getGateway().createPixelsStore(gatewayAndCtx.getCtx(group));
+            return ImageDescriptor.get(gatewayAndCtx, group, imageId, store);
+        } catch (Exception e) {
+            log.warn("cannot load the image descriptor of image " + imageId + ", probing levels", e);
+            return null;
+        } finally {
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (Exception e) {
+                    log.trace("error closing pixels store", e);
+                }
+            }
+        }
     }
 
 
@@ -874,32 +1158,15 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     /**
      * @param rawDataId
      * @param limit     set < 0 for no limit
-     * @return list of raw data files contained by the dataset
+     * @return list of raw data files contained by the dataset, ordered by name
      */
     private List<RawDataFile> loadRdfList(final int rawDataId, final int limit, boolean listAllSeries) {
-        long group = getDatasetGroup((long)rawDataId);
         List<RawDataFile> rdfList = new ArrayList<>();
         try {
-            BrowseFacility browse = getGatewayAndCtx().getGateway().getFacility(BrowseFacility.class);
-            Collection<ImageData> images = browse.getImagesForDatasets(getGatewayAndCtx().getCtx(group), Collections.singleton((long) rawDataId));
-
-            Iterator<ImageData> j = images.iterator();
-            ImageData image;
-            int cnt = 0;
-            while (j.hasNext()) {
-                image = j.next();
-                //System.out.println(image.getName()+" / index: "+ image.getSeries());
-                if (image.getSeries() == selectedSeries || listAllSeries) {
-                    if (limit < 0 || cnt++ > limit) break;
-                    rdfList.add(createRawDataFile(image,group));
-                }
+            Iterator<RawDataFile> rdfs = new RdfPageIterator(rawDataId, limit, listAllSeries);
+            while (rdfs.hasNext()) {
+                rdfList.add(rdfs.next());
             }
-            Collections.sort(rdfList, new Comparator<RawDataFile>() {
-                @Override
-                public int compare(RawDataFile o1, RawDataFile o2) {
-                    return o1.getFileName().compareTo(o2.getFileName());
-                }
-            });
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -907,6 +1174,87 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         return rdfList;
     }
 
+    /**
+     * Streams the raw data files of a dataset ordered by name, loaded page by page (RDF_PAGE_SIZE images per query) while iterating,
+     * e.g. to fill a list incrementally. Only one page is kept in memory.
+     *
+     * @param limit set < 0 for no limit
+     */
+    public Iterator<RawDataFile> iterateRawDataFiles(int rawDataId, int limit) {
+        return new RdfPageIterator(rawDataId, limit, listAllSeries);
+    }
+
+    /**
+     * Images of a dataset with a projection query (no pixels are loaded), filtered by series and ordered by name on the server.
+     * Pages are continued after the last (name, id), so each page costs the same for any dataset size.
+     */
+    private class RdfPageIterator implements Iterator<RawDataFile> {
+        private final int rawDataId;
+        private final int limit;
+        private final boolean listAllSeries;
+        private final long group;
+        private Iterator<RawDataFile> page = Collections.emptyIterator();
+        private String lastName = null;
+        private long lastId = -1;
+        private int returned = 0;
+        private boolean lastPage = false;
+
+        RdfPageIterator(int rawDataId, int limit, boolean listAllSeries) {
+            this.rawDataId = rawDataId;
+            this.limit = limit;
+            this.listAllSeries = listAllSeries;
+            this.group = getDatasetGroup((long) rawDataId);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (limit >= 0 && returned >= limit) return false;
+            if (!page.hasNext() && !lastPage) {
+                try {
+                    page = loadPage().iterator();
+                } catch (Exception e) {
+                    throw new IllegalStateException("cannot load images of dataset " + rawDataId, e);
+                }
+            }
+            return page.hasNext();
+        }
+
+        @Override
+        public RawDataFile next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            returned++;
+            return page.next();
+        }
+
+        private List<RawDataFile> loadPage() throws Exception {
+            final int pageSize = limit >= 0 ? Math.min(RDF_PAGE_SIZE, limit - returned) : RDF_PAGE_SIZE;
+            ParametersI param = new ParametersI();
+            param.add("did", omero.rtypes.rlong(rawDataId));
+            StringBuilder query = new StringBuilder("select " + IMAGE_COLUMNS + " from DatasetImageLink as l join l.child as i " + IMAGE_JOINS + " where l.parent.id = :did");
+            if (!listAllSeries) {
+                query.append(" and i.series = :series");
+                param.add("series", omero.rtypes.rint(selectedSeries));
+            }
+            if (lastName != null) {
+                query.append(" and (i.name > :lastName or (i.name = :lastName and i.id > :lastId))");
+                param.add("lastName", rstring(lastName));
+                param.add("lastId", omero.rtypes.rlong(lastId));
+            }
+            query.append(" order by i.name, i.id");
+            param.page(0, pageSize);
+            List<List<omero.RType>> rows = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group)).projection(query.toString(), param);
+            lastPage = rows.size() < pageSize;
+            List<RawDataFile> rdfs = new ArrayList<>(rows.size());
+            for (List<omero.RType> row : rows) {
+                RawDataFile rdf = createRawDataFile(row, 0, rawDataId, group);
+                rdfs.add(rdf);
+                lastName = rdf.getFileName();
+                lastId = rdf.getRawDataFileId();
+            }
+            return rdfs;
+        }
+    }
+
 
     @Override
     public void close() throws IOException {
@@ -968,6 +1316,13 @@ public class ImageProviderOmero extends ImageProviderAbstract {
             return gateway;
         }
 
+        /**
+         * @return host:port of the Omero server, e.g. to key data persisted across sessions
+         */
+        public String getServer() {
+            return host + ":" + port;
+        }
+
         /**
          * e.g. if switch user
          */
@@ -985,35 +1340,79 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     // bean creation
 
     protected RawDataFile createRawDataFile(ImageData image, long group) {
-        int rawDataId = 0; //loadRawDataId((int)image.getId());
+        Integer rawDataId = loadDatasetIds(Collections.singleton(image), group).get(image.getId());
+        return createRawDataFile(image, rawDataId != null ? rawDataId : 0, group);
+    }
 
-        try {
-            ParametersI param = new ParametersI();
-            param.addIds(Collections.singleton(image.getId()));
-            List<IObject> list = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group)).findAllByQuery("select l from DatasetImageLink as l left outer join fetch l.parent where l.child.id =:ids ", param);
+    /**
+     * Dataset (rawDataId) of each image with one DatasetImageLink query per DATASET_LINK_BATCH_SIZE images
+     * (the first linked dataset if an image is in several datasets).
+     *
+     * @return dataset id per image id, images without dataset are missing
+     */
+    protected Map<Long, Integer> loadDatasetIds(Collection<ImageData> images, long group) {
+        List<Long> imageIds = new ArrayList<>(images.size());
+        for (ImageData image : images) {
+            imageIds.add(image.getId());
+        }
+        return loadImageDatasetIds(imageIds, group);
+    }
 
-            if (list != null && list.size() > 0) {
-                DatasetI dataset = (DatasetI) ((DatasetImageLinkI) list.get(0)).getParent();
-                rawDataId = (int) dataset.getId().getValue();
+    /**
+     * loadDatasetIds() by image ids.
+     */
+    protected Map<Long, Integer> loadImageDatasetIds(List<Long> imageIds, long group) {
+        Map<Long, Integer> datasetIds = new HashMap<>(imageIds.size());
+        try {
+            IQueryPrx queryService = gatewayAndCtx.getGateway().getQueryService(gatewayAndCtx.getCtx(group));
+            for (int i = 0; i < imageIds.size(); i += DATASET_LINK_BATCH_SIZE) {
+                ParametersI param = new ParametersI();
+                param.addIds(imageIds.subList(i, Math.min(imageIds.size(), i + DATASET_LINK_BATCH_SIZE)));
+                List<List<omero.RType>> rows = queryService.projection("select l.child.id, l.parent.id from DatasetImageLink as l where l.child.id in (:ids) order by l.id", param);
+                for (List<omero.RType> row : rows) {
+                    long imageId = ((omero.RLong) row.get(0)).getValue();
+                    if (!datasetIds.containsKey(imageId)) {
+                        datasetIds.put(imageId, (int) ((omero.RLong) row.get(1)).getValue());
+                    }
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
-
-        return createRawDataFile(image, rawDataId, group);
+        return datasetIds;
     }
 
     protected RawDataFile createRawDataFile(ImageData image, int rawDataId, long group) {
+        return createRawDataFile(image.getId(), image.getName(), image.getCreated(), image.getUpdated(), experimenterToString(image.getOwner()), image.getFormat(), rawDataId, group);
+    }
+
+    /**
+     * RawDataFile from the image columns of a projection query (see IMAGE_COLUMNS), starting at column first.
+     */
+    protected RawDataFile createRawDataFile(List<omero.RType> row, int first, int rawDataId, long group) {
+        return createRawDataFile(((omero.RLong) row.get(first)).getValue(), ((omero.RString) row.get(first + 1)).getValue(),
+                toDate(row.get(first + 2)), toDate(row.get(first + 3)), row.get(first + 4) != null ? ((omero.RString) row.get(first + 4)).getValue() : "",
+                row.get(first + 5) != null ? ((omero.RString) row.get(first + 5)).getValue() : "", rawDataId, group);
+    }
+
+    private static Date toDate(omero.RType time) {
+        return time != null ? new Date(((omero.RTime) time).getValue()) : null;
+    }
+
+    /**
+     * @param userId owner name (omeName)
+     */
+    protected RawDataFile createRawDataFile(long imageId, String name, Date created, Date updated, String userId, String format, int rawDataId, long group) {
         RawDataFile rdf = new RawDataFile();
         rdf.setRawDataId(rawDataId);
-        rdf.setRawDataFileId((int) image.getId());
-        rdf.setReferenceDate(image.getCreated() != null ? image.getCreated() : new Date());
-        rdf.setModifyDate(image.getUpdated());
-        rdf.setFileName(image.getName());
-        rdf.setUserId(experimenterToString(image.getOwner()));
-        String ending = RawUtilsCommon.getExtension(image.getName());
-        String format = image.getFormat().toLowerCase();
-        System.out.println("ending: " + ending + "  format: " + image.getFormat());
+        rdf.setRawDataFileId((int) imageId);
+        rdf.setReferenceDate(created != null ? created : new Date());
+        rdf.setModifyDate(updated);
+        rdf.setFileName(name);
+        rdf.setUserId(userId);
+        String ending = RawUtilsCommon.getExtension(name);
+        if (log.isTraceEnabled())
+            log.trace("ending: " + ending + "  format: " + format);
         switch (ending) {
             case "jpg":
                 rdf.setFileType(RawUtilsCommon.DATA_TYPE_IMAGE_JPG);
@@ -1034,8 +1433,10 @@ public class ImageProviderOmero extends ImageProviderAbstract {
                 rdf.setFileType(RawUtilsCommon.DATA_TYPE_IMAGE_PNG);
                 break;
         }
-        System.out.println("type: " + rdf.getFileType());
-        rdfGroupMap.put(image.getId(),group);
+        if (log.isTraceEnabled())
+            log.trace("type: " + rdf.getFileType());
+        rdfGroupMap.put(imageId,group);
+        if (rawDataId > 0) datasetGroupMap.put(rawDataId, group);   // the dataset link is in the group of the image
         return rdf;
     }
 
@@ -1197,13 +1598,22 @@ public class ImageProviderOmero extends ImageProviderAbstract {
 
 
             // image dims and resolution
-            BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            PixelsData imageData = browse.getImage(gatewayAndCtx.getCtx(group), rdfId).getDefaultPixels();
-            rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEWIDTH, imageData.getSizeX()));
-            rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEHEIGHT, imageData.getSizeY()));
-            Length mupp = imageData.getPixelSizeX(UnitsLength.MICROMETER);
-            if (mupp != null)
-                rmList.add(rmff.createMetaDouble(RawUtilsCommon.STR_META_IMAGE_SCALE, mupp.getValue()));    // TODO: pixel size for x and y (and z)
+            ImageDescriptor desc = ImageDescriptor.getIfPresent(rdfId);
+            if (desc != null) {
+                rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEWIDTH, desc.getSizeX()));
+                rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEHEIGHT, desc.getSizeY()));
+                Double mupp = desc.getPhysicalSizeXMicrometer();
+                if (mupp != null)
+                    rmList.add(rmff.createMetaDouble(RawUtilsCommon.STR_META_IMAGE_SCALE, mupp));    // TODO: pixel size for x and y (and z)
+            } else {
+                BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
+                PixelsData imageData = browse.getImage(gatewayAndCtx.getCtx(group), rdfId).getDefaultPixels();
+                rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEWIDTH, imageData.getSizeX()));
+                rmList.add(rmff.createMetaInt(RawUtilsCommon.STR_META_IMAGE_IMAGEHEIGHT, imageData.getSizeY()));
+                Length mupp = imageData.getPixelSizeX(UnitsLength.MICROMETER);
+                if (mupp != null)
+                    rmList.add(rmff.createMetaDouble(RawUtilsCommon.STR_META_IMAGE_SCALE, mupp.getValue()));    // TODO: pixel size for x and y (and z)
+            }
 
 
             // cache entries
@@ -1443,9 +1853,16 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         List<RawAnnotation> rawAnnotations = new ArrayList<>(annotations.size());
         RawFileStorePrx store = null;
         long lastGroup = -2;
+        List<Long> annotationIds = new ArrayList<>(annotations.size());
+        for (Annotation annotation : annotations) {
+            GroupResolver.put(GroupResolver.Kind.ANNOTATION, annotation);
+            annotationIds.add(annotation.getId().getValue());
+        }
+        Map<Long, Long> annotationGroups = getAnnotationGroups(annotationIds);   // one query for the annotations without loaded group
         try {
             for (Annotation annotation : annotations) {
-                long group = getAnnotationGroup(annotation.getId().getValue());
+                Long annotationGroup = annotationGroups.get(annotation.getId().getValue());
+                long group = annotationGroup != null ? annotationGroup : -1;
                 if (group != lastGroup) {
                     if (store != null) {
                         try {
@@ -1529,6 +1946,9 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         if (annotations == null || annotations.size() == 0) {
             return new ArrayList<>();
         }
+        for (Annotation annotation : annotations) {
+            GroupResolver.put(GroupResolver.Kind.ANNOTATION, annotation.getId().getValue(), group);
+        }
 
         return loadAnnotations(annotations);
     }
@@ -1558,7 +1978,11 @@ public class ImageProviderOmero extends ImageProviderAbstract {
             List<String> nsToInclude = new ArrayList<String>();
             nsToInclude.add(namespace);
             List<String> nsToExclude = new ArrayList<String>();
-            annotations.addAll(proxy.loadSpecifiedAnnotations(FileAnnotation.class.getName(), nsToInclude, nsToExclude, getParameterRead()));   // use parameter param to restrict annotations to user
+            List<Annotation> groupAnnotations = proxy.loadSpecifiedAnnotations(FileAnnotation.class.getName(), nsToInclude, nsToExclude, getParameterRead());   // use parameter param to restrict annotations to user
+            for (Annotation annotation : groupAnnotations) {
+                GroupResolver.put(GroupResolver.Kind.ANNOTATION, annotation.getId().getValue(), group);
+            }
+            annotations.addAll(groupAnnotations);
             if (log.isTraceEnabled() && annotations != null)
                 log.trace("group "+group+ " #annotations: " + annotations.size());
         }
@@ -1591,6 +2015,7 @@ public class ImageProviderOmero extends ImageProviderAbstract {
 //            Thread.sleep(100);
 //        }
         Delete2Response responseDel = (Delete2Response)response;
+        GroupResolver.invalidate(GroupResolver.Kind.ANNOTATION, rawAnnotationId);
         return (responseDel.deletedObjects.get("ome.model.annotations.FileAnnotation").size() > 0);  // deleted one fileannotaiton (no id check here)
     }
 
@@ -1657,6 +2082,7 @@ public class ImageProviderOmero extends ImageProviderAbstract {
             DataManagerFacility dm = gatewayAndCtx.getGateway().getFacility(DataManagerFacility.class);
             MapAnnotationI anno = (MapAnnotationI) annotation;
             dm.delete(gatewayAndCtx.getCtx(group), anno);
+            GroupResolver.invalidate(GroupResolver.Kind.ANNOTATION, rawMetaId);
             log.debug("delete rawMeta annotation: " + anno);
         } else {
             throw new IllegalArgumentException("annotation is not a MapAnnotationI, but is " + annotation.getClass().getName());
@@ -1698,76 +2124,19 @@ public class ImageProviderOmero extends ImageProviderAbstract {
     }
 
     public long getProjectGroup(long projectId) {
-        long group = -1;
-        if (projectGroupMap.containsKey(projectId)) {
-            group = projectGroupMap.get(projectId);
-        } else {
-            BrowseFacility browse = null;
-            try {
-                browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            if (browse!=null) {
-                for (long g : getGroups()) {
-                    ProjectData project = null;
-                    try {
-                        Collection<ProjectData> projects = browse.getProjects(gatewayAndCtx.getCtx(g), Collections.singletonList(projectId));
-                        if (projects != null && projects.size() > 0) {
-                            project = projects.iterator().next();
-                        }
-                    } catch (Exception e) {
-                        // do nothing here, just testing
-                    }
-                    if (project != null) {  // correct group
-                        group = g;
-                        return group;
-                    }
-                }
-            }
-        }
-        return group;
+        return groupResolver.resolve(GroupResolver.Kind.PROJECT, projectId);
     }
 
     public long getDatasetGroup(long datasetId) {
-        long group = -1;
-        if (datasetGroupMap.containsKey(datasetId)) {
-            group = datasetGroupMap.get(datasetId);
-        } else {
-            BrowseFacility browse = null;
-            try {
-                browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            if (browse!=null) {
-                for (long g : getGroups()) {
-                    DatasetData dataset = null;
-                    try {
-                        Collection<DatasetData> datasets = browse.getDatasets(gatewayAndCtx.getCtx(g), Collections.singletonList(datasetId));
-                        if (datasets != null && datasets.size() > 0) {
-                            dataset = datasets.iterator().next();
-                        }
-                    } catch (Exception e) {
-                        // do nothing here, just testing
-                    }
-                    if (dataset != null) {  // correct group
-                        group = g;
-                        datasetGroupMap.put(datasetId,group);
-                        return group;
-                    }
-                }
-            }
-        }
-        return group;
+        return groupResolver.resolve(GroupResolver.Kind.DATASET, datasetId);
     }
 
     public long getRdfGroup(RawDataFile rdf) {
-        long group = -1;
-        if (rdfGroupMap.containsKey((long)rdf.getRawDataFileId())) {
-            group = rdfGroupMap.get((long)rdf.getRawDataFileId());
+        long group = rdfGroupMap.get(rdf.getRawDataFileId(), -1);
+        if (group >= 0) {
+            return group;
         }
-        else if (datasetGroupMap.containsKey((long)rdf.getRawDataId())) {
+        else if (datasetGroupMap.containsKey(rdf.getRawDataId())) {
             group = getDatasetGroup((long) rdf.getRawDataId());
         } else {
             group = getImageGroup((long)rdf.getRawDataFileId());
@@ -1775,71 +2144,34 @@ public class ImageProviderOmero extends ImageProviderAbstract {
         return group;
     }
 
+    /**
+     * Group of an image if it is cached, -1 otherwise (lock-free, no server access).
+     */
     public static long getImageGroupCached(long imageId) {
-        long group = -1;
-        if (rdfGroupMap.containsKey(imageId)) {
-            group = rdfGroupMap.get(imageId);
-        }
-        return group;
+        return rdfGroupMap.get(imageId, -1);
     }
 
     public long getImageGroup(long imageId) {
         if (imageId<0) return getGroups().get(0);   // special case for model annotations (not assigned to an image), use first group of user
-        long group = -1;
-        if (rdfGroupMap.containsKey(imageId)) {
-            group = rdfGroupMap.get(imageId);
-        } else {
-            BrowseFacility browse = null;
-            try {
-                browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            if (browse!=null) {
-                for (long g : getGroups()) {
-                    ImageData image = null;
-                    try {
-                        browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-                        image = browse.getImage(gatewayAndCtx.getCtx(g), imageId);
-                    } catch (Exception e) {
-                        // do nothing here, just testing
-                    }
-                    if (image != null) {  // correct group
-                        group = g;
-                        rdfGroupMap.put(imageId,group);
-                        return group;
-                    }
-                }
-            }
-        }
-        return group;
+        return groupResolver.resolve(GroupResolver.Kind.IMAGE, imageId);
     }
 
+    /**
+     * Groups of many images with one query (per 500 images which are not cached yet), images which do not exist are missing.
+     */
+    public Map<Long, Long> getImageGroups(Collection<Long> imageIds) {
+        return groupResolver.resolveAll(GroupResolver.Kind.IMAGE, imageIds);
+    }
 
     public long getAnnotationGroup(long annotationId) {
-        long group = -1;
-        if (metaGroupMap.containsKey(annotationId)) {
-            group = metaGroupMap.get(annotationId);
-        } else {
-                for (long g : getGroups()) {
-                    Annotation annotation = null;
-                    try {
-                        IMetadataPrx proxy  = gatewayAndCtx.getGateway().getMetadataService(gatewayAndCtx.getCtx(g));
-                        List<Annotation> annotations = proxy.loadAnnotation(Collections.singletonList(annotationId));
-                        if (annotations!=null && annotations.size()>0) {
-                            annotation = annotations.get(0);
-                        }
-                    } catch (Exception e) {
-                        // do nothing here, just testing
-                    }
-                    if (annotation != null) {  // correct group
-                        group = g;
-                        metaGroupMap.put(annotationId,group);
-                        return group;
-                    }
-                }
-            }
-        return group;
+        return groupResolver.resolve(GroupResolver.Kind.ANNOTATION, annotationId);
+    }
+
+    /**
+     * Groups of many annotations with one query (per 500 annotations which are not cached yet).
+     */
+    public Map<Long, Long> getAnnotationGroups(Collection<Long> annotationIds) {
+        return groupResolver.resolveAll(GroupResolver.Kind.ANNOTATION, annotationIds);
     }
 
     /**
@@ -0,0 +1,403 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Bounded long to long cache (e.g. object id to group id) without boxing: open addressing with linear probing in primitive arrays.
+ * <p>
+ * Reads are lock-free (optimistic StampedLock reads, retried if a write interfered), writes are serialized.
+ * If the cache is full, the least recently used of a few sampled entries is evicted (approximated LRU). Entries expire after the
+ * time to live (0 = never), expired entries are not returned and are removed lazily.
+ * Long.MIN_VALUE cannot be used as key or value.
+ * </p>
+ */
+public final class LongLongCache {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+    private static final int EVICTION_SAMPLES = 8;
+    private static final int OPTIMISTIC_RETRIES = 4;
+    private static final int BYTES_PER_SLOT = 8 + 8 + 8 + 4;   // key, value, access time, write time
+
+    private final StampedLock lock = new StampedLock();
+    private final long startNanos = System.nanoTime();
+    private volatile Table table = new Table(MIN_CAPACITY);
+    private volatile int maxSize;
+    private volatile long ttlNanos;
+    private int hand = 0;   // eviction scan position
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    private static final class Table {
+        final long[] keys;
+        final long[] values;
+        final long[] accessed;   // nanos since start, racy updates by readers are fine (only an eviction hint)
+        final int[] written;     // seconds since start
+        final int mask;
+        int size = 0;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new long[capacity];
+            accessed = new long[capacity];
+            written = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+    }
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param ttl     time to live after the last put, 0 for no expiry
+     */
+    public LongLongCache(int maxSize, long ttl, TimeUnit unit) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        this.maxSize = maxSize;
+        this.ttlNanos = unit.toNanos(Math.max(0, ttl));
+    }
+
+    /**
+     * @return the value or defaultValue if the key is not cached (or expired)
+     */
+    public long get(long key, long defaultValue) {
+        final long now = nanos();
+        for (int attempt = 0; attempt < OPTIMISTIC_RETRIES; attempt++) {
+            final long stamp = lock.tryOptimisticRead();
+            if (stamp == 0) continue;   // write locked
+            final Table t = table;
+            final int slot = find(t, key);
+            final long value = slot >= 0 ? t.values[slot] : 0;
+            final int written = slot >= 0 ? t.written[slot] : 0;
+            if (lock.validate(stamp)) {
+                return result(t, slot, key, value, written, now, defaultValue);
+            }
+        }
+        final long stamp = lock.readLock();
+        final Table t;
+        final int slot;
+        final long value;
+        final int written;
+        try {
+            t = table;
+            slot = find(t, key);
+            value = slot >= 0 ? t.values[slot] : 0;
+            written = slot >= 0 ? t.written[slot] : 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return result(t, slot, key, value, written, now, defaultValue);
+    }
+
+    private long result(Table t, int slot, long key, long value, int written, long now, long defaultValue) {
+        if (slot < 0) {
+            misses.increment();
+            return defaultValue;
+        }
+        if (isExpired(written, now)) {
+            expirations.increment();
+            misses.increment();
+            final long stamp = lock.tryWriteLock();   // remove it if this is possible without waiting
+            if (stamp != 0) {
+                try {
+                    final Table current = table;
+                    final int s = find(current, key);
+                    if (s >= 0 && isExpired(current.written[s], now)) removeSlot(current, s);
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+            }
+            return defaultValue;
+        }
+        t.accessed[slot] = now;
+        hits.increment();
+        return value;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key, EMPTY) != EMPTY;
+    }
+
+    public void put(long key, long value) {
+        if (key == EMPTY || value == EMPTY) throw new IllegalArgumentException("key/value " + EMPTY + " is reserved");
+        final long now = nanos();
+        final long stamp = lock.writeLock();
+        try {
+            Table t = table;
+            int slot = find(t, key);
+            if (slot < 0) {
+                while (t.size >= maxSize) evictOne(t, now);
+                if ((t.size + 1) * 2 > t.keys.length) {
+                    t = resize(t, t.keys.length * 2);
+                }
+                slot = insertionSlot(t, key);
+                t.keys[slot] = key;
+                t.size++;
+            }
+            t.values[slot] = value;
+            t.accessed[slot] = now;
+            t.written[slot] = seconds(now);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Invalidates one key.
+     *
+     * @return true if the key was cached
+     */
+    public boolean remove(long key) {
+        final long stamp = lock.writeLock();
+        try {
+            final Table t = table;
+            final int slot = find(t, key);
+            if (slot < 0) return false;
+            removeSlot(t, slot);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Invalidates all keys with the given value (e.g. all objects of a group).
+     *
+     * @return number of removed entries
+     */
+    public int removeValue(long value) {
+        final long stamp = lock.writeLock();
+        try {
+            final Table t = table;
+            int removed = 0;
+            for (int i = 0; i < t.keys.length; ) {
+                if (t.keys[i] != EMPTY && t.values[i] == value) {
+                    removeSlot(t, i);   // another entry might have been shifted into slot i
+                    removed++;
+                } else {
+                    i++;
+                }
+            }
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        final long stamp = lock.writeLock();
+        try {
+            table = new Table(MIN_CAPACITY);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sets the maximum number of entries, evicts entries if there are more.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        final long stamp = lock.writeLock();
+        try {
+            this.maxSize = maxSize;
+            final Table t = table;
+            final long now = nanos();
+            while (t.size > maxSize) evictOne(t, now);
+            final int capacity = capacityFor(t.size);
+            if (capacity < t.keys.length / 2) resize(t, capacity);   // give memory back
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Time to live after the last put, 0 for no expiry.
+     */
+    public void setTimeToLive(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(Math.max(0, ttl));
+    }
+
+    public long getTimeToLive(TimeUnit unit) {
+        return unit.convert(ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Number of entries (including expired entries which have not been removed yet).
+     */
+    public int size() {
+        return table.size;
+    }
+
+    public int capacity() {
+        return table.keys.length;
+    }
+
+    /**
+     * Heap used by the table arrays.
+     */
+    public long getMemoryBytes() {
+        return (long) capacity() * BYTES_PER_SLOT;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "LongLongCache{size=" + size() + ", maxSize=" + maxSize + ", memory=" + getMemoryBytes() / 1024 + "kB, hits=" + getHits() +
+                ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() + "}";
+    }
+
+    // table operations, writes only with write lock
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Slot of the key or -1. Bounded, because optimistic readers might see a table which is just being modified.
+     */
+    private static int find(Table t, long key) {
+        final long[] keys = t.keys;
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (int n = 0; n < keys.length; n++) {
+            final long k = keys[i];
+            if (k == key) return i;
+            if (k == EMPTY) return -1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int insertionSlot(Table t, long key) {
+        int i = hash(key) & t.mask;
+        while (t.keys[i] != EMPTY) i = (i + 1) & t.mask;
+        return i;
+    }
+
+    /**
+     * Backward shift deletion: moves the following entries of the probe sequence into the gap (no tombstones).
+     */
+    private static void removeSlot(Table t, int gap) {
+        final int mask = t.mask;
+        int j = gap;
+        while (true) {
+            j = (j + 1) & mask;
+            final long key = t.keys[j];
+            if (key == EMPTY) break;
+            final int home = hash(key) & mask;
+            final boolean movable = gap <= j ? (home <= gap || home > j) : (home <= gap && home > j);
+            if (movable) {
+                t.keys[gap] = key;
+                t.values[gap] = t.values[j];
+                t.accessed[gap] = t.accessed[j];
+                t.written[gap] = t.written[j];
+                gap = j;
+            }
+        }
+        t.keys[gap] = EMPTY;
+        t.size--;
+    }
+
+    /**
+     * Evicts an expired entry or the least recently accessed of EVICTION_SAMPLES entries after the scan hand.
+     */
+    private void evictOne(Table t, long now) {
+        final int capacity = t.keys.length;
+        int victim = -1;
+        int samples = 0;
+        int i = hand & t.mask;
+        for (int n = 0; n < capacity && samples < EVICTION_SAMPLES; n++, i = (i + 1) & t.mask) {
+            if (t.keys[i] == EMPTY) continue;
+            if (isExpired(t.written[i], now)) {
+                victim = i;
+                expirations.increment();
+                break;
+            }
+            if (victim < 0 || t.accessed[i] < t.accessed[victim]) victim = i;
+            samples++;
+        }
+        hand = i;
+        if (victim >= 0) {
+            removeSlot(t, victim);
+            evictions.increment();
+        }
+    }
+
+    private Table resize(Table t, int capacity) {
+        final Table resized = new Table(Math.max(MIN_CAPACITY, capacity));
+        for (int i = 0; i < t.keys.length; i++) {
+            final long key = t.keys[i];
+            if (key == EMPTY) continue;
+            final int slot = insertionSlot(resized, key);
+            resized.keys[slot] = key;
+            resized.values[slot] = t.values[i];
+            resized.accessed[slot] = t.accessed[i];
+            resized.written[slot] = t.written[i];
+            resized.size++;
+        }
+        table = resized;
+        return resized;
+    }
+
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1);
+    }
+
+    private boolean isExpired(int written, long now) {
+        final long ttl = ttlNanos;
+        return ttl > 0 && now - TimeUnit.SECONDS.toNanos(written) > ttl;
+    }
+
+    private long nanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private static int seconds(long nanos) {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(nanos);
+    }
+
+}
@@ -31,6 +31,20 @@ public class OmeroConf implements Serializable {
     private String userScaleout;
     private String passwordScaleout;
     private int serverNumber;
+    private int tileCacheSizeMB = TileCache.DEFAULT_SIZE_MB;
+    private String diskTileCacheDir = "";
+    private int diskTileCacheSizeMB = DiskTileCache.DEFAULT_SIZE_MB;
+    private int channelFetchConcurrency = OrbitImageBioformatsOmero.CHANNEL_FETCH_CONCURRENCY_DEFAULT;
+    private int maxReadersPerImage = ReaderPool.MAX_READERS_PER_IMAGE_DEFAULT;
+    private int maxStoresPerSession = ReaderPool.MAX_STORES_PER_SESSION_DEFAULT;
+    private int prefetchDepth = TilePrefetcher.PREFETCH_DEPTH_DEFAULT;
+    private double minMaxClipPercent = ChannelMinMax.CLIP_PERCENT_DEFAULT;
+    private boolean useRenderingSettings = false;
+    private int tileSizeMultiplier = OrbitImageBioformatsOmero.TILE_SIZE_MULTIPLIER_AUTO;
+    private boolean synthesizeLevels = true;
+    private double tissueMaskThreshold = TissueMask.THRESHOLD_DEFAULT;
+    private int groupMapSize = GroupResolver.MAX_ENTRIES_DEFAULT;
+    private int groupMapTTLMinutes = GroupResolver.TTL_MINUTES_DEFAULT;
 
     private OmeroConf() {
 
@@ -75,6 +89,20 @@ public class OmeroConf implements Serializable {
                 ", searchLimit=" + searchLimit +
                 ", userScaleout='" + userScaleout + '\'' +
                 ", serverNumber=" + serverNumber +
+                ", tileCacheSizeMB=" + tileCacheSizeMB +
+                ", diskTileCacheDir='" + diskTileCacheDir + '\'' +
+                ", diskTileCacheSizeMB=" + diskTileCacheSizeMB +
+                ", channelFetchConcurrency=" + channelFetchConcurrency +
+                ", maxReadersPerImage=" + maxReadersPerImage +
+                ", maxStoresPerSession=" + maxStoresPerSession +
+                ", prefetchDepth=" + prefetchDepth +
+                ", minMaxClipPercent=" + minMaxClipPercent +
+                ", useRenderingSettings=" + useRenderingSettings +
+                ", tileSizeMultiplier=" + tileSizeMultiplier +
+                ", synthesizeLevels=" + synthesizeLevels +
+                ", tissueMaskThreshold=" + tissueMaskThreshold +
+                ", groupMapSize=" + groupMapSize +
+                ", groupMapTTLMinutes=" + groupMapTTLMinutes +
                 '}';
     }
 
@@ -158,4 +186,155 @@ public class OmeroConf implements Serializable {
         this.serverNumber = serverNumber;
     }
 
+    /**
+     * Budget of the in-memory tile cache in megabytes (shared by all open images).
+     */
+    public int getTileCacheSizeMB() {
+        return tileCacheSizeMB;
+    }
+
+    public void setTileCacheSizeMB(int tileCacheSizeMB) {
+        this.tileCacheSizeMB = tileCacheSizeMB;
+    }
+
+    /**
+     * Directory of the persistent tile cache, empty to disable it.
+     */
+    public String getDiskTileCacheDir() {
+        return diskTileCacheDir;
+    }
+
+    public void setDiskTileCacheDir(String diskTileCacheDir) {
+        this.diskTileCacheDir = diskTileCacheDir;
+    }
+
+    public int getDiskTileCacheSizeMB() {
+        return diskTileCacheSizeMB;
+    }
+
+    public void setDiskTileCacheSizeMB(int diskTileCacheSizeMB) {
+        this.diskTileCacheSizeMB = diskTileCacheSizeMB;
+    }
+
+    /**
+     * Maximum number of channels of a tile which are read concurrently per image (1 = sequential).
+     */
+    public int getChannelFetchConcurrency() {
+        return channelFetchConcurrency;
+    }
+
+    public void setChannelFetchConcurrency(int channelFetchConcurrency) {
+        this.channelFetchConcurrency = channelFetchConcurrency;
+    }
+
+    /**
+     * Maximum number of pooled readers (pixel stores) per image, series and level.
+     */
+    public int getMaxReadersPerImage() {
+        return maxReadersPerImage;
+    }
+
+    public void setMaxReadersPerImage(int maxReadersPerImage) {
+        this.maxReadersPerImage = maxReadersPerImage;
+    }
+
+    /**
+     * Maximum number of open pixel stores of all images per server session.
+     */
+    public int getMaxStoresPerSession() {
+        return maxStoresPerSession;
+    }
+
+    public void setMaxStoresPerSession(int maxStoresPerSession) {
+        this.maxStoresPerSession = maxStoresPerSession;
+    }
+
+    /**
+     * Number of tiles prefetched ahead of the viewer/analysis access pattern (0 = no prefetching).
+     */
+    public int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    public void setPrefetchDepth(int prefetchDepth) {
+        this.prefetchDepth = prefetchDepth;
+    }
+
+    /**
+     * Percentage of pixels clipped at both ends of the channel histograms for the display window of 16bit images (0 = min/max).
+     */
+    public double getMinMaxClipPercent() {
+        return minMaxClipPercent;
+    }
+
+    public void setMinMaxClipPercent(double minMaxClipPercent) {
+        this.minMaxClipPercent = minMaxClipPercent;
+    }
+
+    /**
+     * Use channel windows and colours of the Omero rendering settings instead of computing them from the pixels.
+     */
+    public boolean isUseRenderingSettings() {
+        return useRenderingSettings;
+    }
+
+    public void setUseRenderingSettings(boolean useRenderingSettings) {
+        this.useRenderingSettings = useRenderingSettings;
+    }
+
+    /**
+     * Client tile size as multiple of the native tile size of the pixels store (0 = auto, at least 512 pixels).
+     */
+    public int getTileSizeMultiplier() {
+        return tileSizeMultiplier;
+    }
+
+    public void setTileSizeMultiplier(int tileSizeMultiplier) {
+        this.tileSizeMultiplier = tileSizeMultiplier;
+    }
+
+    /**
+     * Build missing or rejected pyramid levels from the nearest finer level (otherwise the next coarser level is used).
+     */
+    public boolean isSynthesizeLevels() {
+        return synthesizeLevels;
+    }
+
+    public void setSynthesizeLevels(boolean synthesizeLevels) {
+        this.synthesizeLevels = synthesizeLevels;
+    }
+
+    /**
+     * Minimum difference (0..255) to the background intensity of tissue pixels in the tissue mask.
+     */
+    public double getTissueMaskThreshold() {
+        return tissueMaskThreshold;
+    }
+
+    public void setTissueMaskThreshold(double tissueMaskThreshold) {
+        this.tissueMaskThreshold = tissueMaskThreshold;
+    }
+
+    /**
+     * Maximum number of cached object to group entries per object type (images, datasets, projects, annotations).
+     */
+    public int getGroupMapSize() {
+        return groupMapSize;
+    }
+
+    public void setGroupMapSize(int groupMapSize) {
+        this.groupMapSize = groupMapSize;
+    }
+
+    /**
+     * Minutes after which a cached object group is resolved again (0 = never), e.g. if objects are moved to other groups.
+     */
+    public int getGroupMapTTLMinutes() {
+        return groupMapTTLMinutes;
+    }
+
+    public void setGroupMapTTLMinutes(int groupMapTTLMinutes) {
+        this.groupMapTTLMinutes = groupMapTTLMinutes;
+    }
+
 }
@@ -44,6 +44,7 @@ import javax.media.jai.PlanarImage;
 import java.awt.image.*;
 import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -83,6 +84,9 @@ public class OmeroImage implements IOrbitImageMultiChannel, Closeable {
         this.imageId = imageId;
         this.level = level;
         this.group = ImageProviderOmero.getImageGroupCached(imageId);
+        if (group < 0) {   // not cached (yet) or expired, -1 would be the all groups context
+            group = new GroupResolver(gatewayAndCtx, Collections::emptyList).resolve(GroupResolver.Kind.IMAGE, imageId);
+        }
         // open image
         BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
         ImageData image = browse.getImage(gatewayAndCtx.getCtx(group), imageId);
@@ -442,19 +446,8 @@ public class OmeroImage implements IOrbitImageMultiChannel, Closeable {
      * @return an image filled with the r,g,b, data
      */
     private BufferedImage createImage(int width, int height, final byte[] r, final byte[] g, final byte[] b) {
-        BufferedImage bim = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        WritableRaster raster = bim.getRaster();
-        int[] data = new int[3];
-        int cnt = 0;
-        for (int y = 0; y < height; y++)
-            for (int x = 0; x < width; x++) {
-                data[0] = r[cnt];
-                data[1] = g[cnt];
-                data[2] = b[cnt];
-                raster.setPixel(x, y, data);
-                cnt++;
-            }
-
+        BufferedImage bim = PackedRGB.createImage(width, height);
+        PackedRGB.packPlanar(r, g, b, width, height, PackedRGB.getData(bim), width);
         return bim;
     }
 
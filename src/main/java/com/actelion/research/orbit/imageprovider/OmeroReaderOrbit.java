@@ -25,26 +25,18 @@ import loci.common.DateTools;
 import loci.formats.*;
 import loci.formats.meta.MetadataStore;
 import ome.xml.model.primitives.Timestamp;
-import omero.RString;
-import omero.RTime;
 import omero.ServerError;
-import omero.api.IPixelsPrx;
 import omero.api.RawPixelsStorePrx;
-import omero.gateway.exception.DSAccessException;
 import omero.gateway.exception.DSOutOfServiceException;
-import omero.gateway.facility.BrowseFacility;
-import omero.gateway.model.ImageData;
-import omero.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.ExecutionException;
 
-import static ome.formats.model.UnitsFactory.convertLength;
-import static ome.formats.model.UnitsFactory.convertTime;
-
 /**
  * Omero reader based on loci.ome.io.OmeroReader but with shared Omero connection.
  *
@@ -55,12 +47,18 @@ import static ome.formats.model.UnitsFactory.convertTime;
 public class OmeroReaderOrbit extends FormatReader {
 
     private static final Logger logger = LoggerFactory.getLogger(OmeroReaderOrbit.class);
+    private static volatile DiskTileCache diskTileCache = null;
     private ImageProviderOmero.GatewayAndCtx gatewayAndCtx;
     private int resolution = 0;
     private long groupId = -1;
     private RawPixelsStorePrx store;
     private long imageId;
+    private long pixelsId;
+    private long updateTime = 0; // image update timestamp for disk cache validation, 0 if unknown
     private boolean isRGBImage;
+    private volatile boolean hypercubeSupported = true;
+    private int nativeTileWidth = 0;   // tile size of the pixels store, 0 if unknown
+    private int nativeTileHeight = 0;
 
 
     public OmeroReaderOrbit() {
@@ -84,6 +82,14 @@ public class OmeroReaderOrbit extends FormatReader {
 
         //System.out.println("no,x,y,w,h: "+no+", "+x+", "+y+", "+w+", "+h);
         final int[] zct = FormatTools.getZCTCoords(this, no);
+        final DiskTileCache diskCache = diskTileCache;
+        DiskTileCache.TileKey diskKey = null;
+        if (diskCache != null && updateTime > 0) {
+            diskKey = new DiskTileCache.TileKey(pixelsId, resolution, zct[0], zct[1], zct[2], x, y, w, h);
+            if (diskCache.read(diskKey, updateTime, buf)) {
+                return buf;
+            }
+        }
         byte[] plane;
         try {
             plane = store.getTile(zct[0], zct[1], zct[2], x, y, w, h);
@@ -103,16 +109,117 @@ public class OmeroReaderOrbit extends FormatReader {
             }
         }
 
+        if (diskKey != null) {
+            diskCache.write(diskKey, updateTime, plane);
+        }
         System.arraycopy(plane,0,buf,0,plane.length);
         return plane;
     }
 
-    private void renewProxy() throws DSOutOfServiceException, DSAccessException, ExecutionException, ServerError {
+    /**
+     * Reads the same region of several channels (same z and t) with RawPixelsStore.getHypercube() calls.
+     * Channels which are not in the disk cache are read with one hypercube per contiguous run of requested channels
+     * (e.g. channels 0,1,2,6,7 with two hypercubes), so channels which are not requested are never transferred.
+     * Single channels and channels the hypercube read failed for are read one by one with getTile() (see openBytes()).
+     * If the server rejects the hypercube request, hypercube reads are not tried again with this reader.
+     *
+     * @return one plane per requested channel, in the same format as openBytes() returns it
+     */
+    public byte[][] openBytesChannels(int z, int[] channels, int t, int x, int y, int w, int h)
+            throws FormatException, IOException
+    {
+        FormatTools.assertId(currentId, true, 1);
+        final int planeSize = w * h * FormatTools.getBytesPerPixel(getPixelType());
+        final byte[][] planes = new byte[channels.length][];
+        final DiskTileCache diskCache = diskTileCache;
+        final boolean useDiskCache = diskCache != null && updateTime > 0;
+        final TreeSet<Integer> missing = new TreeSet<>();
+        for (int i = 0; i < channels.length; i++) {
+            if (useDiskCache) {
+                byte[] buf = new byte[planeSize];
+                if (diskCache.read(new DiskTileCache.TileKey(pixelsId, resolution, z, channels[i], t, x, y, w, h), updateTime, buf)) {
+                    planes[i] = buf;
+                    continue;
+                }
+            }
+            missing.add(channels[i]);
+        }
+        if (missing.isEmpty()) return planes;
+
+        int runStart = -1;
+        int runEnd = -2;
+        for (int c : missing) {
+            if (c != runEnd + 1) {
+                readRun(z, channels, t, x, y, w, h, runStart, runEnd, planeSize, planes);
+                runStart = c;
+            }
+            runEnd = c;
+        }
+        readRun(z, channels, t, x, y, w, h, runStart, runEnd, planeSize, planes);
+
+        for (int i = 0; i < channels.length; i++) {
+            if (planes[i] == null) {
+                planes[i] = new byte[planeSize];
+                openBytes(getIndex(z, channels[i], t), planes[i], x, y, w, h);
+            }
+        }
+        return planes;
+    }
+
+    /**
+     * Reads the channels minC..maxC with one hypercube and fills the planes of these channels.
+     * Does nothing for single channels (or if hypercube reads are not supported), openBytesChannels() reads them one by one.
+     */
+    private void readRun(int z, int[] channels, int t, int x, int y, int w, int h, int minC, int maxC, int planeSize, byte[][] planes) {
+        if (minC < 0 || maxC <= minC || !hypercubeSupported) return;
+        final int sizeC = maxC - minC + 1;
+        try {
+            byte[] cube = store.getHypercube(Arrays.asList(x, y, z, minC, t), Arrays.asList(w, h, 1, sizeC, 1), Arrays.asList(1, 1, 1, 1, 1));
+            if (cube != null && cube.length == (long) planeSize * sizeC) {
+                final DiskTileCache diskCache = diskTileCache;
+                for (int i = 0; i < channels.length; i++) {
+                    if (planes[i] != null || channels[i] < minC || channels[i] > maxC) continue;
+                    final int offset = (channels[i] - minC) * planeSize;
+                    planes[i] = Arrays.copyOfRange(cube, offset, offset + planeSize);
+                    if (diskCache != null && updateTime > 0) {
+                        diskCache.write(new DiskTileCache.TileKey(pixelsId, resolution, z, channels[i], t, x, y, w, h), updateTime, planes[i]);
+                    }
+                }
+                return;
+            }
+            logger.info("unexpected hypercube size for image " + imageId + ", using per channel reads");
+            hypercubeSupported = false;
+        } catch (ServerError e) {
+            logger.info("hypercube read rejected for image " + imageId + " (" + e.getClass().getSimpleName() + "), using per channel reads");
+            hypercubeSupported = false;
+        } catch (Exception e) {
+            logger.debug("hypercube read failed, using per channel reads", e);   // e.g. connection problem, openBytes() renews the store
+        }
+    }
+
+    /**
+     * Tile width of the pixels store (the server reads/decodes tiles of this size), 0 if unknown.
+     */
+    public int getNativeTileWidth() {
+        return nativeTileWidth;
+    }
+
+    /**
+     * Tile height of the pixels store, 0 if unknown.
+     */
+    public int getNativeTileHeight() {
+        return nativeTileHeight;
+    }
+
+    /**
+     * False if the server rejected a hypercube request (see openBytesChannels()).
+     */
+    public boolean isHypercubeSupported() {
+        return hypercubeSupported;
+    }
+
+    private void renewProxy() throws DSOutOfServiceException, ServerError {
             store = gatewayAndCtx.getGateway().getPixelsStore(gatewayAndCtx.getCtx(groupId));
-            BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            ImageData image = browse.getImage(gatewayAndCtx.getCtx(groupId), imageId);
-            omero.model.Image img = image.asImage();
-            long pixelsId = img.getPixels(0).getId().getValue();
             store.setPixelsId(pixelsId, false);
             int omeroRes = Math.max(0,(store.getResolutionLevels() - 1) - resolution);
             store.setResolutionLevel(omeroRes);
@@ -186,33 +293,29 @@ public class OmeroReaderOrbit extends FormatReader {
         try {
 
             store = gatewayAndCtx.getGateway().getPixelsStore(gatewayAndCtx.getCtx(groupId));
+            ImageDescriptor desc = ImageDescriptor.get(gatewayAndCtx, groupId, iid, store);
+            logger.debug("image descriptor: "+desc);
 
-            BrowseFacility browse = gatewayAndCtx.getGateway().getFacility(BrowseFacility.class);
-            ImageData image = browse.getImage(gatewayAndCtx.getCtx(groupId), iid);
-            omero.model.Image img = image.asImage();
-
-            long pixelsId = img.getPixels(0).getId().getValue();
+            pixelsId = desc.getPixelsId();
             store.setPixelsId(pixelsId, false);
+            updateTime = desc.getUpdateTime();
 
-            final int sizeX = store.getResolutionDescriptions()[resolution].sizeX;
-            final int sizeY = store.getResolutionDescriptions()[resolution].sizeY;
+            final int sizeX = desc.getSizeX(resolution);
+            final int sizeY = desc.getSizeY(resolution);
 
-            int omeroRes = Math.max(0,(store.getResolutionLevels() - 1) - resolution);
+            int omeroRes = Math.max(0,(desc.getResolutionLevels() - 1) - resolution);
             logger.trace("trying to set resolution level "+resolution+" / "+omeroRes);
             store.setResolutionLevel(omeroRes);
+            try {
+                int[] tileSize = store.getTileSize();
+                nativeTileWidth = tileSize[0];
+                nativeTileHeight = tileSize[1];
+                logger.trace("native tile size: "+nativeTileWidth+" x "+nativeTileHeight);
+            } catch (ServerError e) {
+                logger.debug("cannot read the tile size of pixels "+pixelsId, e);
+            }
 
-            long pixId = image.getDefaultPixels().getId();  // to be replaced by pixelsId?
-            logger.debug("pixId: "+pixId+" / imageId: "+imageId);
-            logger.debug("imageGroup: "+image.getGroupId()+" security context: "+groupId);
-
-            IPixelsPrx pixelService = gatewayAndCtx.getGateway().getPixelsService(gatewayAndCtx.getCtx(groupId));
-            Pixels pix = pixelService.retrievePixDescription(pixId);
-            logger.debug("pixels: "+pix);
-            if (pix==null) throw new FormatException("Error retrieving pixels object for image "+imageId+", pixelsId: "+pixId+" groupId: "+groupId);
-            final int sizeZ = pix.getSizeZ()!=null? pix.getSizeZ().getValue():0;
-            final int sizeC = pix.getSizeC()!=null? pix.getSizeC().getValue():0;
-            final int sizeT = pix.getSizeT()!=null? pix.getSizeT().getValue():0;
-            final String pixelType = pix.getPixelsType().getValue().getValue();
+            logger.debug("pixelsId: "+pixelsId+" / imageId: "+imageId+" security context: "+groupId);
 
             // populate metadata
 
@@ -221,31 +324,24 @@ public class OmeroReaderOrbit extends FormatReader {
             CoreMetadata m = core.get(0);
             m.sizeX = sizeX;
             m.sizeY = sizeY;
-            m.sizeZ = sizeZ;
-            m.sizeC = sizeC;
-            m.sizeT = sizeT;
+            m.sizeZ = desc.getSizeZ();
+            m.sizeC = desc.getSizeC();
+            m.sizeT = desc.getSizeT();
             m.rgb = false;
             m.littleEndian = false;
             m.dimensionOrder = "XYZCT";
-            m.imageCount = sizeZ * sizeC * sizeT;
-            m.pixelType = FormatTools.pixelTypeFromString(pixelType);
-            m.resolutionCount = store.getResolutionLevels();
+            m.imageCount = m.sizeZ * m.sizeC * m.sizeT;
+            m.pixelType = FormatTools.pixelTypeFromString(desc.getPixelType());
+            m.resolutionCount = desc.getResolutionLevels();
 
             logger.trace("Width x Height: "+m.sizeX+" x "+m.sizeY);
 
-            Length x = pix.getPhysicalSizeX();
-            Length y = pix.getPhysicalSizeY();
-            Length z = pix.getPhysicalSizeZ();
-            Time t = pix.getTimeIncrement();
-
-
-            ome.units.quantity.Time t2 = convertTime(t);
-            ome.units.quantity.Length px = convertLength(x);
-            ome.units.quantity.Length py = convertLength(y);
-            ome.units.quantity.Length pz = convertLength(z);
+            ome.units.quantity.Time t2 = desc.getTimeIncrement();
+            ome.units.quantity.Length px = desc.getPhysicalSizeX();
+            ome.units.quantity.Length py = desc.getPhysicalSizeY();
+            ome.units.quantity.Length pz = desc.getPhysicalSizeZ();
 
-            RString imageName = img.getName();
-            String name = imageName == null ? null : imageName.getValue();
+            String name = desc.getName();
 
             if (name != null) {
                 currentId = name;
@@ -254,10 +350,8 @@ public class OmeroReaderOrbit extends FormatReader {
                 currentId = "Image ID " + iid;
             }
 
-            RString imgDescription = img.getDescription();
-            String description =
-                    imgDescription == null ? null : imgDescription.getValue();
-            RTime date = img.getAcquisitionDate();
+            String description = desc.getDescription();
+            Long date = desc.getAcquisitionDate();
 
             MetadataStore metadataStore = getMetadataStore();
 
@@ -266,7 +360,7 @@ public class OmeroReaderOrbit extends FormatReader {
             metadataStore.setImageDescription(description, 0);
             if (date != null) {
                 metadataStore.setImageAcquisitionDate(new Timestamp(
-                                DateTools.convertDate(date.getValue(), (int) DateTools.UNIX_EPOCH)),
+                                DateTools.convertDate(date, (int) DateTools.UNIX_EPOCH)),
                         0);
             }
 
@@ -283,24 +377,19 @@ public class OmeroReaderOrbit extends FormatReader {
                 metadataStore.setPixelsTimeIncrement(t2, 0);
             }
 
-            List<Channel> channels = pix.copyChannels();
+            List<ImageDescriptor.ChannelDescriptor> channels = desc.getChannels();
             for (int c=0; c<channels.size(); c++) {
-                LogicalChannel channel = channels.get(c).getLogicalChannel();
+                ImageDescriptor.ChannelDescriptor channel = channels.get(c);
 
-                Length emWave = channel.getEmissionWave();
-                Length exWave = channel.getExcitationWave();
-                Length pinholeSize = channel.getPinHoleSize();
-                RString cname = channel.getName();
-
-                ome.units.quantity.Length emission = convertLength(emWave);
-                ome.units.quantity.Length excitation = convertLength(exWave);
-                String channelName = cname == null ? null : cname.getValue();
-                ome.units.quantity.Length pinhole = convertLength(pinholeSize);
+                ome.units.quantity.Length emission = channel.getEmissionWave();
+                ome.units.quantity.Length excitation = channel.getExcitationWave();
+                String channelName = channel.getName();
+                ome.units.quantity.Length pinhole = channel.getPinholeSize();
 
                 if (channelName != null) {
                     metadataStore.setChannelName(channelName, 0, c);
                 }
-                if (pinholeSize != null) {
+                if (pinhole != null) {
                     metadataStore.setChannelPinholeSize(pinhole, 0, c);
                 }
                 if (emission != null && emission.value().doubleValue() > 0) {
@@ -312,15 +401,7 @@ public class OmeroReaderOrbit extends FormatReader {
             }
 
             // check if it is a real rgb image (r,g,b, channels, e.g. brightfield)
-            isRGBImage = true;
-            if (channels.size()==3) {
-                LogicalChannel red = channels.get(0).getLogicalChannel();
-                LogicalChannel green = channels.get(1).getLogicalChannel();
-                LogicalChannel blue = channels.get(2).getLogicalChannel();
-                if (red.getName()!=null && red.getName().getValue()!=null && !(red.getName().getValue().equalsIgnoreCase("red")||red.getName().getValue().equalsIgnoreCase("tl brightfield"))) isRGBImage = false;
-                else if (green.getName()!=null && green.getName().getValue()!=null && !(green.getName().getValue().equalsIgnoreCase("green")||red.getName().getValue().equalsIgnoreCase("tl brightfield"))) isRGBImage = false;
-                else if (blue.getName()!=null && blue.getName().getValue()!=null && !(blue.getName().getValue().equalsIgnoreCase("blue")||red.getName().getValue().equalsIgnoreCase("tl brightfield"))) isRGBImage = false;
-            } else isRGBImage = false;
+            isRGBImage = desc.isRGBImage();
             logger.debug("isRGBImage: "+isRGBImage);
 
             logger.trace("init end");
@@ -331,15 +412,24 @@ public class OmeroReaderOrbit extends FormatReader {
         } catch (DSOutOfServiceException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
-            e.printStackTrace();
-        } catch (DSAccessException e) {
-            e.printStackTrace();
+            throw new FormatException("Error loading metadata of image " + imageId, e.getCause());
         }
         finally {
             // don't close store here - it sould be closed from external via close()
         }
     }
 
+    /**
+     * Optional persistent tile cache shared by all readers (null = disabled).
+     */
+    public static DiskTileCache getDiskTileCache() {
+        return diskTileCache;
+    }
+
+    public static void setDiskTileCache(DiskTileCache diskTileCache) {
+        OmeroReaderOrbit.diskTileCache = diskTileCache;
+    }
+
     public ImageProviderOmero.GatewayAndCtx getGatewayAndCtx() {
         return gatewayAndCtx;
     }
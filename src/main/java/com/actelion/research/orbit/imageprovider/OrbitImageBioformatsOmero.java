@@ -30,7 +30,8 @@ import loci.common.services.ServiceFactory;
 import loci.formats.ChannelMerger;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
-import loci.formats.MinMaxCalculator;
+import loci.formats.FormatTools;
+import loci.formats.ReaderWrapper;
 import loci.formats.gui.AWTImageTools;
 import loci.formats.gui.BufferedImageReader;
 import loci.formats.meta.IMetadata;
@@ -44,22 +45,46 @@ import java.awt.image.*;
 import java.io.IOException;
 import java.util.*;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
 public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
 
     private static final Logger logger = LoggerFactory.getLogger(OrbitImageBioformatsOmero.class);
-    public static final Cache<ROIDef, BufferedImage> tileCache = CacheBuilder.
-            newBuilder().
-                    maximumSize(40). // 40 tiles  - should be enough to fill a screen
-                    expireAfterWrite(5, TimeUnit.MINUTES).
-                    build();
+    public static final TileCache tileCache = new TileCache(TileCache.DEFAULT_SIZE_MB * 1024L * 1024L);
+    private static final SingleFlight<ROIDef, WritableRaster> inFlightTiles = new SingleFlight<>();
     public static final int TILE_SIZE_DEFAULT = 512;
+    public static final int CHANNEL_FETCH_CONCURRENCY_DEFAULT = 4;
+    public static final int TILE_SIZE_MULTIPLIER_AUTO = 0;
+    private static final int TILE_SIZE_MAX = 4096;
+    private static final int CHANNEL_FETCH_THREADS = 16;
+    private static final int[] RGB_CHANNELS = new int[]{0, 1, 2};
+    private static final ExecutorService channelFetchPool = Executors.newFixedThreadPool(CHANNEL_FETCH_THREADS, new ThreadFactory() {
+        private final AtomicLong threadCount = new AtomicLong(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "omero-channel-fetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final int REGION_READ_THREADS = 8;
+    private static final ExecutorService regionReadPool = Executors.newFixedThreadPool(REGION_READ_THREADS, new ThreadFactory() {
+        private final AtomicLong threadCount = new AtomicLong(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "omero-region-read-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static volatile int channelFetchConcurrency = CHANNEL_FETCH_CONCURRENCY_DEFAULT;
+    private static volatile int tileSizeMultiplier = TILE_SIZE_MULTIPLIER_AUTO;
+    private static volatile boolean synthesizeLevels = true;
+    private static final double LEVEL_ASPECT_RATIO_TOLERANCE = 0.05d;
+    private static volatile boolean useRenderingSettings = false;
     final int maxThumbWidth = 300;
-    final protected ThreadLocal<BufferedImageReader> reader;
-    final List<BufferedImageReader> allReaders = Collections.synchronizedList(new ArrayList<BufferedImageReader>());
+    final protected ReaderPool readerPool;
     private String filename;
     private String originalFilename;
     private int optimalTileWidth;
@@ -81,7 +106,11 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
     private long height;
     private boolean is16bit = false;
     protected static final Map<FilenameSeries,MinMaxPerChan> minMaxCache = new ConcurrentHashMap<>();
+    private static final Cache<FilenameSeries, TissueMask> tissueMasks = CacheBuilder.newBuilder().maximumSize(100).build();
     protected MinMaxPerChan minMaxAnalysis;
+    private volatile CompletableFuture<MinMaxPerChan> minMaxFuture;
+    private volatile RenderingSettings renderingSettings;
+    private volatile boolean renderingSettingsLoaded = false;
     private String[] channelNames;
     protected static final ColorModel rgbColorModel = new BufferedImage(1,1,BufferedImage.TYPE_INT_RGB).getColorModel();
     private int series = 0;
@@ -94,8 +123,18 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
     private long imageId;
     private long groupId;
     private AtomicLong hueUpdateTime = new AtomicLong(0);
+    private final Semaphore channelFetchPermits = new Semaphore(Math.max(0, channelFetchConcurrency - 1));
+    private TilePrefetcher prefetcher;
 
     public OrbitImageBioformatsOmero(final String filename, final int level, final int series, boolean useCache, ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long imageId, long groupId) throws IOException, FormatException {
+        this(filename, level, series, useCache, gatewayAndCtx, imageId, groupId, useCache);
+    }
+
+    /**
+     * @param prefetch true to prefetch tiles of this level (needs useCache), false for images which do not provide the tiles of the level,
+     *                 which must not replace the prefetcher of the real image of the level (e.g. synthesized levels)
+     */
+    protected OrbitImageBioformatsOmero(final String filename, final int level, final int series, boolean useCache, ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long imageId, long groupId, boolean prefetch) throws IOException, FormatException {
         this.originalFilename = filename;
         this.series = series;
         this.filename = filename+"["+level+"]"+" ["+ series +"]";    // level/series here is important because filename is part of key for hashing!
@@ -109,9 +148,9 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
 
 
 
-        reader = new ThreadLocal<BufferedImageReader>() {
+        readerPool = new ReaderPool(this.filename, gatewayAndCtx, new ReaderPool.ReaderFactory() {
             @Override
-            protected BufferedImageReader initialValue() {
+            public BufferedImageReader create() {
                 try {
                     logger.debug("init bioformats: "+filename+" ["+level+"]"+" ["+ series +"]");
                     IFormatReader r = getIFormatReader(filename, level);
@@ -137,6 +176,15 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
                     }
 
                     BufferedImageReader bir;
+                    if (useRenderingSettings && !renderingSettingsLoaded) {   // only looked up for the first reader
+                        renderingSettingsLoaded = true;
+                        final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+                        final RenderingSettings rs = desc == null ? null : RenderingSettings.get(gatewayAndCtx, OrbitImageBioformatsOmero.this.groupId, desc.getPixelsId());
+                        if (rs != null && rs.getSizeC() == r.getSizeC()) {
+                            renderingSettings = rs;
+                        }
+                    }
+
                     if (doMergeChannels(r)) {
                         // fluo images
 
@@ -152,63 +200,61 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
                             }
                         }
 
-                        // build hueMap
-                        hueMap = getHues();
+                        // build hueMap (only once, readers are recreated by the pool and must not replace edited values)
+                        if (hueMap == null) {
+                            hueMap = getHues();
+                        }
                     }
 
                     is16bit = r.getBitsPerPixel()>8;
                     logger.debug("is16bit: "+is16bit);
-                    synchronized (minMaxCache) {
-                        final FilenameSeries key = new FilenameSeries(originalFilename,series);
-                        if (is16bit && !minMaxCache.containsKey((key)))
-                        {
-                            IFormatReader r2 = getIFormatReader(filename, r.getResolutionCount() - 1);
-                            r2.setId("omeroorbit:iid="+imageId);
-                            r2.setSeries(series);
-                            MinMaxCalculator minMax = new MinMaxCalculator(r2);
-                            int[] nos = minMax.getZCTCoords(0);
-                            int z = nos[0], t = nos[2];
-                            for (int ic=0; ic<minMax.getSizeC(); ic++) {
-                                int idx = minMax.getIndex(z, ic, t);
-                                minMax.openBytes(idx); // needed to make min,max available
-                            }
-
-                            int[] min = new int[r.getSizeC()];
-                            int[] max = new int[r.getSizeC()];
-                            for (int c = 0; c < minMax.getSizeC(); c++) {
-                               Double tmin = minMax.getChannelKnownMinimum(c);
-                                Double tmax = minMax.getChannelKnownMaximum(c);
-                                min[c] = (int) tmin.doubleValue();
-                                max[c] = (int) tmax.doubleValue();
-                                logger.trace("channel: "+c+"  minIntens: "+min[c]+" maxIntens: "+max[c]);
-                            }
-                            minMaxCache.put(key,new MinMaxPerChan(min,max));
-                            r2.close();
+                    final FilenameSeries key = new FilenameSeries(originalFilename,series);
+                    if (is16bit && renderingSettings != null) {
+                        // channel windows of the rendering settings, no pixels have to be read
+                        if (minMaxCache.putIfAbsent(key, renderingSettings.getMinMax()) == null) {
+                            AutoscaleLut.invalidate(originalFilename, series);
                         }
+                    } else if (is16bit && minMaxFuture == null && !minMaxCache.containsKey(key)) {
+                        // computed asynchronously, getMinMax() waits for it
+                        final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+                        final int lowestLevel = r.getResolutionCount() - 1;
+                        minMaxFuture = desc == null ? CompletableFuture.completedFuture(ChannelMinMax.fullRange(r.getSizeC()))
+                                : ChannelMinMax.request(gatewayAndCtx, OrbitImageBioformatsOmero.this.groupId, desc, series, Math.max(r.getSizeC(), desc.getSizeC()), r.getPixelType(), () -> {
+                            IFormatReader r2 = getIFormatReader(filename, lowestLevel);
+                            r2.setId("omeroorbit:iid=" + imageId);
+                            r2.setSeries(series);
+                            return r2;
+                        });
                     }
 
-                    if (is16bit) {
-                        minMaxAnalysis = new MinMaxPerChan(new int[r.getSizeC()],new int[r.getSizeC()]);
-                        Arrays.fill(minMaxAnalysis.getMax(), RawUtilsCommon.MAX_INTENS_16BIT);
+                    if (is16bit && minMaxAnalysis == null) {   // only once, it might have been edited since
+                        if (renderingSettings != null) {
+                            minMaxAnalysis = renderingSettings.getMinMax();
+                        } else {
+                            minMaxAnalysis = new MinMaxPerChan(new int[r.getSizeC()], new int[r.getSizeC()]);
+                            Arrays.fill(minMaxAnalysis.getMax(), RawUtilsCommon.MAX_INTENS_16BIT);
+                        }
                     }
 
                     bir = BufferedImageReader.makeBufferedImageReader(r);
-                    synchronized (allReaders) {
-                        allReaders.add(bir); // remember for closing
-                    }
+                    bir.setResolution(OrbitImageBioformatsOmero.this.level);
                     return bir;
                 } catch (Exception e) {
                     e.printStackTrace();
                     return null;
                 }
             }
-        };
+        });
 
-        if (reader.get()==null) {
+        BufferedImageReader firstReader;
+        try {
+            firstReader = readerPool.borrow();
+        } catch (IOException e) {
+            readerPool.close();
             throw new OrbitImageServletException("could not initialize reader for image " + filename);
         }
-
-        numLevels =  reader.get().getResolutionCount();
+        numLevels =  firstReader.getResolutionCount();
+        readerPool.giveBack(firstReader);
         //numLevels = getRealResolutionCount(reader.get());
 
         logger.debug("actual level: "+this.level+" / numLevels: "+numLevels);
@@ -217,29 +263,31 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
             levelOk = true;
             if (this.level >= numLevels) {
                 close();
+                if (synthesizeLevels) throw new LevelNotAvailableException("image pyramid level " + this.level + " does not exist for image " + filename);
                 throw new OrbitImageServletException("image pyramid level " + this.level + " does not exist for image " + filename);
             }
 
-            width = reader.get().getSizeX();
-            height = reader.get().getSizeY();
-            numBandsOriginal = reader.get().getSizeC();
-
-            BufferedImageReader bir = reader.get();
+            BufferedImageReader bir = readerPool.borrow();
             if (bir.getResolution()!=this.level) bir.setResolution(this.level);
-//            optimalTileWidth = bir.getOptimalTileWidth();
-//            optimalTileHeight = bir.getOptimalTileHeight();
-//            if (optimalTileWidth< TILE_SIZE_DEFAULT && width>=TILE_SIZE_DEFAULT) optimalTileWidth = TILE_SIZE_DEFAULT;
-//            if (optimalTileHeight< TILE_SIZE_DEFAULT && height>=TILE_SIZE_DEFAULT) optimalTileHeight = TILE_SIZE_DEFAULT;
-
-            // bir.getOptimalTileWidth() seems to return the full with of the image, thus we use a fixed tilesize here
-            optimalTileWidth = TILE_SIZE_DEFAULT;
-            optimalTileHeight = TILE_SIZE_DEFAULT;
+            width = bir.getSizeX();
+            height = bir.getSizeY();
+            numBandsOriginal = bir.getSizeC();
+            // bir.getOptimalTileWidth() returns the full with of the image, thus the tile grid is aligned to the tile size of the pixels store
+            final OmeroReaderOrbit omeroReader = getOmeroReader(bir);
+            optimalTileWidth = getTileSize(omeroReader != null ? omeroReader.getNativeTileWidth() : 0, width, tileSizeMultiplier);
+            optimalTileHeight = getTileSize(omeroReader != null ? omeroReader.getNativeTileHeight() : 0, height, tileSizeMultiplier);
 
             logger.debug("tile size: "+optimalTileWidth+" x "+optimalTileHeight);
 
+            if (synthesizeLevels && this.level > 0 && !hasLevelAspectRatio(width, height)) {
+                readerPool.giveBack(bir);
+                close();
+                throw new LevelNotAvailableException("image pyramid level " + this.level + " has a different aspect ratio (" + width + " x " + height + "). File: " + filename);
+            }
 
             originalBitsPerSample = bir.getBitsPerPixel();
             interleaved = bir.isInterleaved();
+            readerPool.giveBack(bir);
             try {
                 BufferedImage img = getPlane(0, 0, null,true, null);
                 colorModel = img.getColorModel();
@@ -251,13 +299,14 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
                 minX = img.getMinX();
                 minY = img.getMinY();
             } catch (Exception e) {
+                if (synthesizeLevels && this.level > 0) {   // the level is built from a finer level instead (see OrbitImageSynthesizedOmero)
+                    close();
+                    throw new LevelNotAvailableException("error loading level " + this.level + ". File: " + filename);
+                }
                 if (this.level<numLevels-1) {
                     this.level++;
-                    synchronized (allReaders) {
-                        for (IFormatReader r : allReaders) {
-                            r.setResolution(this.level);
-                        }
-                    }
+                    final int nextLevel = this.level;
+                    readerPool.forEachReader(r -> r.setResolution(nextLevel));
                     levelOk=false;
                     logger.debug("error loading level "+this.level+" trying next level");
                 }  else {
@@ -268,9 +317,29 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
 
         } while (!levelOk);
 
+        if (useCache && prefetch) {   // prefetched tiles are kept in the tile cache
+            prefetcher = new TilePrefetcher(originalFilename + " [" + series + "]", this.level, width, height, optimalTileWidth, optimalTileHeight, this::prefetchTile);
+            prefetcher.register();
+        }
         logger.info(filename+" loaded ["+width+" x "+height+"]");
     }
 
+    /**
+     * False if the aspect ratio of this level differs from level 0 (e.g. a label or macro image stored as resolution level).
+     */
+    private boolean hasLevelAspectRatio(long levelWidth, long levelHeight) {
+        return hasLevelAspectRatio(ImageDescriptor.getIfPresent(imageId), levelWidth, levelHeight);
+    }
+
+    /**
+     * hasLevelAspectRatio() with the image descriptor, true if the descriptor is null.
+     */
+    static boolean hasLevelAspectRatio(ImageDescriptor desc, long levelWidth, long levelHeight) {
+        if (desc == null || levelHeight <= 0 || desc.getSizeY(0) <= 0) return true;
+        final double ratio = desc.getSizeX(0) / (double) desc.getSizeY(0);
+        return Math.abs(levelWidth / (double) levelHeight - ratio) < LEVEL_ASPECT_RATIO_TOLERANCE;
+    }
+
     /**
      * Checks if it is not already RGB, sizeC==3 and rgbChannelCount==1
      * Deprecated (does not work for all images). Use OmeroReaderOrbit.isRGBImage() instead.
@@ -328,17 +397,9 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
     @Override
     public Raster getTileData(int tileX, int tileY, float[] channelContributions, boolean analysis, final float[] analysisHues) {
         try {
-           BufferedImage img = getPlane(tileX, tileY, (analysis||channelContributions!=null)?channelContributions:this.channelContributions, analysis, analysisHues);
-           // ensure tiles have always full tileWidth and tileHeight (even at borders)
-           if (img.getWidth()!=getTileWidth() || img.getHeight()!=getTileHeight())
-           {
-               BufferedImage bi = new BufferedImage(getTileWidth(), getTileHeight(), img.getType());
-               bi.getGraphics().drawImage(img, 0, 0, null);
-               img = bi;
-           }
-
-          // set correct bounds
-          Raster r = img.getData().createTranslatedChild(PlanarImage.tileXToX(tileX, img.getTileGridXOffset(), getTileWidth()), PlanarImage.tileYToY(tileY, img.getTileGridYOffset(), getTileHeight()));
+           BufferedImage img = getTileImage(tileX, tileY, (analysis||channelContributions!=null)?channelContributions:this.channelContributions, analysis, analysisHues, null);
+          // the plane has always full tileWidth and tileHeight (even at borders), thus the raster can be used directly with the correct bounds (no copy)
+          Raster r = img.getRaster().createWritableTranslatedChild(PlanarImage.tileXToX(tileX, img.getTileGridXOffset(), getTileWidth()), PlanarImage.tileYToY(tileY, img.getTileGridYOffset(), getTileHeight()));
           return r;
 
         } catch (Exception e) {
@@ -347,7 +408,226 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
         }
     }
 
+    /**
+     * Tile as TYPE_INT_RGB image of full tile size (see readTileImage()), used by getTileData() and TileStream.
+     * Tells the prefetcher about the access and marks the read as demand read.
+     *
+     * @param dest tile sized TYPE_INT_RGB image which may be used for the result (e.g. a pooled buffer), or null
+     */
+    protected final BufferedImage getTileImage(int tileX, int tileY, float[] channelContributions, boolean analysis, final float[] analysisHues, BufferedImage dest) throws Exception {
+        final TilePrefetcher tilePrefetcher = prefetcher;
+        if (tilePrefetcher != null) tilePrefetcher.tileAccessed(tileX, tileY);
+        TilePrefetcher.beginDemandRead();
+        try {
+            return readTileImage(tileX, tileY, channelContributions, analysis, analysisHues, dest);
+        } finally {
+            TilePrefetcher.endDemandRead();
+        }
+    }
+
+    /**
+     * Reads a tile for getTileImage(), subclasses override this to read tiles in another way (e.g. rendered by the server).
+     */
+    protected BufferedImage readTileImage(int tileX, int tileY, float[] channelContributions, boolean analysis, final float[] analysisHues, BufferedImage dest) throws Exception {
+        return getPlane(tileX, tileY, channelContributions, analysis, analysisHues, dest);
+    }
+
+    /**
+     * Reads an arbitrary region of this level. The region is split along the tile grid, the tiles are fetched in parallel
+     * (through the tile cache) and written directly into one raster.
+     *
+     * @param level    pyramid level, must be the level of this image
+     * @param channels raw channels to read (one band per channel, raw sample type), or null for the rendered rgb image (one packed int band)
+     * @param analysis rendering mode for channels==null (see getTileData())
+     * @return raster with the bounds x, y, w, h
+     */
+    public WritableRaster readRegion(final int x, final int y, final int w, final int h, int level, final int[] channels, final boolean analysis) throws Exception {
+        if (level != this.level) {
+            throw new IllegalArgumentException("level " + level + " requested but this image provides level " + this.level);
+        }
+        return readRegion(x, y, w, h, channels, analysis ? null : this.channelContributions, analysis, null);
+    }
+
+    /**
+     * readRegion() of this level with explicit channel contributions and analysis hues for the rendered rgb image (see getTileData()).
+     */
+    protected WritableRaster readRegion(final int x, final int y, final int w, final int h, final int[] channels, final float[] channelContributions, final boolean analysis, final float[] analysisHues) throws Exception {
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+            throw new IllegalArgumentException("region " + x + "," + y + " " + w + "x" + h + " outside of image " + width + "x" + height);
+        }
+        final WritableRaster dest;
+        if (channels == null) {
+            dest = rgbColorModel.createCompatibleWritableRaster(w, h).createWritableTranslatedChild(x, y);
+        } else {
+            BufferedImageReader bir = readerPool.borrow();
+            final int dataType;
+            try {
+                final int sizeC = doMergeChannels(bir) ? bir.getSizeC() : bir.getRGBChannelCount();
+                for (int c : channels) {
+                    if (c < 0 || c >= sizeC) throw new IllegalArgumentException("channel " + c + " does not exist (" + sizeC + " channels)");
+                }
+                dataType = getDataType(bir.getPixelType());
+            } finally {
+                readerPool.giveBack(bir);
+            }
+            dest = Raster.createWritableRaster(new BandedSampleModel(dataType, w, h, channels.length), new Point(x, y));
+        }
+
+        final int tx0 = x / optimalTileWidth, tx1 = (x + w - 1) / optimalTileWidth;
+        final int ty0 = y / optimalTileHeight, ty1 = (y + h - 1) / optimalTileHeight;
+        final List<Future<?>> futures = new ArrayList<>((tx1 - tx0 + 1) * (ty1 - ty0 + 1));
+        TilePrefetcher.beginDemandRead();
+        try {
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    final int tileX = tx, tileY = ty;
+                    futures.add(regionReadPool.submit(() -> {
+                        readRegionTile(tileX, tileY, dest, channels, channelContributions, analysis, analysisHues);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            TilePrefetcher.endDemandRead();
+        }
+        return dest;
+    }
+
+    /**
+     * Writes the part of a tile which overlaps the destination raster into it.
+     */
+    private void readRegionTile(int tileX, int tileY, WritableRaster dest, int[] channels, float[] channelContributions, boolean analysis, float[] analysisHues) throws Exception {
+        final int tileLeft = optimalTileWidth * tileX;
+        final int tileTop = optimalTileHeight * tileY;
+        final int tw = (int) Math.min(optimalTileWidth, width - tileLeft);
+        final int th = (int) Math.min(optimalTileHeight, height - tileTop);
+        final Rectangle part = dest.getBounds().intersection(new Rectangle(tileLeft, tileTop, tw, th));
+        if (part.isEmpty()) return;
+        final int sx = part.x - tileLeft, sy = part.y - tileTop;   // offset in the tile
+
+        if (channels == null) {
+            final BufferedImage tile = getPlane(tileX, tileY, channelContributions, analysis, analysisHues);
+            final int[] src = PackedRGB.getData(tile);
+            final int[] dst = ((DataBufferInt) dest.getDataBuffer()).getData();
+            final int dstStride = dest.getWidth();
+            for (int row = 0; row < part.height; row++) {
+                System.arraycopy(src, (sy + row) * optimalTileWidth + sx, dst, (part.y - dest.getMinY() + row) * dstStride + part.x - dest.getMinX(), part.width);
+            }
+            return;
+        }
+
+        BufferedImageReader bir = readerPool.borrow();
+        try {
+            if (bir.getResolution() != this.level) bir.setResolution(this.level);
+            if (doMergeChannels(bir)) {
+                final int sizeC = bir.getSizeC();
+                final float[] contributions = new float[sizeC];
+                for (int c : channels) contributions[c] = 1f;
+                final int[] nos = bir.getZCTCoords(0);
+                final WritableRaster[] rasters = getChannelRasters(bir, nos[0], nos[2], sizeC, tileLeft, tileTop, tw, th, contributions, true);
+                for (int i = 0; i < channels.length; i++) {
+                    copyBand(rasters[channels[i]], 0, sx, sy, dest, i, part);
+                }
+            } else {   // one plane with all (rgb) channels as bands, not cached (the rendered tile is cached under this plane)
+                final Raster raster = bir.openImage(bir.getIndex(0, 0, 0), part.x, part.y, part.width, part.height).getRaster();
+                for (int i = 0; i < channels.length; i++) {
+                    copyBand(raster, channels[i], 0, 0, dest, i, part);
+                }
+            }
+        } finally {
+            readerPool.giveBack(bir);
+        }
+    }
+
+    /**
+     * Copies one band of src (starting at sx/sy relative to its origin) into the area part of one band of dest.
+     */
+    private static void copyBand(Raster src, int srcBand, int sx, int sy, WritableRaster dest, int destBand, Rectangle part) {
+        sx += src.getMinX();
+        sy += src.getMinY();
+        final int dataType = dest.getSampleModel().getDataType();
+        if (dataType == DataBuffer.TYPE_FLOAT || dataType == DataBuffer.TYPE_DOUBLE) {
+            final double[] row = new double[part.width];
+            for (int r = 0; r < part.height; r++) {
+                src.getSamples(sx, sy + r, part.width, 1, srcBand, row);
+                dest.setSamples(part.x, part.y + r, part.width, 1, destBand, row);
+            }
+        } else {
+            final int[] row = new int[part.width];
+            for (int r = 0; r < part.height; r++) {
+                src.getSamples(sx, sy + r, part.width, 1, srcBand, row);
+                dest.setSamples(part.x, part.y + r, part.width, 1, destBand, row);
+            }
+        }
+    }
+
+    /**
+     * Raster data type for a Bio-Formats pixel type.
+     */
+    private static int getDataType(int pixelType) {
+        switch (pixelType) {
+            case FormatTools.INT8:
+            case FormatTools.UINT8:
+                return DataBuffer.TYPE_BYTE;
+            case FormatTools.INT16:
+                return DataBuffer.TYPE_SHORT;
+            case FormatTools.UINT16:
+                return DataBuffer.TYPE_USHORT;
+            case FormatTools.FLOAT:
+                return DataBuffer.TYPE_FLOAT;
+            case FormatTools.DOUBLE:
+                return DataBuffer.TYPE_DOUBLE;
+            default:
+                return DataBuffer.TYPE_INT;
+        }
+    }
+
+    /**
+     * Loads a tile into the tile cache (called by the prefetcher): the channel rasters of fluo images, the rendered tile otherwise.
+     * Only uses an idle reader.
+     *
+     * @return false if no reader is idle
+     */
+    protected boolean prefetchTile(int tileX, int tileY) throws Exception {
+        BufferedImageReader bir = readerPool.tryBorrow();
+        if (bir == null) return false;
+        try {
+            int x = optimalTileWidth * tileX;
+            int y = optimalTileHeight * tileY;
+            int w = (int) Math.min(optimalTileWidth, width - x);
+            int h = (int) Math.min(optimalTileHeight, height - y);
+            if (bir.getResolution()!=this.level) bir.setResolution(this.level);
+            if (doMergeChannels(bir)) {
+                int[] nos = bir.getZCTCoords(0);
+                getChannelRasters(bir, nos[0], nos[2], bir.getSizeC(), x, y, w, h, null, false);
+            } else {
+                getPlane(bir, x, y, w, h, new FilenameSeries(originalFilename, series), null, false, null);
+            }
+            return true;
+        } finally {
+            readerPool.giveBack(bir);
+        }
+    }
+
+    /**
+     * Renders a tile into a new TYPE_INT_RGB image of full tile size. At the image borders only the top left w x h pixels are written, the rest stays black.
+     */
     protected BufferedImage getPlane(int tileX, int tileY, final float[] channelContributions, boolean analysis, final float[] analysisHues) throws Exception {
+        return getPlane(tileX, tileY, channelContributions, analysis, analysisHues, null);
+    }
+
+    /**
+     * getPlane() which renders into dest (if not null) instead of a new image.
+     */
+    protected BufferedImage getPlane(int tileX, int tileY, final float[] channelContributions, boolean analysis, final float[] analysisHues, BufferedImage dest) throws Exception {
         if (analysis && analysisHues!=null) {
             hueMap = analysisHues;
         } else {
@@ -360,43 +640,55 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
         int w = (int) Math.min(optimalTileWidth, width - x);
         int h = (int) Math.min(optimalTileHeight, height - y);
         final FilenameSeries key = new FilenameSeries(originalFilename,series);
-        BufferedImageReader bir = reader.get();
+        BufferedImageReader bir = readerPool.borrow();
+        try {
+            return getPlane(bir, x, y, w, h, key, channelContributions, analysis, dest);
+        } finally {
+            readerPool.giveBack(bir);
+        }
+    }
+
+    private BufferedImage getPlane(BufferedImageReader bir, int x, int y, int w, int h, FilenameSeries key, final float[] channelContributions, boolean analysis, BufferedImage dest) throws Exception {
         if (bir.getResolution()!=this.level) bir.setResolution(this.level);
 
         if (!doMergeChannels(bir)) {   // brightfield or just one grayscale channel
-            BufferedImage bi = bir.openImage(0,x,y,w,h);
-            if (bi!=null && bi.getType()==BufferedImage.TYPE_INT_RGB) return bi;
-            else {
-                if (is16bit) {
-                    int minIntens = minMaxCache.get(key).getMin()[0];
-                    int maxIntens = minMaxCache.get(key).getMax()[0];
-                    bi = AWTImageTools.autoscale(bi,minIntens,maxIntens);
+            // the rendered tile is cached (a copy, the caller gets its own buffer)
+            final ROIDef tileDef = new ROIDef(filename, level, bir.getIndex(0, 0, 0), x, y, w, h);
+            WritableRaster cached = useCache ? OrbitImageBioformatsOmero.tileCache.get(tileDef) : null;
+            if (cached != null) return copyOfTile(cached, dest);
+            final CompletableFuture<WritableRaster> inFlight = inFlightTiles.claim(tileDef);
+            if (inFlight != null) {   // the same tile is fetched by another thread
+                final WritableRaster shared = inFlightTiles.await(inFlight);
+                return shared != null ? copyOfTile(shared, dest) : renderBrightfield(bir, x, y, w, h, key, dest);
+            }
+            WritableRaster shared = null;
+            try {
+                cached = useCache ? OrbitImageBioformatsOmero.tileCache.get(tileDef) : null;   // might have been finished meanwhile
+                if (cached != null) {
+                    shared = cached;
+                    return copyOfTile(cached, dest);
                 }
-                BufferedImage biRGB = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-                biRGB.getGraphics().drawImage(bi, 0, 0, null);
+                BufferedImage biRGB = renderBrightfield(bir, x, y, w, h, key, dest);
+                final int[] data = PackedRGB.getData(biRGB).clone();
+                shared = Raster.createWritableRaster(biRGB.getSampleModel(), new DataBufferInt(data, data.length), null);
+                if (useCache) OrbitImageBioformatsOmero.tileCache.put(tileDef, shared);
                 return biRGB;
+            } finally {
+                inFlightTiles.complete(tileDef, shared);
             }
         }
         else {   // fluo -> merge channels
-            BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            WritableRaster raster = bi.getRaster();
+            BufferedImage bi = newTileImage(dest);
+            final int[] rgb = PackedRGB.getData(bi);
+            final FluoChannelMerger merger = new FluoChannelMerger(w, h, optimalTileWidth);
             int no = 0;
-            int sizeC = reader.get().getSizeC();
-            int[] nos = reader.get().getZCTCoords(no);
+            int sizeC = bir.getSizeC();
+            int[] nos = bir.getZCTCoords(no);
             int z = nos[0], t = nos[2];
-            int col;
-            int[] pix = new int[3];
+            final WritableRaster[] channelRasters = getChannelRasters(bir, z, t, sizeC, x, y, w, h, channelContributions, analysis);
             for (int c = 0; c < sizeC; c++) {
                 if (isChannelActive(c,channelContributions,analysis)) {
-                    int index = reader.get().getIndex(z, c, t);
-                    ROIDef roiDef = new ROIDef(filename,level, index,x,y,w,h);
-                    BufferedImage bit = useCache? OrbitImageBioformatsOmero.tileCache.getIfPresent(roiDef): null;
-                    if (bit==null) {
-                        bit = reader.get().openImage(index, x, y, w, h);
-                        if (useCache) OrbitImageBioformatsOmero.tileCache.put(roiDef,bit);
-                    }
-                    //bit = AWTImageTools.autoscale(bit,minMaxCache.get(key).getMin()[c] , minMaxCache.get(key).getMax()[c]);
-                    Object pixels = AWTImageTools.getPixels(bit, 0, 0, 1, 1);
+                    WritableRaster bit = channelRasters[c];
                     int minIntens = 0;
                     int maxIntens = 256;
                     if (is16bit) {
@@ -404,99 +696,331 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
                             minIntens = minMaxAnalysis.getMin()[c];
                             maxIntens = minMaxAnalysis.getMax()[c];
                         } else {
-                            minIntens = minMaxCache.get(key).getMin()[c];
-                            maxIntens = minMaxCache.get(key).getMax()[c];
-                        }
-                    }
-                    for (int iy = 0; iy < h; iy++) {
-                        for (int ix = 0; ix < w; ix++) {
-                            int s = 0;
-                            for (int b = 0; b < bit.getSampleModel().getNumBands(); b++) {
-                                int intens = bit.getRaster().getSample(ix, iy, b);
-                                if (is16bit) {
-                                    intens = autoscale(intens, pixels, minIntens, maxIntens);
-                                }
-                                s += intens;
-                            }
-                            if (channelContributions!=null) {
-                                s *= channelContributions[c];
-                            }
-                            int intens = s <= 255 ? s : 255;
-                            pix = raster.getPixel(ix, iy, pix);
-
-                            col = Color.HSBtoRGB(hueMap[c], 1f, intens / 255f);
-                            pix[0] += (col >> 16) & 0xFF;    // red
-                            pix[1] += (col >> 8) & 0xFF;  // green
-                            pix[2] += col & 0xFF;    // blue
-                            if (pix[0] > 255) pix[0] = 255;
-                            if (pix[1] > 255) pix[1] = 255;
-                            if (pix[2] > 255) pix[2] = 255;
-
-                            raster.setPixel(ix, iy, pix);
+                            minIntens = getMinMax(key).getMin()[c];
+                            maxIntens = getMinMax(key).getMax()[c];
                         }
                     }
+                    final int scaling = is16bit ? FluoChannelMerger.getScaling(bit) : FluoChannelMerger.SCALING_NONE;
+                    final float contribution = channelContributions != null ? channelContributions[c] : Float.NaN;
+                    final byte[] lut = scaling != FluoChannelMerger.SCALING_NONE ? AutoscaleLut.getFluoLut(originalFilename, series, c, analysis, scaling, minIntens, maxIntens) : null;
+                    merger.mergeChannel(bit, rgb, hueMap[c], contribution, scaling, minIntens, maxIntens, lut);
                 } // channelActive?
             }  // channels
             return bi;
         }  // fluo
     }
 
-  
     /**
-     *  see AWTImageTools.autoscale()
+     * Display min/max per channel of 16bit images (see ChannelMinMax), waits for the computation if it is not finished yet.
      */
-    private int autoscale(int s, Object pixels, int min, int max) {
-        int out;
-        if (pixels instanceof byte[][]) return s;
-        else if (pixels instanceof short[][]) {
+    private MinMaxPerChan getMinMax(FilenameSeries key) throws Exception {
+        MinMaxPerChan minMax = minMaxCache.get(key);
+        if (minMax == null) {
+            minMax = minMaxFuture.get();
+            if (minMax == null) {   // computation failed, not cached (opening the image again retries it)
+                return ChannelMinMax.fullRange(Math.max(numBandsOriginal, minMaxAnalysis != null ? minMaxAnalysis.getMax().length : 0));
+            }
+            if (minMaxCache.putIfAbsent(key, minMax) == null) {
+                AutoscaleLut.invalidate(originalFilename, series);
+            }
+            minMax = minMaxCache.get(key);
+        }
+        return minMax;
+    }
 
-            if (s < 0) s += 32767;
-            int diff = max - min;
-            float dist = (float) (s - min) / diff;
+    protected BufferedImage copyOfTile(Raster tile) {
+        return copyOfTile(tile, null);
+    }
 
-            if (s >= max) out = 255;
-            else if (s <= min) out = 0;
-            else out = (int) (dist * 256);
+    /**
+     * Copies a cached tile (which covers the full tile incl. black borders) into dest, or into a new image if dest is null.
+     */
+    protected BufferedImage copyOfTile(Raster tile, BufferedImage dest) {
+        final int[] data = ((DataBufferInt) tile.getDataBuffer()).getData();
+        BufferedImage biRGB = dest != null ? dest : PackedRGB.createImage(optimalTileWidth, optimalTileHeight);
+        System.arraycopy(data, 0, PackedRGB.getData(biRGB), 0, data.length);
+        return biRGB;
+    }
 
-            return out;
-        } else if (pixels instanceof int[][]) {
+    /**
+     * Black tile image: dest cleared, or a new image if dest is null.
+     */
+    protected BufferedImage newTileImage(BufferedImage dest) {
+        if (dest == null) return PackedRGB.createImage(optimalTileWidth, optimalTileHeight);
+        Arrays.fill(PackedRGB.getData(dest), 0);
+        return dest;
+    }
 
-            if (s >= max) out = 255;
-            else if (s <= min) out = 0;
-            else {
-                int diff = max - min;
-                float dist = (s - min) / diff;
-                out = (int) (dist * 256);
-            }
+    private BufferedImage renderBrightfield(BufferedImageReader bir, int x, int y, int w, int h, FilenameSeries key, BufferedImage dest) throws Exception {
+        final OmeroReaderOrbit rgbReader = getRGBImageReader(bir);
+        if (rgbReader!=null) {   // 8bit rgb image: pack the planar r,g,b channels directly into the tile
+            int[] nos = bir.getZCTCoords(0);
+            byte[][] planes = rgbReader.openBytesChannels(nos[0], RGB_CHANNELS, nos[2], x, y, w, h);
+            BufferedImage biRGB = newTileImage(dest);
+            PackedRGB.packPlanar(planes[0], planes[1], planes[2], w, h, PackedRGB.getData(biRGB), optimalTileWidth);
+            return biRGB;
+        }
+        BufferedImage bi = bir.openImage(0,x,y,w,h);
+        if (bi!=null && bi.getType()==BufferedImage.TYPE_INT_RGB && w==optimalTileWidth && h==optimalTileHeight) return bi;
+        if (bi!=null && bi.getType()!=BufferedImage.TYPE_INT_RGB && is16bit) {
+            int minIntens = getMinMax(key).getMin()[0];
+            int maxIntens = getMinMax(key).getMax()[0];
+            bi = autoscale(bi,minIntens,maxIntens);
+        }
+        BufferedImage biRGB = newTileImage(dest);
+        if (bi!=null) PackedRGB.draw(bi, biRGB);
+        return biRGB;
+    }
 
-            return out;
-        } else if (pixels instanceof float[][]) {
+    /**
+     * Returns the underlying OmeroReaderOrbit if it is an 8bit rgb image (see OmeroReaderOrbit.isRGBImage()), otherwise null.
+     */
+    private static OmeroReaderOrbit getRGBImageReader(BufferedImageReader bir) {
+        OmeroReaderOrbit r = getOmeroReader(bir);
+        if (r != null && r.isRGBImage() && r.getPixelType()==FormatTools.UINT8 && r.getSizeC()==3) {
+            return r;
+        }
+        return null;
+    }
 
-            if (s >= max) out = 255;
-            else if (s <= min) out = 0;
-            else {
-                int diff = max - min;
-                float dist = (s - min) / diff;
-                out = (int) (dist * 256);
-            }
+    /**
+     * Returns the underlying OmeroReaderOrbit (unwraps e.g. a ChannelMerger) or null.
+     */
+    private static OmeroReaderOrbit getOmeroReader(BufferedImageReader bir) {
+        IFormatReader r = bir.getReader();
+        while (r instanceof ReaderWrapper) {
+            r = ((ReaderWrapper) r).getReader();
+        }
+        return r instanceof OmeroReaderOrbit ? (OmeroReaderOrbit) r : null;
+    }
 
-            return out;
-        } else if (pixels instanceof double[][]) {
+    /**
+     * Client tile size for one dimension: a multiple of the native (server) tile size, so a client tile never straddles server tiles.
+     * With TILE_SIZE_MULTIPLIER_AUTO the smallest multiple which is at least TILE_SIZE_DEFAULT is used.
+     * Falls back to TILE_SIZE_DEFAULT if the native size is unknown or not smaller than the image (e.g. row strips of small images).
+     */
+    static int getTileSize(int nativeSize, long imageSize, int multiplier) {
+        if (nativeSize <= 0 || nativeSize >= imageSize) return TILE_SIZE_DEFAULT;
+        final int factor = multiplier > 0 ? multiplier : (TILE_SIZE_DEFAULT + nativeSize - 1) / nativeSize;
+        final int max = Math.max(nativeSize, TILE_SIZE_MAX / nativeSize * nativeSize);   // largest multiple up to TILE_SIZE_MAX
+        return (int) Math.min((long) nativeSize * factor, max);
+    }
 
-            if (s >= max) out = 255;
-            else if (s <= min) out = 0;
-            else {
-                int diff = max - min;
-                float dist = (float) (s - min) / diff;
-                out = (int) (dist * 256);
+    /**
+     * Returns the rasters of all active channels of a tile (null for inactive channels).
+     * Channels which are not cached are read with one hypercube request (see OmeroReaderOrbit.openBytesChannels()).
+     * If the server does not support that, they are read concurrently: the calling thread reads one channel (and all channels for which
+     * no permit is available), the others are read by the channel fetch pool, each pool thread with its own reader and pixel store.
+     * The number of concurrent pool reads per image is limited by channelFetchConcurrency.
+     * Channels which are currently fetched by another thread (same image, level, plane and region) are not fetched again,
+     * their rasters are taken from the other fetch.
+     */
+    private WritableRaster[] getChannelRasters(final BufferedImageReader bir, final int z, final int t, int sizeC, final int x, final int y, final int w, final int h, float[] channelContributions, boolean analysis) throws Exception {
+        final WritableRaster[] rasters = new WritableRaster[sizeC];
+        final ROIDef[] roiDefs = new ROIDef[sizeC];
+        final boolean[] active = new boolean[sizeC];
+        for (int c = 0; c < sizeC; c++) {
+            active[c] = isChannelActive(c, channelContributions, analysis);   // might throw, thus before any key is claimed
+        }
+        final List<Integer> claimed = new ArrayList<>(sizeC);
+        final List<Integer> missing = new ArrayList<>(sizeC);
+        final Map<Integer, CompletableFuture<WritableRaster>> fetchedByOthers = new LinkedHashMap<>();
+        try {
+            for (int c = 0; c < sizeC; c++) {
+                if (active[c]) {
+                    roiDefs[c] = new ROIDef(filename, level, bir.getIndex(z, c, t), x, y, w, h);
+                    rasters[c] = useCache ? OrbitImageBioformatsOmero.tileCache.get(roiDefs[c]) : null;
+                    if (rasters[c] == null) {
+                        final CompletableFuture<WritableRaster> inFlight = inFlightTiles.claim(roiDefs[c]);
+                        if (inFlight != null) {
+                            fetchedByOthers.put(c, inFlight);
+                        } else {
+                            claimed.add(c);   // completed in any case below
+                            rasters[c] = useCache ? OrbitImageBioformatsOmero.tileCache.get(roiDefs[c]) : null;   // might have been finished meanwhile
+                            if (rasters[c] == null) missing.add(c);
+                        }
+                    }
+                }
+            }
+            fetchChannelRasters(bir, z, t, x, y, w, h, missing, rasters);
+        } finally {
+            for (int c : claimed) {
+                inFlightTiles.complete(roiDefs[c], rasters[c]);   // null if the fetch failed
+            }
+        }
+        for (Map.Entry<Integer, CompletableFuture<WritableRaster>> entry : fetchedByOthers.entrySet()) {
+            final int c = entry.getKey();
+            rasters[c] = inFlightTiles.await(entry.getValue());
+            if (rasters[c] == null) {   // the other fetch failed or takes too long
+                rasters[c] = readChannelRaster(bir, z, c, t, x, y, w, h);
             }
+        }
+        return rasters;
+    }
 
-            return out;
+    /**
+     * Reads the given channels of a tile into rasters (hypercube or concurrent per channel reads).
+     */
+    private void fetchChannelRasters(final BufferedImageReader bir, final int z, final int t, final int x, final int y, final int w, final int h, final List<Integer> missing, final WritableRaster[] rasters) throws Exception {
+        if (missing.isEmpty()) return;
+        if (missing.size() > 1 && bir.getReader() instanceof OmeroReaderOrbit && ((OmeroReaderOrbit) bir.getReader()).isHypercubeSupported()) {
+            if (bir.getResolution() != this.level) bir.setResolution(this.level);
+            final int[] channels = new int[missing.size()];
+            for (int i = 0; i < channels.length; i++) channels[i] = missing.get(i);
+            byte[][] planes = ((OmeroReaderOrbit) bir.getReader()).openBytesChannels(z, channels, t, x, y, w, h);
+            for (int i = 0; i < channels.length; i++) {
+                WritableRaster bit = AWTImageTools.openImage(planes[i], bir, w, h).getRaster();
+                if (useCache) OrbitImageBioformatsOmero.tileCache.put(new ROIDef(filename, level, bir.getIndex(z, channels[i], t), x, y, w, h), bit);
+                rasters[channels[i]] = bit;
+            }
+            return;
         }
-        return s;
+        final List<Future<?>> futures = new ArrayList<>(missing.size());
+        try {
+            for (int i = 1; i < missing.size(); i++) {   // the first missing channel is always read by the calling thread
+                final int c = missing.get(i);
+                if (!channelFetchPermits.tryAcquire()) break;
+                try {
+                    futures.add(channelFetchPool.submit(() -> {
+                        try {
+                            BufferedImageReader poolReader = readerPool.tryBorrow();   // never wait, the calling thread reads left over channels
+                            if (poolReader != null) {
+                                try {
+                                    rasters[c] = readChannelRaster(poolReader, z, c, t, x, y, w, h);
+                                } finally {
+                                    readerPool.giveBack(poolReader);
+                                }
+                            }
+                        } finally {
+                            channelFetchPermits.release();
+                        }
+                        return null;
+                    }));
+                } catch (RejectedExecutionException e) {
+                    channelFetchPermits.release();
+                    break;
+                }
+            }
+            for (int i = 0; i < missing.size(); i++) {
+                if (i == 0 || i > futures.size()) {
+                    final int c = missing.get(i);
+                    rasters[c] = readChannelRaster(bir, z, c, t, x, y, w, h);
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                futures.get(i).get();
+                final int c = missing.get(i + 1);
+                if (rasters[c] == null) {   // no reader was available for the pool thread
+                    rasters[c] = readChannelRaster(bir, z, c, t, x, y, w, h);
+                }
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);   // no-op for completed reads, skips queued reads if the calling thread failed
+            }
+        }
+    }
+
+    /**
+     * Reads one channel of a tile and puts it into the tile cache.
+     */
+    private WritableRaster readChannelRaster(BufferedImageReader bir, int z, int c, int t, int x, int y, int w, int h) throws Exception {
+        if (bir.getResolution() != this.level) bir.setResolution(this.level);
+        int index = bir.getIndex(z, c, t);
+        WritableRaster bit = bir.openImage(index, x, y, w, h).getRaster();
+        if (useCache) OrbitImageBioformatsOmero.tileCache.put(new ROIDef(filename, level, index, x, y, w, h), bit);
+        return bit;
+    }
+
+    /**
+     * Maximum number of concurrent channel reads per tile and image (including the calling thread), 1 means sequential reads.
+     * Applies to images opened afterwards.
+     */
+    public static void setChannelFetchConcurrency(int channelFetchConcurrency) {
+        OrbitImageBioformatsOmero.channelFetchConcurrency = Math.max(1, channelFetchConcurrency);
     }
 
+    /**
+     * Number of tile fetches which have been saved because the same tile was fetched concurrently by another thread.
+     */
+    public static long getSavedFetches() {
+        return inFlightTiles.getSavedFetches();
+    }
+
+    public static int getChannelFetchConcurrency() {
+        return channelFetchConcurrency;
+    }
 
+    /**
+     * Client tiles are tileSizeMultiplier x the native tile size of the pixels store (TILE_SIZE_MULTIPLIER_AUTO: at least TILE_SIZE_DEFAULT).
+     * Applies to images opened afterwards.
+     */
+    public static void setTileSizeMultiplier(int tileSizeMultiplier) {
+        OrbitImageBioformatsOmero.tileSizeMultiplier = Math.max(TILE_SIZE_MULTIPLIER_AUTO, tileSizeMultiplier);
+    }
+
+    public static int getTileSizeMultiplier() {
+        return tileSizeMultiplier;
+    }
+
+    /**
+     * If true, missing or rejected pyramid levels throw a LevelNotAvailableException (and are synthesized from a finer level by the
+     * image provider, see OrbitImageSynthesizedOmero), otherwise the next coarser level is used.
+     */
+    public static void setSynthesizeLevels(boolean synthesizeLevels) {
+        OrbitImageBioformatsOmero.synthesizeLevels = synthesizeLevels;
+    }
+
+    public static boolean isSynthesizeLevels() {
+        return synthesizeLevels;
+    }
+
+    /**
+     * Seed channel colours, display windows and analysis windows from the Omero rendering settings (one lookup per image)
+     * instead of channel names and histograms. Applies to images opened afterwards.
+     */
+    public static void setUseRenderingSettings(boolean useRenderingSettings) {
+        OrbitImageBioformatsOmero.useRenderingSettings = useRenderingSettings;
+    }
+
+    public static boolean isUseRenderingSettings() {
+        return useRenderingSettings;
+    }
+
+    /**
+     * Same result as AWTImageTools.autoscale(), but 16bit samples are mapped through a cached AutoscaleLut.
+     */
+    private BufferedImage autoscale(BufferedImage bi, final int min, final int max) {
+        Object pixels = AWTImageTools.getPixels(bi);
+        if (!(pixels instanceof short[][])) {
+            return AWTImageTools.autoscale(bi, min, max);
+        }
+        final byte[] lut = AutoscaleLut.getLut(originalFilename, series, 0, false, AutoscaleLut.SCALING_AWT, min, max, () -> createAutoscaleLut(min, max));
+        short[][] shorts = (short[][]) pixels;
+        byte[][] out = new byte[shorts.length][shorts[0].length];
+        for (int i = 0; i < out.length; i++) {
+            final short[] in = shorts[i];
+            final byte[] o = out[i];
+            for (int j = 0; j < o.length; j++) {
+                o[j] = lut[in[j] & 0xFFFF];
+            }
+        }
+        return AWTImageTools.makeImage(out, bi.getWidth(), bi.getHeight(), false);
+    }
+
+    /**
+     * Builds the table by autoscaling a ramp with all 16bit values, so it behaves exactly like AWTImageTools.autoscale().
+     */
+    private static byte[] createAutoscaleLut(int min, int max) {
+        short[] ramp = new short[AutoscaleLut.SIZE];
+        for (int i = 0; i < ramp.length; i++) {
+            ramp[i] = (short) i;
+        }
+        BufferedImage scaled = AWTImageTools.autoscale(AWTImageTools.makeImage(ramp, 256, 256, false), min, max);
+        return AWTImageTools.getBytes(scaled)[0];
+    }
 
     @Override
     public String getFilename() {
@@ -570,14 +1094,8 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
 
     @Override
     public void close() throws IOException {
-        synchronized (allReaders) {
-            for (IFormatReader r: allReaders) {
-                try {
-                    r.close();
-                } catch (Exception e) {
-                }
-            }
-        }
+        if (prefetcher != null) prefetcher.close();
+        readerPool.close();
     }
 
 
@@ -593,18 +1111,63 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
 
 
     public BufferedImage getThumbnail() {
+        try {
+            BufferedImage thumb = openCoarsestLevel();
+            final int thumbW = thumb.getWidth();
+            final int thumbH = thumb.getHeight();
+            if (thumbW>maxThumbWidth) {
+                int h = (int)(maxThumbWidth * (thumbH/(double)thumbW));
+                BufferedImage img = new BufferedImage(maxThumbWidth,h, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g2d = (Graphics2D) img.getGraphics();
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(thumb,0,0,maxThumbWidth,h, null);
+                thumb = img;
+            }
+            return thumb;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (FormatException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
 
+    /**
+     * Reads the first plane of the coarsest pyramid level with the aspect ratio of this image.
+     */
+    private BufferedImage openCoarsestLevel() throws IOException, FormatException {
         long thumbW=1;
         long thumbH=1;
 
-        try {
-            IFormatReader ir = null;
-
+        IFormatReader ir = null;
+        final String id = "omeroorbit:iid="+imageId;
+        final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+        if (desc != null && desc.getResolutionLevels() == numLevels) {
+            // choose the level without opening a reader per level
+            int thumbLevel = 0;
+            for (int lev=numLevels-1; lev>=0; lev--) {
+                thumbW = desc.getSizeX(lev);
+                thumbH = desc.getSizeY(lev);
+                double diff = Math.abs((thumbW/(double)thumbH) - (width/(double)height));
+                logger.trace("thumb lev: "+lev+"  diff: "+diff+"  WxH: "+thumbW+"x"+thumbH);
+                if (diff<0.001) {
+                    thumbLevel = lev;
+                    break;
+                }
+            }
+            ir = getIFormatReader(id,thumbLevel);
+            ir.setId(id);
+            ir.setSeries(series);
+            ir.setResolution(thumbLevel);
+            thumbW = ir.getSizeX();
+            thumbH = ir.getSizeY();
+        } else {
             for (int lev=numLevels-1; lev>=0; lev--) {
                 if (ir!=null) ir.close();
-                ir = getIFormatReader(reader.get().getCurrentFile(),lev);
-                ir.setId(reader.get().getCurrentFile());
-                ir.setSeries(reader.get().getSeries());
+                ir = getIFormatReader(id,lev);
+                ir.setId(id);
+                ir.setSeries(series);
                 ir.setResolution(lev);
                 thumbW = ir.getSizeX();
                 thumbH = ir.getSizeY();
@@ -612,27 +1175,97 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
                 logger.trace("thumb lev: "+lev+"  diff: "+diff+"  WxH: "+thumbW+"x"+thumbH);
                 if (diff<0.001) break;
             }
+        }
 
-            BufferedImageReader bir = BufferedImageReader.makeBufferedImageReader(ir);
-            BufferedImage thumb = bir.openImage(0);
+        BufferedImageReader bir = BufferedImageReader.makeBufferedImageReader(ir);
+        try {
+            return bir.openImage(0);
+        } finally {
             bir.close();
+        }
+    }
 
-            if (thumbW>maxThumbWidth) {
-                int h = (int)(maxThumbWidth * (thumbH/(double)thumbW));
-                BufferedImage img = new BufferedImage(maxThumbWidth,h, BufferedImage.TYPE_INT_RGB);
-                Graphics2D g2d = (Graphics2D) img.getGraphics();
-                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-                g2d.drawImage(thumb,0,0,maxThumbWidth,h, null);
-                thumb = img;
+    /**
+     * Foreground (tissue) mask of this image, computed once per image and series from the coarsest pyramid level (see TissueMask).
+     * If that level cannot be read, all tiles are foreground.
+     */
+    public TissueMask getTissueMask() {
+        final FilenameSeries key = new FilenameSeries(originalFilename, series);
+        TissueMask mask = tissueMasks.getIfPresent(key);
+        if (mask == null) {
+            final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+            final long fullWidth = desc != null ? desc.getSizeX(0) : width;
+            final long fullHeight = desc != null ? desc.getSizeY(0) : height;
+            try {
+                mask = TissueMask.compute(openCoarsestLevel().getRaster(), fullWidth, fullHeight, TissueMask.getThreshold());
+                logger.debug("tissue mask of " + originalFilename + ": " + mask.getMaskWidth() + " x " + mask.getMaskHeight() + ", foreground " + mask.getForegroundFraction());
+            } catch (Exception e) {
+                logger.warn("cannot compute the tissue mask of " + originalFilename + ", all tiles are foreground", e);
+                mask = TissueMask.all(fullWidth, fullHeight);
             }
-            return thumb;
-        } catch (IOException e) {
-            e.printStackTrace();
-        } catch (FormatException e) {
-            e.printStackTrace();
+            tissueMasks.put(key, mask);
         }
-        return null;
+        return mask;
+    }
+
+    /**
+     * True if the tile (tile size of this image) at the given pyramid level contains tissue (see getTissueMask()).
+     */
+    public boolean isTileForeground(int tileX, int tileY, int level) {
+        final TissueMask mask = getTissueMask();
+        final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+        long levelWidth = getWidth(), levelHeight = getHeight(), fullWidth = width, fullHeight = height;
+        if (desc != null) {
+            fullWidth = desc.getSizeX(0);
+            fullHeight = desc.getSizeY(0);
+            if (level != getLevel()) {
+                if (level < 0 || level >= desc.getResolutionLevels()) throw new IllegalArgumentException("level " + level + " does not exist on the server");
+                levelWidth = desc.getSizeX(level);
+                levelHeight = desc.getSizeY(level);
+            }
+        } else if (level != getLevel()) {
+            throw new IllegalArgumentException("level " + level + " unknown, image descriptor not loaded");
+        }
+        final double scaleX = fullWidth / (double) levelWidth;
+        final double scaleY = fullHeight / (double) levelHeight;
+        final long x = (long) getTileWidth() * tileX;
+        final long y = (long) getTileHeight() * tileY;
+        final long w = Math.min(getTileWidth(), levelWidth - x);
+        final long h = Math.min(getTileHeight(), levelHeight - y);
+        if (w <= 0 || h <= 0) return false;
+        return mask.isForeground((long) Math.floor(x * scaleX), (long) Math.floor(y * scaleY), (long) Math.ceil(w * scaleX), (long) Math.ceil(h * scaleY));
+    }
+
+    /**
+     * Iterates over the tiles of this level which contain tissue (row by row), e.g. for analysis runs which skip background tiles.
+     * The points are tile indices (tileX, tileY).
+     */
+    public Iterator<Point> foregroundTileIterator() {
+        final int tilesX = (getWidth() + getTileWidth() - 1) / getTileWidth();
+        final int tilesY = (getHeight() + getTileHeight() - 1) / getTileHeight();
+        final int level = getLevel();
+        getTissueMask();
+        return new Iterator<Point>() {
+            private int next = advance(0);
+
+            private int advance(int i) {
+                while (i < tilesX * tilesY && !isTileForeground(i % tilesX, i / tilesX, level)) i++;
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < tilesX * tilesY;
+            }
+
+            @Override
+            public Point next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                final Point tile = new Point(next % tilesX, next / tilesX);
+                next = advance(next + 1);
+                return tile;
+            }
+        };
     }
 
 
@@ -670,6 +1303,10 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
         float[] hues = new float[channelNames.length];
         for (int c=0; c<channelNames.length; c++) {
             hues[c] = ChannelToHue.getHue(channelNames[c].toLowerCase());
+            // colours of the rendering settings, gray channels keep the hue of the channel name
+            if (renderingSettings != null && !Float.isNaN(renderingSettings.getHue(c))) {
+                hues[c] = renderingSettings.getHue(c);
+            }
         }
         hueUpdateTime.set(ChannelToHue.lastUpdate.get());
         return hues;
@@ -742,62 +1379,6 @@ public class OrbitImageBioformatsOmero implements IOrbitImageMultiChannel {
         return series;
     }
 
-    private class ROIDef {
-        String filename;
-        int level,index,x,y,w,h;
-
-        public ROIDef(String filename, int level, int index, int x, int y, int w, int h) {
-            this.filename = filename;
-            this.level = level;
-            this.index = index;
-            this.x = x;
-            this.y = y;
-            this.w = w;
-            this.h = h;
-        }
-
-        @Override
-        public String toString() {
-            return "ROIDef{" +
-                    "filename='" + filename + '\'' +
-                    ", level=" + level +
-                    ", index=" + index +
-                    ", x=" + x +
-                    ", y=" + y +
-                    ", w=" + w +
-                    ", h=" + h +
-                    '}';
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            ROIDef roiDef = (ROIDef) o;
-
-            if (level != roiDef.level) return false;
-            if (index != roiDef.index) return false;
-            if (x != roiDef.x) return false;
-            if (y != roiDef.y) return false;
-            if (w != roiDef.w) return false;
-            if (h != roiDef.h) return false;
-            return filename != null ? filename.equals(roiDef.filename) : roiDef.filename == null;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = filename != null ? filename.hashCode() : 0;
-            result = 31 * result + level;
-            result = 31 * result + index;
-            result = 31 * result + x;
-            result = 31 * result + y;
-            result = 31 * result + w;
-            result = 31 * result + h;
-            return result;
-        }
-    }
-
 
 
 }
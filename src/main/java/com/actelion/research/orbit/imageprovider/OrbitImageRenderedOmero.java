@@ -0,0 +1,339 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import loci.formats.FormatException;
+import omero.api.RenderingEnginePrx;
+import omero.romio.PlaneDef;
+import omero.romio.RegionDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Display mode image: tiles are rendered and JPEG compressed by the Omero server (with the rendering settings of the image),
+ * which needs much less bandwidth than raw pixels. Analysis tiles (analysis=true) are still read as raw pixels.
+ * The server can only switch channels on and off, thus tiles with channel contributions other than 0 and 1 are read as raw pixels, too.
+ * <p>
+ * Loaded rendering engines are pooled per image and level (at most ReaderPool.getMaxReadersPerImage()), prefetching only uses idle engines.
+ * The JPEG decoders are reused per thread and decode directly into the destination image, or into a per thread buffer if the tile is only
+ * needed for the tile cache (prefetching), thus only the copy kept by the tile cache is allocated.
+ * </p>
+ */
+public class OrbitImageRenderedOmero extends OrbitImageBioformatsOmero {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrbitImageRenderedOmero.class);
+    public static final float COMPRESSION_LEVEL_DEFAULT = 0.8f;
+    private static volatile float compressionLevel = COMPRESSION_LEVEL_DEFAULT;
+    private static final ThreadLocal<ImageReader> jpegReaders = ThreadLocal.withInitial(() -> ImageIO.getImageReadersByFormatName("jpeg").next());
+    private static final ThreadLocal<BufferedImage[]> decodeBuffers = ThreadLocal.withInitial(() -> new BufferedImage[1]);
+
+    private final ImageProviderOmero.GatewayAndCtx gatewayAndCtx;
+    private final long groupId;
+    private final long pixelsId;
+    private final ConcurrentLinkedDeque<Engine> idleEngines = new ConcurrentLinkedDeque<>();
+    private final Semaphore enginePermits = new Semaphore(ReaderPool.getMaxReadersPerImage());
+    private volatile boolean rendered;
+    private volatile boolean closed = false;
+
+    public OrbitImageRenderedOmero(final String filename, final int level, final int series, ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long imageId, long groupId) throws IOException, FormatException {
+        super(filename, level, series, true, gatewayAndCtx, imageId, groupId);
+        this.gatewayAndCtx = gatewayAndCtx;
+        this.groupId = groupId;
+        final ImageDescriptor desc = ImageDescriptor.getIfPresent(imageId);
+        this.pixelsId = desc != null ? desc.getPixelsId() : -1;
+        this.rendered = desc != null && series == 0;   // the rendering engine only knows the image (series 0)
+        if (!rendered) logger.info("no rendered tiles for " + getFilename() + ", using raw pixels");
+    }
+
+    @Override
+    protected BufferedImage readTileImage(int tileX, int tileY, float[] channelContributions, boolean analysis, float[] analysisHues, BufferedImage dest) throws Exception {
+        final float[] contributions = channelContributions != null ? channelContributions : getChannelContributions();
+        if (analysis || !rendered || !isOnOff(contributions)) {
+            return super.readTileImage(tileX, tileY, channelContributions, analysis, analysisHues, dest);
+        }
+        try {
+            return getRenderedTile(tileX, tileY, contributions, dest);
+        } catch (Exception e) {
+            logger.warn("cannot render tile " + tileX + "/" + tileY + " of " + getFilename() + ", using raw pixels", e);
+            rendered = false;
+            return super.readTileImage(tileX, tileY, channelContributions, false, analysisHues, dest);
+        }
+    }
+
+    /**
+     * Prefetches the rendered tile instead of the raw channels.
+     *
+     * @return false if no rendering engine is idle
+     */
+    @Override
+    protected boolean prefetchTile(int tileX, int tileY) throws Exception {
+        if (!rendered || !isOnOff(getChannelContributions())) return super.prefetchTile(tileX, tileY);   // also if called before this constructor has finished
+        final int activeMask = getActiveMask(getChannelContributions());
+        final ROIDef tileDef = getTileDef(tileX, tileY, activeMask);
+        if (tileCache.get(tileDef) != null) return true;
+        final Engine engine = tryBorrowEngine();
+        if (engine == null) return false;
+        renderTile(engine, tileDef, activeMask, null);
+        return true;
+    }
+
+    private BufferedImage getRenderedTile(int tileX, int tileY, float[] channelContributions, BufferedImage dest) throws Exception {
+        final int activeMask = getActiveMask(channelContributions);
+        final ROIDef tileDef = getTileDef(tileX, tileY, activeMask);
+        WritableRaster cached = tileCache.get(tileDef);
+        if (cached != null) return copyOfTile(cached, dest);
+        return renderTile(borrowEngine(), tileDef, activeMask, dest != null ? dest : PackedRGB.createImage(getTileWidth(), getTileHeight()));
+    }
+
+    /**
+     * Cache key of a rendered tile, the active mask identifies the rendering exactly (only on/off contributions are rendered, see isOnOff()).
+     */
+    private ROIDef getTileDef(int tileX, int tileY, int activeMask) {
+        final int x = getTileWidth() * tileX;
+        final int y = getTileHeight() * tileY;
+        final int w = Math.min(getTileWidth(), getWidth() - x);
+        final int h = Math.min(getTileHeight(), getHeight() - y);
+        return new ROIDef(getFilename() + " rendered", getLevel(), -1 - activeMask, x, y, w, h);
+    }
+
+    /**
+     * Renders a tile with the borrowed engine (which is given back), decodes it into dest and puts a copy into the tile cache.
+     *
+     * @param dest null to decode into the per thread buffer (only the cached copy is needed)
+     * @return dest
+     */
+    private BufferedImage renderTile(Engine engine, ROIDef tileDef, int activeMask, BufferedImage dest) throws Exception {
+        final int x = tileDef.getX();
+        final int y = tileDef.getY();
+        final int w = tileDef.getW();
+        final int h = tileDef.getH();
+        byte[] compressed;
+        boolean ok = false;
+        try {
+            engine.setActive(activeMask);
+            PlaneDef pDef = new PlaneDef();
+            pDef.z = engine.z;
+            pDef.t = engine.t;
+            pDef.slice = omero.romio.XY.value;
+            pDef.region = new RegionDef(x, y, w, h);
+            compressed = engine.proxy.renderCompressed(pDef);
+            ok = true;
+        } finally {
+            giveBack(engine, ok);
+        }
+
+        BufferedImage biRGB = newTileImage(dest != null ? dest : decodeBuffer());   // cleared, the JPEG of edge tiles only covers w x h
+        ImageReader jpegReader = jpegReaders.get();
+        try (MemoryCacheImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(compressed))) {
+            jpegReader.setInput(stream, true, true);
+            ImageReadParam param = jpegReader.getDefaultReadParam();
+            param.setDestination(biRGB);   // decodes directly into the (full size) tile
+            jpegReader.read(0, param);
+        } finally {
+            jpegReader.setInput(null);
+        }
+        final int[] data = PackedRGB.getData(biRGB).clone();
+        tileCache.put(tileDef, Raster.createWritableRaster(biRGB.getSampleModel(), new DataBufferInt(data, data.length), null));
+        return dest;
+    }
+
+    /**
+     * Tile image of this thread which is reused for tiles which are only decoded for the tile cache.
+     */
+    private BufferedImage decodeBuffer() {
+        final BufferedImage[] buffer = decodeBuffers.get();
+        if (buffer[0] == null || buffer[0].getWidth() != getTileWidth() || buffer[0].getHeight() != getTileHeight()) {
+            buffer[0] = PackedRGB.createImage(getTileWidth(), getTileHeight());
+        }
+        return buffer[0];
+    }
+
+    /**
+     * @return true if the channel contributions only switch channels on (1) or off (0), thus the active mask describes the rendering
+     */
+    private static boolean isOnOff(float[] channelContributions) {
+        if (channelContributions == null) return true;
+        for (int c = 0; c < channelContributions.length; c++) {
+            final float contribution = Math.abs(channelContributions[c]);
+            if (contribution > 0.00001f && (c >= 32 || Math.abs(contribution - 1f) > 0.00001f)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Bit c is set if channel c is active (all channels if no contributions are set).
+     */
+    private static int getActiveMask(float[] channelContributions) {
+        if (channelContributions == null) return -1;
+        int mask = 0;
+        for (int c = 0; c < Math.min(32, channelContributions.length); c++) {
+            if (Math.abs(channelContributions[c]) > 0.00001f) mask |= 1 << c;
+        }
+        return mask;
+    }
+
+    private Engine borrowEngine() throws Exception {
+        enginePermits.acquire();
+        return pollEngine();
+    }
+
+    /**
+     * Like borrowEngine(), but never waits for an engine which is in use.
+     *
+     * @return null if all engines are in use
+     */
+    private Engine tryBorrowEngine() throws Exception {
+        if (!enginePermits.tryAcquire()) return null;
+        return pollEngine();
+    }
+
+    /**
+     * Idle or new engine, the caller holds a permit (which is released if no engine can be created).
+     */
+    private Engine pollEngine() throws Exception {
+        try {
+            Engine engine = idleEngines.pollFirst();
+            return engine != null ? engine : createEngine();
+        } catch (Exception e) {
+            enginePermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the engine to the pool, or closes it if rendering failed (e.g. the server closed the service).
+     */
+    private void giveBack(Engine engine, boolean ok) {
+        if (ok && !closed) {
+            idleEngines.addFirst(engine);
+        } else {
+            engine.close();
+        }
+        enginePermits.release();
+        if (closed) closeIdleEngines();
+    }
+
+    private Engine createEngine() throws Exception {
+        RenderingEnginePrx proxy = gatewayAndCtx.getGateway().getRenderingService(gatewayAndCtx.getCtx(groupId), pixelsId);
+        try {
+            proxy.lookupPixels(pixelsId);
+            if (!(proxy.lookupRenderingDef(pixelsId))) {
+                proxy.resetDefaultSettings(true);
+                proxy.lookupRenderingDef(pixelsId);
+            }
+            proxy.load();
+            proxy.setCompressionLevel(compressionLevel);
+            final int resolutionLevels = proxy.requiresPixelsPyramid() ? proxy.getResolutionLevels() : 1;
+            if (getLevel() >= resolutionLevels) {
+                throw new IllegalStateException("level " + getLevel() + " not available for rendering (" + resolutionLevels + " levels)");
+            }
+            if (resolutionLevels > 1) proxy.setResolutionLevel((resolutionLevels - 1) - getLevel());
+            logger.debug("rendering engine created for " + getFilename());
+            return new Engine(proxy, proxy.getDefaultZ(), proxy.getDefaultT(), proxy.getPixels().getSizeC().getValue());
+        } catch (Exception e) {
+            try {
+                proxy.close();
+            } catch (Exception e2) {
+                logger.debug("error closing rendering engine", e2);
+            }
+            throw e;
+        }
+    }
+
+    private void closeIdleEngines() {
+        Engine engine;
+        while ((engine = idleEngines.pollFirst()) != null) {
+            engine.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        closeIdleEngines();
+        super.close();
+    }
+
+    public int getIdleEngineCount() {
+        return idleEngines.size();
+    }
+
+    /**
+     * JPEG quality of the server rendered tiles (0..1). Applies to rendering engines created afterwards.
+     */
+    public static void setCompressionLevel(float compressionLevel) {
+        OrbitImageRenderedOmero.compressionLevel = Math.max(0f, Math.min(1f, compressionLevel));
+    }
+
+    public static float getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * A loaded rendering engine and its current active channels.
+     */
+    private static final class Engine {
+        final RenderingEnginePrx proxy;
+        final int z;
+        final int t;
+        final int sizeC;
+        Integer activeMask = null;   // unknown after load() (active channels of the rendering settings)
+
+        Engine(RenderingEnginePrx proxy, int z, int t, int sizeC) {
+            this.proxy = proxy;
+            this.z = z;
+            this.t = t;
+            this.sizeC = sizeC;
+        }
+
+        void setActive(int mask) throws Exception {
+            if (activeMask != null && mask == activeMask) return;
+            for (int c = 0; c < sizeC; c++) {
+                final boolean active = c >= 32 || (mask & (1 << c)) != 0;
+                if (activeMask == null || c >= 32 || ((activeMask & (1 << c)) != 0) != active) {
+                    proxy.setActive(c, active);
+                }
+            }
+            activeMask = mask;
+        }
+
+        void close() {
+            try {
+                proxy.close();
+            } catch (Exception e) {
+                logger.debug("error closing rendering engine", e);
+            }
+        }
+    }
+
+}
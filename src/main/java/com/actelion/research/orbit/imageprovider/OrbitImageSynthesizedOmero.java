@@ -0,0 +1,243 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import com.actelion.research.orbit.exceptions.OrbitImageServletException;
+import loci.formats.FormatException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Pyramid level which is missing on the server (or has been rejected, see LevelNotAvailableException), synthesized from the nearest finer level.
+ * <p>
+ * Like a server pyramid, each synthesized level k is built from level k - 1: a tile is the 2 x 2 box downsampled image of (up to) 4 tiles
+ * of level k - 1. These are read from the source level in parallel (see readRegion()) or are synthesized tiles of level k - 1 themselves.
+ * All synthesized tiles are kept in the tile cache (shared by all synthesized images of the same source level), thus each tile costs
+ * 4 finer tiles, and the raw source tiles stay in the tile cache if only the channel contributions change.
+ * </p>
+ * <p>
+ * Levels are only synthesized as long as the previous level does not fit into one tile, like a server pyramid would end.
+ * Synthesized images do not prefetch (the prefetcher of the source level belongs to the real image of that level) and only provide
+ * the rendered rgb image, raw channels do not exist for synthesized levels.
+ * </p>
+ */
+public class OrbitImageSynthesizedOmero extends OrbitImageBioformatsOmero {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrbitImageSynthesizedOmero.class);
+    private static final SingleFlight<ROIDef, WritableRaster> inFlightTiles = new SingleFlight<>();
+
+    private final String filename;
+    private final String levelsFilename;
+    private final int level;
+    private final int factor;
+
+    /**
+     * @param level       level to synthesize
+     * @param sourceLevel finer level which is available on the server
+     */
+    public OrbitImageSynthesizedOmero(final String filename, final int sourceLevel, final int level, final int series, ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long imageId, long groupId) throws IOException, FormatException {
+        super(filename, sourceLevel, series, true, gatewayAndCtx, imageId, groupId, false);
+        if (level <= sourceLevel) {
+            close();
+            throw new IllegalArgumentException("level " + level + " must be coarser than source level " + sourceLevel);
+        }
+        if (level - sourceLevel >= 31 || (getLevelSize(super.getWidth(), level - 1 - sourceLevel) <= super.getTileWidth()
+                && getLevelSize(super.getHeight(), level - 1 - sourceLevel) <= super.getTileHeight())) {
+            close();   // the previous level already fits into one tile, a pyramid would end there
+            throw new OrbitImageServletException("image pyramid level " + level + " does not exist for image " + filename);
+        }
+        this.filename = filename + "[" + level + "]" + " [" + series + "]";
+        this.levelsFilename = filename + "[" + sourceLevel + "]" + " [" + series + "] synthesized";
+        this.level = level;
+        this.factor = 1 << (level - sourceLevel);
+        logger.info(this.filename + " synthesized from level " + sourceLevel + " [" + getWidth() + " x " + getHeight() + "]");
+    }
+
+    @Override
+    protected BufferedImage readTileImage(int tileX, int tileY, float[] channelContributions, boolean analysis, float[] analysisHues, BufferedImage dest) throws Exception {
+        final String rendering = levelsFilename + " " + Arrays.toString(channelContributions) + " " + analysis + " " + Arrays.toString(analysisHues);
+        return copyOfTile(getLevelTile(level, tileX, tileY, rendering, channelContributions, analysis, analysisHues), dest);
+    }
+
+    /**
+     * Reads a region of the synthesized level from its tiles, only the rendered rgb image (channels == null) is available.
+     */
+    @Override
+    public WritableRaster readRegion(final int x, final int y, final int w, final int h, int level, final int[] channels, final boolean analysis) throws Exception {
+        if (level != this.level) {
+            throw new IllegalArgumentException("level " + level + " requested but this image provides level " + this.level);
+        }
+        if (channels != null) {
+            throw new IllegalArgumentException("raw channels are not available for the synthesized level " + this.level + " of " + filename);
+        }
+        if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > getWidth() || y + h > getHeight()) {
+            throw new IllegalArgumentException("region " + x + "," + y + " " + w + "x" + h + " outside of image " + getWidth() + "x" + getHeight());
+        }
+        final float[] channelContributions = analysis ? null : getChannelContributions();
+        final WritableRaster dest = PackedRGB.createImage(w, h).getRaster().createWritableTranslatedChild(x, y);
+        final int[] dst = ((DataBufferInt) dest.getDataBuffer()).getData();
+        final int tw = getTileWidth();
+        final int th = getTileHeight();
+        for (int ty = y / th; ty * th < y + h; ty++) {
+            for (int tx = x / tw; tx * tw < x + w; tx++) {
+                final int[] tile = PackedRGB.getData(getTileImage(tx, ty, channelContributions, analysis, null, null));
+                final int x0 = Math.max(x, tx * tw), x1 = Math.min(x + w, (tx + 1) * tw);
+                final int y0 = Math.max(y, ty * th), y1 = Math.min(y + h, (ty + 1) * th);
+                for (int row = y0; row < y1; row++) {
+                    System.arraycopy(tile, (row - ty * th) * tw + x0 - tx * tw, dst, (row - y) * w + x0 - x, x1 - x0);
+                }
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * Tile of the synthesized level k (sourceLevel &lt; k &lt;= level) from the tile cache, or built from level k - 1 (and cached).
+     *
+     * @param rendering tile cache filename of the synthesized tiles: levelsFilename and the exact channel contributions, analysis mode and hues
+     *
+     * @return full size tile (black outside of the image), must not be modified
+     */
+    private WritableRaster getLevelTile(int k, int tileX, int tileY, String rendering, float[] channelContributions, boolean analysis, float[] analysisHues) throws Exception {
+        final int x = getTileWidth() * tileX;
+        final int y = getTileHeight() * tileY;
+        final int w = (int) Math.min(getTileWidth(), getLevelSize(super.getWidth(), k - getSourceLevel()) - x);
+        final int h = (int) Math.min(getTileHeight(), getLevelSize(super.getHeight(), k - getSourceLevel()) - y);
+        final ROIDef tileDef = new ROIDef(rendering, k, 0, x, y, w, h);
+        WritableRaster cached = tileCache.get(tileDef);
+        if (cached != null) return cached;
+        final CompletableFuture<WritableRaster> inFlight = inFlightTiles.claim(tileDef);
+        if (inFlight != null) {   // the same tile is synthesized by another thread
+            final WritableRaster shared = inFlightTiles.await(inFlight);
+            return shared != null ? shared : synthesize(k, x, y, w, h, rendering, channelContributions, analysis, analysisHues);
+        }
+        WritableRaster shared = null;
+        try {
+            shared = synthesize(k, x, y, w, h, rendering, channelContributions, analysis, analysisHues);
+            tileCache.put(tileDef, shared);
+            return shared;
+        } finally {
+            inFlightTiles.complete(tileDef, shared);
+        }
+    }
+
+    /**
+     * Downsamples the (up to) 2w x 2h region of level k - 1 which is covered by a tile of level k.
+     */
+    private WritableRaster synthesize(int k, int x, int y, int w, int h, String rendering, float[] channelContributions, boolean analysis, float[] analysisHues) throws Exception {
+        final int tw = getTileWidth();
+        final int th = getTileHeight();
+        final int sx = 2 * x;   // multiple of the tile size, thus aligned with the tiles of level k - 1
+        final int sy = 2 * y;
+        final int sw = (int) Math.min(2L * w, getLevelSize(super.getWidth(), k - 1 - getSourceLevel()) - sx);
+        final int sh = (int) Math.min(2L * h, getLevelSize(super.getHeight(), k - 1 - getSourceLevel()) - sy);
+        final int[] src;
+        if (k - 1 == getSourceLevel()) {
+            src = ((DataBufferInt) readRegion(sx, sy, sw, sh, null, channelContributions, analysis, analysisHues).getDataBuffer()).getData();
+        } else {
+            src = new int[sw * sh];
+            for (int ty = sy / th; ty * th < sy + sh; ty++) {
+                for (int tx = sx / tw; tx * tw < sx + sw; tx++) {
+                    final int[] tile = ((DataBufferInt) getLevelTile(k - 1, tx, ty, rendering, channelContributions, analysis, analysisHues).getDataBuffer()).getData();
+                    final int ox = tx * tw - sx;
+                    final int oy = ty * th - sy;
+                    final int cw = Math.min(tw, sw - ox);
+                    for (int row = 0, rows = Math.min(th, sh - oy); row < rows; row++) {
+                        System.arraycopy(tile, row * tw, src, (oy + row) * sw + ox, cw);
+                    }
+                }
+            }
+        }
+        final BufferedImage biRGB = PackedRGB.createImage(tw, th);
+        downsample(src, sw, sh, 2, PackedRGB.getData(biRGB), tw, 0);
+        return biRGB.getRaster();
+    }
+
+    /**
+     * Size of the level which is 'steps' levels coarser than the source level.
+     */
+    private static long getLevelSize(long sourceSize, int steps) {
+        final long f = 1L << steps;
+        return (sourceSize + f - 1) / f;
+    }
+
+    /**
+     * Box filter: each destination pixel is the rounded mean of (up to) factor x factor source pixels.
+     *
+     * @param src     packed rgb source, scanline stride = srcWidth
+     * @param dstRow0 first destination row
+     */
+    static void downsample(final int[] src, final int srcWidth, final int srcHeight, final int factor, final int[] dst, final int dstStride, final int dstRow0) {
+        final int dstWidth = (srcWidth + factor - 1) / factor;
+        final int dstHeight = (srcHeight + factor - 1) / factor;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            final int y0 = dy * factor, y1 = Math.min(y0 + factor, srcHeight);
+            for (int dx = 0; dx < dstWidth; dx++) {
+                final int x0 = dx * factor, x1 = Math.min(x0 + factor, srcWidth);
+                int r = 0, g = 0, b = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    for (int i = sy * srcWidth + x0, end = sy * srcWidth + x1; i < end; i++) {
+                        final int p = src[i];
+                        r += (p >> 16) & 0xFF;
+                        g += (p >> 8) & 0xFF;
+                        b += p & 0xFF;
+                    }
+                }
+                final int n = (y1 - y0) * (x1 - x0);
+                dst[(dstRow0 + dy) * dstStride + dx] = ((r + n / 2) / n) << 16 | ((g + n / 2) / n) << 8 | ((b + n / 2) / n);
+            }
+        }
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public int getWidth() {
+        return (super.getWidth() + factor - 1) / factor;
+    }
+
+    @Override
+    public int getHeight() {
+        return (super.getHeight() + factor - 1) / factor;
+    }
+
+    @Override
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * The finer server level the tiles are built from.
+     */
+    public int getSourceLevel() {
+        return super.getLevel();
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes decoded images directly into a TYPE_INT_RGB data array (e.g. of a padded tile), without Java2D drawing.
+ * The results are identical to drawImage() into a TYPE_INT_RGB image.
+ */
+public final class PackedRGB {
+
+    private static final int MAX_GRAY_TABLES = 64;
+    private static final Map<List<Object>, int[]> grayTables = new ConcurrentHashMap<>();
+
+    private PackedRGB() {
+    }
+
+    /**
+     * Creates a TYPE_INT_RGB image of the given size (pixels not written stay black).
+     */
+    public static BufferedImage createImage(int width, int height) {
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Returns the data array of a TYPE_INT_RGB image (scanline stride = image width).
+     */
+    public static int[] getData(BufferedImage rgbImage) {
+        return ((DataBufferInt) rgbImage.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Writes src to the top left corner of the destination array.
+     *
+     * @param dst            packed RGB destination array
+     * @param scanlineStride scanline stride of dst
+     * @return false if the source type is not supported (then nothing has been written)
+     */
+    public static boolean pack(BufferedImage src, int[] dst, int scanlineStride) {
+        final int w = src.getWidth();
+        final int h = src.getHeight();
+        final Raster raster = src.getRaster();
+        if (src.getType() == BufferedImage.TYPE_INT_RGB && raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel && raster.getDataBuffer().getNumBanks() == 1) {
+            final SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            final int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int i = raster.getDataBuffer().getOffset() - raster.getSampleModelTranslateY() * sm.getScanlineStride() - raster.getSampleModelTranslateX();
+            for (int y = 0; y < h; y++, i += sm.getScanlineStride()) {
+                System.arraycopy(data, i, dst, y * scanlineStride, w);
+            }
+            return true;
+        }
+        if (raster.getNumBands() == 1 && raster.getTransferType() == DataBuffer.TYPE_BYTE) {
+            final int[] table = getGrayTable(src.getColorModel(), raster.getSampleModel());
+            if (table == null) return false;
+            final int[] row = new int[w];
+            for (int y = 0; y < h; y++) {
+                FluoChannelMerger.readRow(raster, y, 0, w, row);
+                final int p = y * scanlineStride;
+                for (int x = 0; x < w; x++) {
+                    dst[p + x] = table[row[x] & 0xFF];
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Packs three planar 8bit channels (row by row, scanline stride = width) into the top left corner of the destination array.
+     *
+     * @param dst            packed RGB destination array
+     * @param scanlineStride scanline stride of dst
+     */
+    public static void packPlanar(final byte[] r, final byte[] g, final byte[] b, int width, int height, final int[] dst, int scanlineStride) {
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int p = y * scanlineStride;
+            final int end = i + width;
+            while (i < end) {
+                dst[p++] = ((r[i] & 0xFF) << 16) | ((g[i] & 0xFF) << 8) | (b[i] & 0xFF);
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Writes src to the top left corner of the destination image, using pack() if possible, drawImage() otherwise.
+     */
+    public static void draw(BufferedImage src, BufferedImage rgbImage) {
+        if (!pack(src, getData(rgbImage), rgbImage.getWidth())) {
+            Graphics g = rgbImage.getGraphics();
+            g.drawImage(src, 0, 0, null);
+            g.dispose();
+        }
+    }
+
+    /**
+     * Packed RGB value for each 8bit sample of a single band image with this color and sample model, exactly as drawImage() converts it
+     * (e.g. the linear gray color space of Bio-Formats gray images is converted to sRGB).
+     * The ramp uses the same sample model class as the source, otherwise Java2D might choose another conversion (e.g. for TYPE_BYTE_GRAY).
+     */
+    private static int[] getGrayTable(ColorModel cm, SampleModel sm) {
+        final List<Object> key = Arrays.asList(cm, sm.getClass());
+        int[] table = grayTables.get(key);
+        if (table == null) {
+            try {
+                WritableRaster ramp = Raster.createWritableRaster(sm.createCompatibleSampleModel(256, 1), null);
+                for (int i = 0; i < 256; i++) {
+                    ramp.setSample(i, 0, 0, i);
+                }
+                BufferedImage rampImage = new BufferedImage(cm, ramp, cm.isAlphaPremultiplied(), null);
+                BufferedImage rgb = createImage(256, 1);
+                Graphics g = rgb.getGraphics();
+                g.drawImage(rampImage, 0, 0, null);
+                g.dispose();
+                table = getData(rgb).clone();
+            } catch (Exception e) {
+                return null;   // color model not usable for a single byte band
+            }
+            if (grayTables.size() >= MAX_GRAY_TABLES) grayTables.clear();
+            grayTables.put(key, table);
+        }
+        return table;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+/**
+ * Identity of a single channel tile region: image (filename incl. level and series), level, plane index and region.
+ */
+public class ROIDef {
+    final String filename;
+    final int level,index,x,y,w,h;
+
+    public ROIDef(String filename, int level, int index, int x, int y, int w, int h) {
+        this.filename = filename;
+        this.level = level;
+        this.index = index;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+    }
+
+    /**
+     * Cache partition of this tile (one partition per image and level).
+     */
+    public String getPartition() {
+        return filename + "#" + level;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getW() {
+        return w;
+    }
+
+    public int getH() {
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "ROIDef{" +
+                "filename='" + filename + '\'' +
+                ", level=" + level +
+                ", index=" + index +
+                ", x=" + x +
+                ", y=" + y +
+                ", w=" + w +
+                ", h=" + h +
+                '}';
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ROIDef roiDef = (ROIDef) o;
+
+        if (level != roiDef.level) return false;
+        if (index != roiDef.index) return false;
+        if (x != roiDef.x) return false;
+        if (y != roiDef.y) return false;
+        if (w != roiDef.w) return false;
+        if (h != roiDef.h) return false;
+        return filename != null ? filename.equals(roiDef.filename) : roiDef.filename == null;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = filename != null ? filename.hashCode() : 0;
+        result = 31 * result + level;
+        result = 31 * result + index;
+        result = 31 * result + x;
+        result = 31 * result + y;
+        result = 31 * result + w;
+        result = 31 * result + h;
+        return result;
+    }
+}
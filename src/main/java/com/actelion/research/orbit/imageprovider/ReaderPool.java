@@ -0,0 +1,318 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import loci.formats.gui.BufferedImageReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Bounded pool of readers (each with its own RawPixelsStore) for one image, series and level.
+ * <p>
+ * Threads borrow a reader for one read operation and give it back afterwards. Readers are created on demand up to
+ * maxReadersPerImage and closed after being idle for idleTimeoutMs. Additionally the number of open readers (stores)
+ * of all pools of one server session (GatewayAndCtx) is limited to maxStoresPerSession. If this limit is reached,
+ * idle readers of other images of the same session are closed first, otherwise the borrower waits until a reader is given back.
+ * </p>
+ */
+public class ReaderPool implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReaderPool.class);
+    public static final int MAX_READERS_PER_IMAGE_DEFAULT = 8;
+    public static final int MAX_STORES_PER_SESSION_DEFAULT = 64;
+    public static final long IDLE_TIMEOUT_MS_DEFAULT = TimeUnit.MINUTES.toMillis(2);
+    private static final long WAIT_MS = 100;
+
+    private static volatile int maxReadersPerImage = MAX_READERS_PER_IMAGE_DEFAULT;
+    private static volatile int maxStoresPerSession = MAX_STORES_PER_SESSION_DEFAULT;
+    private static volatile long idleTimeoutMs = IDLE_TIMEOUT_MS_DEFAULT;
+    private static final Map<Object, Semaphore> sessionPermits = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final Set<ReaderPool> pools = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "omero-reader-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        evictor.scheduleWithFixedDelay(() -> {
+            for (ReaderPool pool : pools) {
+                try {
+                    pool.evictIdle(System.currentTimeMillis() - idleTimeoutMs);
+                } catch (Exception e) {
+                    logger.warn("error evicting idle readers of " + pool.name, e);
+                }
+            }
+        }, 10, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates a new, fully initialized reader. Might return null if the reader cannot be created.
+     */
+    public interface ReaderFactory {
+        BufferedImageReader create() throws Exception;
+    }
+
+    private final String name;
+    private final Object session;
+    private final ReaderFactory factory;
+    private final Deque<IdleReader> idle = new ArrayDeque<>();   // most recently used first
+    private final List<BufferedImageReader> readers = new ArrayList<>();
+    private int creating = 0;
+    private boolean closed = false;
+
+    /**
+     * @param name    name for logging, e.g. the image filename incl. level and series
+     * @param session server session the readers belong to (e.g. the GatewayAndCtx), the store limit applies per session
+     * @param factory creates the readers
+     */
+    public ReaderPool(String name, Object session, ReaderFactory factory) {
+        this.name = name;
+        this.session = session;
+        this.factory = factory;
+        pools.add(this);
+    }
+
+    /**
+     * Returns an idle reader or creates a new one. Waits if the image or session limit is reached.
+     * The reader must be given back with giveBack().
+     */
+    public BufferedImageReader borrow() throws IOException {
+        try {
+            while (true) {
+                BufferedImageReader reader = tryBorrow();
+                if (reader != null) return reader;
+                if (!evictIdleOfOtherPools()) {
+                    synchronized (this) {
+                        if (idle.isEmpty()) wait(WAIT_MS);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a reader of " + name, e);
+        }
+    }
+
+    /**
+     * Returns an idle reader, or creates a new one if the limits allow it, otherwise null (does not wait).
+     */
+    public BufferedImageReader tryBorrow() throws IOException {
+        final Semaphore permits = getSessionPermits(session);
+        synchronized (this) {
+            if (closed) throw new IOException("reader pool closed: " + name);
+            if (!idle.isEmpty()) {
+                return idle.pollFirst().reader;
+            }
+            if (readers.size() + creating >= maxReadersPerImage || !permits.tryAcquire()) {
+                return null;
+            }
+            creating++;
+        }
+        BufferedImageReader reader = null;
+        try {
+            reader = factory.create();
+        } catch (Exception e) {
+            logger.warn("error creating reader for " + name, e);
+        } finally {
+            synchronized (this) {
+                creating--;
+                if (reader != null) readers.add(reader);
+            }
+            if (reader == null) permits.release();
+        }
+        if (reader == null) {
+            throw new IOException("could not initialize reader for image " + name);
+        }
+        logger.debug("reader created for " + name + " (" + readers.size() + " readers)");
+        return reader;
+    }
+
+    /**
+     * Gives a borrowed reader back to the pool.
+     */
+    public void giveBack(BufferedImageReader reader) {
+        if (reader == null) return;
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(new IdleReader(reader, System.currentTimeMillis()));
+                notifyAll();
+                return;
+            }
+            readers.remove(reader);
+        }
+        closeReader(reader);
+    }
+
+    /**
+     * Applies an action to all readers of this pool (idle and borrowed ones), e.g. to set the resolution level.
+     */
+    public synchronized void forEachReader(Consumer<BufferedImageReader> action) {
+        for (BufferedImageReader reader : readers) {
+            action.accept(reader);
+        }
+    }
+
+    /**
+     * Closes all readers which are idle since before lastUsedBefore.
+     */
+    public void evictIdle(long lastUsedBefore) {
+        List<BufferedImageReader> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<IdleReader> iter = idle.descendingIterator();   // least recently used first
+            while (iter.hasNext()) {
+                IdleReader idleReader = iter.next();
+                if (idleReader.since >= lastUsedBefore) break;
+                iter.remove();
+                readers.remove(idleReader.reader);
+                evicted.add(idleReader.reader);
+            }
+        }
+        for (BufferedImageReader reader : evicted) {
+            logger.debug("closing idle reader of " + name);
+            closeReader(reader);
+        }
+    }
+
+    /**
+     * Closes the least recently used idle reader.
+     *
+     * @return true if a reader has been closed
+     */
+    private boolean evictOneIdle() {
+        BufferedImageReader reader;
+        synchronized (this) {
+            IdleReader idleReader = idle.pollLast();
+            if (idleReader == null) return false;
+            readers.remove(idleReader.reader);
+            reader = idleReader.reader;
+        }
+        closeReader(reader);
+        return true;
+    }
+
+    private boolean evictIdleOfOtherPools() {
+        for (ReaderPool pool : pools) {
+            if (pool != this && pool.session == session && pool.evictOneIdle()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeReader(BufferedImageReader reader) {
+        try {
+            reader.close();
+        } catch (Exception e) {
+            logger.debug("error closing reader of " + name, e);
+        }
+        getSessionPermits(session).release();
+    }
+
+    /**
+     * Closes all idle readers, borrowed readers are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        List<BufferedImageReader> toClose = new ArrayList<>();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            for (IdleReader idleReader : idle) {
+                toClose.add(idleReader.reader);
+                readers.remove(idleReader.reader);
+            }
+            idle.clear();
+            notifyAll();
+        }
+        pools.remove(this);
+        for (BufferedImageReader reader : toClose) {
+            closeReader(reader);
+        }
+    }
+
+    public synchronized int getReaderCount() {
+        return readers.size();
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    private static Semaphore getSessionPermits(Object session) {
+        synchronized (sessionPermits) {
+            return sessionPermits.computeIfAbsent(session, s -> new Semaphore(maxStoresPerSession));
+        }
+    }
+
+    public static int getMaxReadersPerImage() {
+        return maxReadersPerImage;
+    }
+
+    public static void setMaxReadersPerImage(int maxReadersPerImage) {
+        ReaderPool.maxReadersPerImage = Math.max(1, maxReadersPerImage);
+    }
+
+    public static int getMaxStoresPerSession() {
+        return maxStoresPerSession;
+    }
+
+    /**
+     * Maximum number of open readers (stores) per server session. Applies to sessions which are used afterwards.
+     */
+    public static void setMaxStoresPerSession(int maxStoresPerSession) {
+        ReaderPool.maxStoresPerSession = Math.max(1, maxStoresPerSession);
+    }
+
+    public static long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    public static void setIdleTimeoutMs(long idleTimeoutMs) {
+        ReaderPool.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReaderPool{" +
+                "name='" + name + '\'' +
+                ", readers=" + readers.size() +
+                ", idle=" + idle.size() +
+                ", closed=" + closed +
+                '}';
+    }
+
+    private static final class IdleReader {
+        final BufferedImageReader reader;
+        final long since;
+
+        IdleReader(BufferedImageReader reader, long since) {
+            this.reader = reader;
+            this.since = since;
+        }
+    }
+
+}
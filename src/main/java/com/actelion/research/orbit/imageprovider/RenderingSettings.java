@@ -0,0 +1,120 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import omero.api.IPixelsPrx;
+import omero.model.ChannelBinding;
+import omero.model.RenderingDef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel windows (input start/end) and colours of the Omero rendering definition of an image.
+ * <p>
+ * Loaded with one IPixels.retrieveRndSettings() call per image (the settings of the current user, otherwise the first available ones)
+ * and cached per pixelsId for 30 minutes.
+ * </p>
+ */
+public final class RenderingSettings {
+
+    private static final Logger logger = LoggerFactory.getLogger(RenderingSettings.class);
+    private static final Cache<Long, Optional<RenderingSettings>> settings = CacheBuilder.
+            newBuilder().
+            maximumSize(1000).
+            expireAfterWrite(30, TimeUnit.MINUTES).
+            build();
+
+    private final int[] start;
+    private final int[] end;
+    private final float[] hues;   // NaN for gray channels
+
+    private RenderingSettings(List<ChannelBinding> bindings) {
+        final int sizeC = bindings.size();
+        start = new int[sizeC];
+        end = new int[sizeC];
+        hues = new float[sizeC];
+        for (int c = 0; c < sizeC; c++) {
+            ChannelBinding cb = bindings.get(c);
+            start[c] = (int) Math.floor(cb.getInputStart().getValue());
+            end[c] = (int) Math.ceil(cb.getInputEnd().getValue());
+            final int r = cb.getRed().getValue(), g = cb.getGreen().getValue(), b = cb.getBlue().getValue();
+            final float[] hsb = Color.RGBtoHSB(r, g, b, null);
+            hues[c] = hsb[1] > 0.1f ? hsb[0] : Float.NaN;
+        }
+    }
+
+    /**
+     * @return the rendering settings of the pixels or null if there are none
+     */
+    public static RenderingSettings get(final ImageProviderOmero.GatewayAndCtx gatewayAndCtx, final long groupId, final long pixelsId) {
+        try {
+            return settings.get(pixelsId, () -> Optional.fromNullable(load(gatewayAndCtx, groupId, pixelsId))).orNull();
+        } catch (ExecutionException e) {
+            logger.warn("cannot load rendering settings of pixels " + pixelsId, e.getCause());
+            return null;
+        }
+    }
+
+    public static void invalidate(long pixelsId) {
+        settings.invalidate(pixelsId);
+    }
+
+    private static RenderingSettings load(ImageProviderOmero.GatewayAndCtx gatewayAndCtx, long groupId, long pixelsId) throws Exception {
+        IPixelsPrx pixelService = gatewayAndCtx.getGateway().getPixelsService(gatewayAndCtx.getCtx(groupId));
+        RenderingDef def = pixelService.retrieveRndSettings(pixelsId);
+        if (def == null) {
+            List<RenderingDef> defs = pixelService.retrieveAllRndSettings(pixelsId, -1);
+            def = defs == null || defs.isEmpty() ? null : defs.get(0);
+        }
+        if (def == null || def.sizeOfWaveRendering() <= 0) {
+            logger.debug("no rendering settings for pixels " + pixelsId);
+            return null;
+        }
+        return new RenderingSettings(def.copyWaveRendering());
+    }
+
+    public int getSizeC() {
+        return start.length;
+    }
+
+    /**
+     * Windows (input start/end) of all channels.
+     */
+    public MinMaxPerChan getMinMax() {
+        return new MinMaxPerChan(start.clone(), end.clone());
+    }
+
+    /**
+     * Hue of a channel colour, NaN for gray (white) channels.
+     */
+    public float getHue(int c) {
+        return hues[c];
+    }
+
+}
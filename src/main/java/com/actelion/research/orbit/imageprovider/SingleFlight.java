@@ -0,0 +1,95 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces concurrent fetches of the same key: the first caller claims the key and fetches, later callers wait for its result.
+ * <p>
+ * Usage: claim() returns null for the owner, which must call complete() in any case (with null if the fetch failed).
+ * All other callers get the owner's future and call await(). If await() returns null (owner failed or did not finish in time)
+ * they fetch themselves.
+ * </p>
+ */
+public final class SingleFlight<K, V> {
+
+    public static final long AWAIT_TIMEOUT_SECONDS_DEFAULT = 60;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong savedFetches = new AtomicLong(0);
+
+    /**
+     * @return null if the caller is the owner of the fetch, otherwise the future of the running fetch
+     */
+    public CompletableFuture<V> claim(K key) {
+        return inFlight.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    /**
+     * Publishes the result of the owner's fetch (null if it failed) and releases the key.
+     */
+    public void complete(K key, V value) {
+        CompletableFuture<V> future = inFlight.remove(key);
+        if (future != null) {
+            future.complete(value);
+        }
+    }
+
+    /**
+     * Waits for the owner's fetch at most AWAIT_TIMEOUT_SECONDS_DEFAULT seconds.
+     *
+     * @return the fetched value or null if the owner failed or did not finish in time
+     */
+    public V await(CompletableFuture<V> future) throws InterruptedException {
+        return await(future, AWAIT_TIMEOUT_SECONDS_DEFAULT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits for the owner's fetch. The wait is bounded, so callers never hang if an owner does not complete its key.
+     *
+     * @return the fetched value or null if the owner failed or did not finish in time
+     */
+    public V await(CompletableFuture<V> future, long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            V value = future.get(timeout, unit);
+            if (value != null) savedFetches.incrementAndGet();
+            return value;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Number of fetches which have been saved because a concurrent fetch of the same key was running.
+     */
+    public long getSavedFetches() {
+        return savedFetches.get();
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+}
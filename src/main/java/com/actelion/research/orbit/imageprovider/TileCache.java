@@ -0,0 +1,248 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tile cache bounded in bytes (not in number of tiles).
+ * <p>
+ * Only the raw sample arrays (DataBuffer) and the SampleModel of a tile are kept, rasters are re-created on access without copying.
+ * Tiles are partitioned per image and level (see ROIDef.getPartition()). Each partition is LRU ordered and may use at most
+ * partitionFraction of the budget. If the budget is exceeded, tiles are evicted from the largest partition first,
+ * thus a batch job reading one big image does not thrash the tiles of the other open images (e.g. the viewer).
+ * </p>
+ */
+public class TileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TileCache.class);
+    public static final int DEFAULT_SIZE_MB = 128;
+    public static final double DEFAULT_PARTITION_FRACTION = 0.5d;
+    private static final long ENTRY_OVERHEAD = 128;   // key, entry and DataBuffer objects
+
+    private final Map<String, Partition> partitions = new HashMap<>();
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+    private long maxBytes;
+    private double partitionFraction = DEFAULT_PARTITION_FRACTION;
+    private long expireAfterWriteMs = TimeUnit.MINUTES.toMillis(5);
+    private long bytes = 0;
+    private int size = 0;
+
+    public TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a raster backed by the cached sample arrays (origin 0/0) or null if the tile is not cached.
+     * The returned raster must not be modified.
+     */
+    public synchronized WritableRaster get(ROIDef key) {
+        Partition partition = partitions.get(key.getPartition());
+        Entry entry = partition != null ? partition.tiles.get(key) : null;   // access ordered -> moves entry to the end
+        if (entry != null && System.currentTimeMillis() - entry.created > expireAfterWriteMs) {
+            remove(partition, key, entry);
+            evictionCount.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return Raster.createWritableRaster(entry.sampleModel, entry.dataBuffer, null);
+    }
+
+    /**
+     * Caches the sample arrays of a raster. The raster must cover its whole data buffer (e.g. the raster of a BufferedImage).
+     */
+    public synchronized void put(ROIDef key, Raster raster) {
+        final long weight = weigh(raster.getDataBuffer());
+        final String partitionKey = key.getPartition();
+        Partition partition = partitions.get(partitionKey);
+        if (partition != null) {
+            Entry old = partition.tiles.get(key);
+            if (old != null) {
+                remove(partition, key, old);
+                partition = partitions.get(partitionKey);   // removed if it was the last tile
+            }
+        }
+        if (weight > getPartitionMaxBytes()) {
+            logger.debug("tile too large for cache: " + key + " (" + weight + " bytes)");
+            return;
+        }
+        if (partition == null) {
+            partition = new Partition();
+            partitions.put(partitionKey, partition);
+        }
+        Entry entry = new Entry(raster.getSampleModel(), raster.getDataBuffer(), weight);
+        partition.tiles.put(key, entry);
+        partition.bytes += weight;
+        bytes += weight;
+        size++;
+
+        // a single partition must not occupy more than its share
+        while (partition.bytes > getPartitionMaxBytes() && partition.tiles.size() > 1) {
+            evictEldest(partition);
+        }
+        evictToBudget();
+    }
+
+    public synchronized void invalidateAll() {
+        partitions.clear();
+        bytes = 0;
+        size = 0;
+    }
+
+    /**
+     * Global budget: evicts from the largest partition until the content fits into maxBytes.
+     */
+    private void evictToBudget() {
+        while (bytes > maxBytes && size > 0) {
+            Partition largest = null;
+            for (Partition p : partitions.values()) {
+                if (largest == null || p.bytes > largest.bytes) largest = p;
+            }
+            evictEldest(largest);
+        }
+    }
+
+    private void evictEldest(Partition partition) {
+        Iterator<Map.Entry<ROIDef, Entry>> iter = partition.tiles.entrySet().iterator();
+        Map.Entry<ROIDef, Entry> eldest = iter.next();
+        remove(partition, eldest.getKey(), eldest.getValue());
+        evictionCount.incrementAndGet();
+    }
+
+    private void remove(Partition partition, ROIDef key, Entry entry) {
+        partition.tiles.remove(key);
+        partition.bytes -= entry.weight;
+        bytes -= entry.weight;
+        size--;
+        if (partition.tiles.isEmpty()) {
+            partitions.remove(key.getPartition());
+        }
+    }
+
+    static long weigh(DataBuffer dataBuffer) {
+        return ENTRY_OVERHEAD + (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * (DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8);
+    }
+
+    private long getPartitionMaxBytes() {
+        return (long) (maxBytes * partitionFraction);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the budget in bytes, evicts tiles if the current content exceeds the new budget.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (bytes > maxBytes) {
+            logger.debug("tile cache budget reduced to " + maxBytes + " bytes");
+        }
+        evictToBudget();
+    }
+
+    public synchronized double getPartitionFraction() {
+        return partitionFraction;
+    }
+
+    public synchronized void setPartitionFraction(double partitionFraction) {
+        this.partitionFraction = partitionFraction;
+    }
+
+    public synchronized long getExpireAfterWriteMs() {
+        return expireAfterWriteMs;
+    }
+
+    public synchronized void setExpireAfterWriteMs(long expireAfterWriteMs) {
+        this.expireAfterWriteMs = expireAfterWriteMs;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TileCache{" +
+                "bytes=" + bytes +
+                ", maxBytes=" + maxBytes +
+                ", tiles=" + size +
+                ", partitions=" + partitions.size() +
+                ", hits=" + hitCount.get() +
+                ", misses=" + missCount.get() +
+                ", evictions=" + evictionCount.get() +
+                '}';
+    }
+
+    private static final class Partition {
+        final LinkedHashMap<ROIDef, Entry> tiles = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes = 0;
+    }
+
+    private static final class Entry {
+        final SampleModel sampleModel;
+        final DataBuffer dataBuffer;
+        final long weight;
+        final long created = System.currentTimeMillis();
+
+        Entry(SampleModel sampleModel, DataBuffer dataBuffer, long weight) {
+            this.sampleModel = sampleModel;
+            this.dataBuffer = dataBuffer;
+            this.weight = weight;
+        }
+    }
+
+}
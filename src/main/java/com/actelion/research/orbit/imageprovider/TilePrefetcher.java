@@ -0,0 +1,424 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Predicts the next tiles of one image level from the recent demand accesses and loads them in the background into the tile caches.
+ * <p>
+ * Two access patterns are detected: sequential scans (e.g. the raster scan of an analysis, continued on the next tile row) and
+ * viewport panning (the recently accessed tiles move in one direction, then the tiles in front of the viewport are loaded).
+ * Additionally the corresponding tile of the next coarser level and, if the viewport does not move, the tiles of the next finer level
+ * are loaded (only if these levels are open, see register()).
+ * </p>
+ * <p>
+ * Prefetches run on a small shared pool with low thread priority, only use idle readers (ReaderPool.tryBorrow()) and are deferred
+ * while demand reads are running. Queued prefetches which are not predicted anymore are cancelled.
+ * </p>
+ */
+public class TilePrefetcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(TilePrefetcher.class);
+    public static final int PREFETCH_DEPTH_DEFAULT = 2;
+    private static final int PREFETCH_THREADS = 2;
+    private static final int QUEUE_SIZE = 256;
+    private static final int HISTORY = 16;
+    private static final int MAX_PREDICTED = 32;
+    private static final int MAX_PREFETCHED = 4096;
+    private static final long DEMAND_WAIT_MS = 10;
+    private static final long MAX_DEFER_MS = 2000;
+
+    private static volatile int prefetchDepth = PREFETCH_DEPTH_DEFAULT;
+    private static final AtomicInteger demandReads = new AtomicInteger(0);
+    private static final AtomicLong totalPrefetched = new AtomicLong(0);
+    private static final AtomicLong totalHits = new AtomicLong(0);
+    private static final AtomicLong totalCancelled = new AtomicLong(0);
+    private static final Map<String, TilePrefetcher> registry = new ConcurrentHashMap<>();
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(QUEUE_SIZE), new ThreadFactory() {
+        private final AtomicLong threadCount = new AtomicLong(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "omero-tile-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }, (r, executor) -> {
+        if (r instanceof PrefetchTask) ((PrefetchTask) r).rejected();   // queue full, drop it
+    });
+
+    /**
+     * Loads a tile into the caches (nothing is rendered for the caller).
+     */
+    public interface TileLoader {
+        /**
+         * @return false if the tile could not be loaded now (e.g. no idle reader), it is not counted as prefetched then
+         */
+        boolean prefetchTile(int tileX, int tileY) throws Exception;
+    }
+
+    private final String imageKey;
+    private final int level;
+    private final long width;
+    private final long height;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int tilesX;
+    private final int tilesY;
+    private final TileLoader loader;
+    private final long[] history = new long[HISTORY];   // ring buffer of tile keys, most recent at historyPos-1
+    private int historyPos = 0;
+    private int historySize = 0;
+    private final Map<Long, Future<?>> pending = new ConcurrentHashMap<>();
+    private final Set<Long> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchCount = new AtomicLong(0);
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    /**
+     * @param imageKey identifies the image and series (the same for all levels)
+     */
+    public TilePrefetcher(String imageKey, int level, long width, long height, int tileWidth, int tileHeight, TileLoader loader) {
+        this.imageKey = imageKey;
+        this.level = level;
+        this.width = width;
+        this.height = height;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tilesX = (int) ((width + tileWidth - 1) / tileWidth);
+        this.tilesY = (int) ((height + tileHeight - 1) / tileHeight);
+        this.loader = loader;
+    }
+
+    /**
+     * Makes this prefetcher available for prefetches of the neighbour levels of the same image.
+     */
+    public void register() {
+        registry.put(registryKey(imageKey, level), this);
+    }
+
+    /**
+     * Marks the begin of a demand read (of any image), prefetches are deferred until all demand reads are finished.
+     */
+    public static void beginDemandRead() {
+        demandReads.incrementAndGet();
+    }
+
+    public static void endDemandRead() {
+        demandReads.decrementAndGet();
+    }
+
+    /**
+     * Records a demand access of a tile and schedules the prefetches predicted by the recent accesses.
+     */
+    public void tileAccessed(int tileX, int tileY) {
+        if (closed) return;
+        final long key = tileKey(tileX, tileY);
+        if (prefetched.remove(key)) {
+            hitCount.incrementAndGet();
+            totalHits.incrementAndGet();
+        }
+        Future<?> inFlight = pending.remove(key);
+        if (inFlight != null) {
+            inFlight.cancel(false);   // the demand read loads it anyway (a running prefetch completes)
+        }
+        if (prefetchDepth <= 0) return;
+
+        final LinkedHashSet<Long> predicted = new LinkedHashSet<>();
+        final boolean moving;
+        synchronized (this) {
+            history[historyPos] = key;
+            historyPos = (historyPos + 1) % HISTORY;
+            if (historySize < HISTORY) historySize++;
+            predictSequential(predicted);
+            moving = predictPanning(predicted);
+        }
+        predicted.remove(key);
+
+        // cancel queued prefetches which are not predicted anymore
+        for (Map.Entry<Long, Future<?>> entry : pending.entrySet()) {
+            if (!predicted.contains(entry.getKey()) && entry.getValue().cancel(false)) {
+                totalCancelled.incrementAndGet();
+            }
+        }
+        for (Long tile : predicted) {
+            schedule(tile);
+        }
+        prefetchNeighbourLevels(tileX, tileY, !moving);
+    }
+
+    /**
+     * Sequential access with a constant step of one tile: the next tiles in this direction, a horizontal scan continues on the next row.
+     */
+    private void predictSequential(Set<Long> predicted) {
+        if (historySize < 3) return;
+        final long cur = historyAt(0), prev = historyAt(1), prev2 = historyAt(2);
+        final int dx = tileX(cur) - tileX(prev), dy = tileY(cur) - tileY(prev);
+        if (Math.abs(dx) + Math.abs(dy) != 1) return;
+        if (tileX(prev) - tileX(prev2) != dx || tileY(prev) - tileY(prev2) != dy) return;
+        int x = tileX(cur), y = tileY(cur);
+        for (int k = 0; k < prefetchDepth; k++) {
+            x += dx;
+            y += dy;
+            if (dx == 1 && x >= tilesX) {   // raster scan
+                x = 0;
+                y++;
+            }
+            if (!inside(x, y)) break;
+            predicted.add(tileKey(x, y));
+        }
+    }
+
+    /**
+     * Compares the centroids of the older and the newer half of the history. If the viewport moves, the tiles in front of the
+     * bounding box of the newer accesses are predicted.
+     *
+     * @return true if the viewport moves
+     */
+    private boolean predictPanning(Set<Long> predicted) {
+        if (historySize < HISTORY) return false;
+        final int half = HISTORY / 2;
+        double oldX = 0, oldY = 0, newX = 0, newY = 0;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < HISTORY; i++) {
+            final long k = historyAt(i);
+            if (i < half) {
+                newX += tileX(k);
+                newY += tileY(k);
+                minX = Math.min(minX, tileX(k));
+                maxX = Math.max(maxX, tileX(k));
+                minY = Math.min(minY, tileY(k));
+                maxY = Math.max(maxY, tileY(k));
+            } else {
+                oldX += tileX(k);
+                oldY += tileY(k);
+            }
+        }
+        final double mx = (newX - oldX) / half;
+        final double my = (newY - oldY) / half;
+        final int sx = mx >= 0.5 ? 1 : (mx <= -0.5 ? -1 : 0);
+        final int sy = my >= 0.5 ? 1 : (my <= -0.5 ? -1 : 0);
+        if (sx == 0 && sy == 0) return false;
+        for (int k = 1; k <= prefetchDepth && predicted.size() < MAX_PREDICTED; k++) {
+            if (sx != 0) {
+                final int x = sx > 0 ? maxX + k : minX - k;
+                for (int y = minY; y <= maxY && predicted.size() < MAX_PREDICTED; y++) {
+                    if (inside(x, y)) predicted.add(tileKey(x, y));
+                }
+            }
+            if (sy != 0) {
+                final int y = sy > 0 ? maxY + k : minY - k;
+                for (int x = minX; x <= maxX && predicted.size() < MAX_PREDICTED; x++) {
+                    if (inside(x, y)) predicted.add(tileKey(x, y));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The tile of the next coarser level covering this tile, and if the viewport is not moving (zoom in is likely) the tiles of
+     * the next finer level covered by this tile.
+     */
+    private void prefetchNeighbourLevels(int tileX, int tileY, boolean includeFiner) {
+        final TilePrefetcher coarser = registry.get(registryKey(imageKey, level + 1));
+        if (coarser != null && !coarser.closed) {
+            final double fx = coarser.width / (double) width, fy = coarser.height / (double) height;
+            coarser.schedule(coarser.tileKeyAt((long) (tileX * (long) tileWidth * fx), (long) (tileY * (long) tileHeight * fy)));
+        }
+        final TilePrefetcher finer = includeFiner ? registry.get(registryKey(imageKey, level - 1)) : null;
+        if (finer != null && !finer.closed) {
+            final double fx = finer.width / (double) width, fy = finer.height / (double) height;
+            final long x0 = (long) (tileX * (long) tileWidth * fx), y0 = (long) (tileY * (long) tileHeight * fy);
+            final long x1 = (long) (Math.min(width, (tileX + 1L) * tileWidth) * fx) - 1, y1 = (long) (Math.min(height, (tileY + 1L) * tileHeight) * fy) - 1;
+            int count = 0;
+            for (long y = y0; y <= y1 && count < 4; y += finer.tileHeight) {
+                for (long x = x0; x <= x1 && count < 4; x += finer.tileWidth, count++) {
+                    finer.schedule(finer.tileKeyAt(x, y));
+                }
+            }
+        }
+    }
+
+    private void schedule(final long key) {
+        if (closed || key < 0 || prefetched.contains(key) || pending.containsKey(key)) return;
+        if (pool.getQueue().remainingCapacity() == 0) {
+            pool.purge();   // remove cancelled tasks
+        }
+        final PrefetchTask task = new PrefetchTask(this, key);
+        if (pending.putIfAbsent(key, task) != null) return;
+        pool.execute(task);
+    }
+
+    private void runPrefetch(long key) throws Exception {
+        final long deferUntil = System.currentTimeMillis() + MAX_DEFER_MS;
+        while (demandReads.get() > 0 && System.currentTimeMillis() < deferUntil) {
+            Thread.sleep(DEMAND_WAIT_MS);
+            if (closed || !pending.containsKey(key)) return;   // cancelled or demanded meanwhile
+        }
+        if (closed) return;
+        try {
+            if (loader.prefetchTile(tileX(key), tileY(key))) {
+                if (prefetched.size() >= MAX_PREFETCHED) prefetched.clear();
+                prefetched.add(key);
+                prefetchCount.incrementAndGet();
+                totalPrefetched.incrementAndGet();
+            }
+        } catch (Exception e) {
+            logger.debug("prefetch of tile " + tileX(key) + "/" + tileY(key) + " of " + imageKey + " [" + level + "] failed", e);
+        }
+    }
+
+    /**
+     * Cancels all queued prefetches of this level.
+     */
+    public void cancelAll() {
+        for (Map.Entry<Long, Future<?>> entry : pending.entrySet()) {
+            if (entry.getValue().cancel(false)) totalCancelled.incrementAndGet();
+        }
+        pool.purge();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        registry.remove(registryKey(imageKey, level), this);
+        cancelAll();
+        if (logger.isDebugEnabled() && prefetchCount.get() > 0) {
+            logger.debug("prefetcher " + imageKey + " [" + level + "]: " + prefetchCount.get() + " tiles prefetched, hit ratio " + getHitRatio());
+        }
+    }
+
+    /**
+     * Fraction of the prefetched tiles of this level which have been accessed afterwards.
+     */
+    public double getHitRatio() {
+        final long count = prefetchCount.get();
+        return count == 0 ? 0d : hitCount.get() / (double) count;
+    }
+
+    /**
+     * Fraction of all prefetched tiles which have been accessed afterwards.
+     */
+    public static double getTotalHitRatio() {
+        final long count = totalPrefetched.get();
+        return count == 0 ? 0d : totalHits.get() / (double) count;
+    }
+
+    public static long getTotalPrefetched() {
+        return totalPrefetched.get();
+    }
+
+    public static long getTotalHits() {
+        return totalHits.get();
+    }
+
+    public static long getTotalCancelled() {
+        return totalCancelled.get();
+    }
+
+    public static int getPrefetchDepth() {
+        return prefetchDepth;
+    }
+
+    /**
+     * Number of tiles prefetched ahead of the access pattern, 0 disables prefetching.
+     */
+    public static void setPrefetchDepth(int prefetchDepth) {
+        TilePrefetcher.prefetchDepth = Math.max(0, prefetchDepth);
+    }
+
+    private long historyAt(int age) {
+        return history[(historyPos - 1 - age + HISTORY * 2) % HISTORY];
+    }
+
+    private boolean inside(int x, int y) {
+        return x >= 0 && y >= 0 && x < tilesX && y < tilesY;
+    }
+
+    /**
+     * Key of the tile containing the pixel position, -1 if outside.
+     */
+    private long tileKeyAt(long x, long y) {
+        final int tx = (int) (x / tileWidth), ty = (int) (y / tileHeight);
+        return inside(tx, ty) ? tileKey(tx, ty) : -1;
+    }
+
+    private static final class PrefetchTask extends FutureTask<Void> {
+        private final TilePrefetcher owner;
+        private final long key;
+
+        PrefetchTask(TilePrefetcher owner, long key) {
+            super(() -> {
+                owner.runPrefetch(key);
+                return null;
+            });
+            this.owner = owner;
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {   // completed or cancelled
+            owner.pending.remove(key, this);
+        }
+
+        void rejected() {
+            cancel(false);
+        }
+    }
+
+    private static long tileKey(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xFFFFFFFFL);
+    }
+
+    private static int tileX(long key) {
+        return (int) (key >>> 32);
+    }
+
+    private static int tileY(long key) {
+        return (int) key;
+    }
+
+    private static String registryKey(String imageKey, int level) {
+        return imageKey + "#" + level;
+    }
+
+    @Override
+    public String toString() {
+        return "TilePrefetcher{" +
+                "image='" + imageKey + '\'' +
+                ", level=" + level +
+                ", pending=" + pending.size() +
+                ", prefetched=" + prefetchCount.get() +
+                ", hits=" + hitCount.get() +
+                '}';
+    }
+
+}
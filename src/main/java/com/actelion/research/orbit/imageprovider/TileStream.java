@@ -0,0 +1,422 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import javax.media.jai.PlanarImage;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams all tiles (row by row) of one image level as Stream or Flow.Publisher, e.g. for analysis runs over whole slides.
+ * <p>
+ * Each spliterator loads a bounded window of tiles ahead on a shared pool. The tiles are rendered into pooled tile buffers
+ * (at most maxBuffers per stream), a buffer is reused as soon as its tile has been consumed, so memory stays bounded for any slide size.
+ * A spliterator which has no tile in its window and gets no buffer within BUFFER_WAIT_MILLIS loads one tile into an extra buffer
+ * (which is not pooled): the buffers might be held by the windows of spliterators which a short-circuiting parallel stream (anyMatch(),
+ * findFirst(), limit()) does not call any more.
+ * A TileRaster is only valid during the action / onNext() call (or until release() is called), copy the data to keep it.
+ * Parallel streams split the tile range (fork-join), each part with its own window.
+ * </p>
+ * <p>
+ * Streams should be closed (try-with-resources) if they are not consumed completely (e.g. findFirst()), this cancels the pending loads.
+ * </p>
+ */
+public class TileStream implements Closeable {
+
+    public static final int PREFETCH_WINDOW_DEFAULT = 8;
+    private static final long BUFFER_WAIT_MILLIS = 100;
+    private static final int FETCH_THREADS = 8;
+    private static final ExecutorService fetchPool = Executors.newFixedThreadPool(FETCH_THREADS, daemonThreads("omero-tile-stream-"));
+    private static final ExecutorService deliveryPool = Executors.newCachedThreadPool(daemonThreads("omero-tile-publisher-"));
+
+    private final OrbitImageBioformatsOmero image;
+    private final boolean analysis;
+    private final float[] channelContributions;
+    private final float[] analysisHues;
+    private final int prefetchWindow;
+    private final boolean foregroundOnly;
+    private final int tilesX;
+    private final int tileCount;
+    private final Semaphore bufferPermits;
+    private final ConcurrentLinkedQueue<BufferedImage> freeBuffers = new ConcurrentLinkedQueue<>();
+    private final Set<TileSpliterator> open = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+
+    /**
+     * Display tiles (channel contributions of the image) of all tiles, default prefetch window.
+     */
+    public TileStream(OrbitImageBioformatsOmero image) {
+        this(image, false, null, null, PREFETCH_WINDOW_DEFAULT, 2 * PREFETCH_WINDOW_DEFAULT, false);
+    }
+
+    /**
+     * @param analysis             analysis tiles (see getTileData())
+     * @param channelContributions channel contributions, null for the contributions of the image (display tiles)
+     * @param prefetchWindow       tiles loaded ahead per spliterator
+     * @param maxBuffers           tile buffers of the stream (tiles in the windows and in consumption)
+     * @param foregroundOnly       skip background tiles (see OrbitImageBioformatsOmero.isTileForeground())
+     */
+    public TileStream(OrbitImageBioformatsOmero image, boolean analysis, float[] channelContributions, float[] analysisHues, int prefetchWindow, int maxBuffers, boolean foregroundOnly) {
+        if (prefetchWindow < 1 || maxBuffers < 1) {
+            throw new IllegalArgumentException("prefetchWindow and maxBuffers must be positive (" + prefetchWindow + ", " + maxBuffers + ")");
+        }
+        this.image = image;
+        this.analysis = analysis;
+        this.channelContributions = (analysis || channelContributions != null) ? channelContributions : image.getChannelContributions();
+        this.analysisHues = analysisHues;
+        this.prefetchWindow = prefetchWindow;
+        this.foregroundOnly = foregroundOnly;
+        this.tilesX = (image.getWidth() + image.getTileWidth() - 1) / image.getTileWidth();
+        this.tileCount = tilesX * ((image.getHeight() + image.getTileHeight() - 1) / image.getTileHeight());
+        this.bufferPermits = new Semaphore(maxBuffers);
+        if (foregroundOnly) image.getTissueMask();   // compute it once, not in the first tile checks
+    }
+
+    public Spliterator<TileRaster> spliterator() {
+        return new TileSpliterator(0, tileCount);
+    }
+
+    /**
+     * Tiles as stream, closing the stream closes this TileStream.
+     */
+    public Stream<TileRaster> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel).onClose(this::close);
+    }
+
+    /**
+     * Tiles as reactive stream: each subscriber gets all tiles in row order, loaded with the same bounded window.
+     * The tiles are delivered on a publisher thread, a tile is released when onNext() returns.
+     */
+    public Flow.Publisher<TileRaster> publisher() {
+        return subscriber -> {
+            if (subscriber == null) throw new NullPointerException("subscriber");
+            subscriber.onSubscribe(new TileSubscription(subscriber));
+        };
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Cancels the pending tile loads of all spliterators and subscriptions.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (TileSpliterator tiles : open) {
+            tiles.cancel();
+        }
+    }
+
+    private boolean accept(int index) {
+        return !foregroundOnly || image.isTileForeground(index % tilesX, index / tilesX, image.getLevel());
+    }
+
+    /**
+     * @param pooled true if the load holds a buffer permit (pooled buffer), false for an extra buffer
+     */
+    private TileRaster load(int index, boolean pooled) throws Exception {
+        final int tileX = index % tilesX;
+        final int tileY = index / tilesX;
+        BufferedImage buffer = pooled ? freeBuffers.poll() : null;
+        if (buffer == null) buffer = PackedRGB.createImage(image.getTileWidth(), image.getTileHeight());
+        final BufferedImage img;
+        try {
+            img = image.getTileImage(tileX, tileY, channelContributions, analysis, analysisHues, buffer);
+        } catch (Exception e) {
+            if (pooled) freeBuffers.offer(buffer);
+            throw e;
+        }
+        if (img != buffer && pooled) freeBuffers.offer(buffer);   // e.g. a cached tile image has been returned
+        Raster raster = img.getRaster().createWritableTranslatedChild(PlanarImage.tileXToX(tileX, image.getTileGridXOffset(), image.getTileWidth()), PlanarImage.tileYToY(tileY, image.getTileGridYOffset(), image.getTileHeight()));
+        return new TileRaster(tileX, tileY, raster, img == buffer ? buffer : null, pooled);
+    }
+
+    /**
+     * A tile (full tile size, positioned at its image coordinates) and its pooled buffer.
+     */
+    public final class TileRaster {
+        private final int tileX;
+        private final int tileY;
+        private final Raster raster;
+        private final BufferedImage buffer;
+        private final boolean pooled;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private TileRaster(int tileX, int tileY, Raster raster, BufferedImage buffer, boolean pooled) {
+            this.tileX = tileX;
+            this.tileY = tileY;
+            this.raster = raster;
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        public int getTileX() {
+            return tileX;
+        }
+
+        public int getTileY() {
+            return tileY;
+        }
+
+        public Raster getRaster() {
+            return raster;
+        }
+
+        /**
+         * Gives the buffer back to the stream (called automatically after consumption), the raster must not be used afterwards.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true) && pooled) {   // extra buffers are dropped
+                if (buffer != null) freeBuffers.offer(buffer);
+                bufferPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Load of one tile, holds a buffer permit (if pooled) until the tile is released.
+     */
+    private final class Fetch implements Runnable {
+        private final int index;
+        private final boolean pooled;
+        private final CompletableFuture<TileRaster> result = new CompletableFuture<>();
+
+        private Fetch(int index, boolean pooled) {
+            this.index = index;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {   // cancelled before it started
+                if (pooled) bufferPermits.release();
+                return;
+            }
+            try {
+                TileRaster tile = load(index, pooled);
+                if (!result.complete(tile)) tile.release();
+            } catch (Throwable e) {
+                if (pooled) bufferPermits.release();
+                result.completeExceptionally(e);
+            }
+        }
+
+        private TileRaster get() {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new IllegalStateException("interrupted while loading tile " + index, e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("cannot load tile " + (index % tilesX) + "/" + (index / tilesX) + " of " + image.getFilename(), e.getCause());
+            }
+        }
+
+        private void cancel() {
+            if (!result.cancel(false)) result.thenAccept(TileRaster::release);
+        }
+    }
+
+    /**
+     * Tile indices [index, end) in row order. Splits only before the first tile has been requested.
+     */
+    private final class TileSpliterator implements Spliterator<TileRaster> {
+        private final ConcurrentLinkedDeque<Fetch> window = new ConcurrentLinkedDeque<>();   // also accessed by close()
+        private int next;   // next tile index to submit
+        private final int end;
+        private boolean started = false;
+
+        private TileSpliterator(int start, int end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super TileRaster> action) {
+            if (!started) {
+                started = true;
+                open.add(this);
+            }
+            if (closed) {
+                cancel();
+                return false;
+            }
+            fill();
+            final Fetch fetch = window.pollFirst();
+            if (fetch == null) {
+                open.remove(this);
+                return false;
+            }
+            final TileRaster tile = fetch.get();
+            try {
+                action.accept(tile);
+            } finally {
+                tile.release();
+            }
+            return true;
+        }
+
+        /**
+         * Submits tiles up to the window size. Only waits for a buffer if the window is empty, and at most BUFFER_WAIT_MILLIS:
+         * the other buffers are released by the consumers of the other spliterators (which never wait while they have pending tiles),
+         * but a short-circuiting stream might not call these spliterators any more. Then one tile is loaded into an extra buffer.
+         */
+        private void fill() {
+            while (window.size() < prefetchWindow) {
+                while (next < end && !accept(next)) next++;
+                if (next >= end) return;
+                boolean pooled = true;
+                if (window.isEmpty()) {
+                    try {
+                        pooled = bufferPermits.tryAcquire(BUFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("interrupted while waiting for a tile buffer", e);
+                    }
+                } else if (!bufferPermits.tryAcquire()) {
+                    return;
+                }
+                final Fetch fetch = new Fetch(next++, pooled);
+                window.addLast(fetch);
+                fetchPool.execute(fetch);
+            }
+        }
+
+        private void cancel() {
+            Fetch fetch;
+            while ((fetch = window.pollFirst()) != null) {
+                fetch.cancel();
+            }
+            next = end;
+            open.remove(this);
+        }
+
+        @Override
+        public Spliterator<TileRaster> trySplit() {
+            if (started) return null;
+            final int mid = (next + end) >>> 1;
+            if (mid <= next) return null;
+            final TileSpliterator prefix = new TileSpliterator(next, mid);
+            next = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return window.size() + (end - next);   // exact if not filtered
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | (foregroundOnly ? 0 : SIZED | SUBSIZED);
+        }
+    }
+
+    /**
+     * Delivers the tiles of one spliterator on demand, the drain loop runs on the delivery pool (at most one loop per subscription).
+     */
+    private final class TileSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super TileRaster> subscriber;
+        private final TileSpliterator tiles = new TileSpliterator(0, tileCount);
+        private final AtomicLong requested = new AtomicLong(0);
+        private final AtomicInteger wip = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private boolean done = false;
+
+        private TileSubscription(Flow.Subscriber<? super TileRaster> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancelled = true;
+                subscriber.onError(new IllegalArgumentException("non-positive request " + n));
+            } else {
+                requested.getAndUpdate(r -> r + n < 0 ? Long.MAX_VALUE : r + n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() == 0) deliveryPool.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!cancelled && !done && requested.get() > 0) {
+                    final boolean more;
+                    try {
+                        more = tiles.tryAdvance(subscriber::onNext);
+                    } catch (Throwable e) {
+                        done = true;
+                        tiles.cancel();
+                        subscriber.onError(e);
+                        break;
+                    }
+                    if (!more) {
+                        done = true;
+                        subscriber.onComplete();
+                        break;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) requested.decrementAndGet();
+                }
+                if (cancelled) tiles.cancel();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicLong threadCount = new AtomicLong(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider;
+
+import java.awt.image.Raster;
+import java.util.Arrays;
+
+/**
+ * Foreground (tissue) mask of a whole image, computed from a low resolution level.
+ * <p>
+ * The intensities of the first band are normalized to 0..255 (min/max of the image). The background intensity is the median of the
+ * image border (glass of brightfield slides is bright, the background of fluo images is dark), all pixels which differ by at least
+ * the threshold are foreground. The mask is dilated by one pixel, so tissue at the border of a mask pixel is not lost.
+ * </p>
+ */
+public final class TissueMask {
+
+    public static final double THRESHOLD_DEFAULT = 20d;
+    private static volatile double threshold = THRESHOLD_DEFAULT;
+
+    private final boolean[] mask;
+    private final int maskWidth;
+    private final int maskHeight;
+    private final long imageWidth;
+    private final long imageHeight;
+    private final double foregroundFraction;
+
+    private TissueMask(boolean[] mask, int maskWidth, int maskHeight, long imageWidth, long imageHeight) {
+        this.mask = mask;
+        this.maskWidth = maskWidth;
+        this.maskHeight = maskHeight;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        int cnt = 0;
+        for (boolean fg : mask) {
+            if (fg) cnt++;
+        }
+        this.foregroundFraction = cnt / (double) mask.length;
+    }
+
+    /**
+     * @param lowRes      low resolution image (e.g. the coarsest pyramid level), band 0 is used
+     * @param imageWidth  width of the full resolution image (level 0)
+     * @param imageHeight height of the full resolution image (level 0)
+     * @param threshold   minimum difference to the background intensity (0..255) of foreground pixels
+     */
+    public static TissueMask compute(Raster lowRes, long imageWidth, long imageHeight, double threshold) {
+        final int w = lowRes.getWidth();
+        final int h = lowRes.getHeight();
+        final double[] values = lowRes.getSamples(lowRes.getMinX(), lowRes.getMinY(), w, h, 0, (double[]) null);
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for (double v : values) {
+            if (v < min) min = v;
+            if (v > max) max = v;
+        }
+        final double scale = max > min ? 255d / (max - min) : 0d;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (values[i] - min) * scale;
+        }
+        final double background = borderMedian(values, w, h);
+
+        final boolean[] fg = new boolean[w * h];
+        for (int i = 0; i < values.length; i++) {
+            fg[i] = Math.abs(values[i] - background) >= threshold;
+        }
+        final boolean[] dilated = new boolean[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                if (!fg[y * w + x]) continue;
+                for (int yy = Math.max(0, y - 1); yy <= Math.min(h - 1, y + 1); yy++) {
+                    for (int xx = Math.max(0, x - 1); xx <= Math.min(w - 1, x + 1); xx++) {
+                        dilated[yy * w + xx] = true;
+                    }
+                }
+            }
+        }
+        return new TissueMask(dilated, w, h, imageWidth, imageHeight);
+    }
+
+    private static double borderMedian(double[] values, int w, int h) {
+        final double[] border = new double[2 * w + 2 * Math.max(0, h - 2)];
+        int n = 0;
+        for (int x = 0; x < w; x++) {
+            border[n++] = values[x];
+            if (h > 1) border[n++] = values[(h - 1) * w + x];
+        }
+        for (int y = 1; y < h - 1; y++) {
+            border[n++] = values[y * w];
+            if (w > 1) border[n++] = values[y * w + w - 1];
+        }
+        Arrays.sort(border, 0, n);
+        return n > 0 ? border[n / 2] : 0d;
+    }
+
+    /**
+     * Mask which treats everything as foreground (e.g. if the low resolution image cannot be read).
+     */
+    public static TissueMask all(long imageWidth, long imageHeight) {
+        boolean[] mask = new boolean[]{true};
+        return new TissueMask(mask, 1, 1, imageWidth, imageHeight);
+    }
+
+    /**
+     * True if the region (full resolution coordinates) contains foreground.
+     */
+    public boolean isForeground(long x, long y, long w, long h) {
+        final int mx0 = (int) Math.max(0, Math.floor(x * maskWidth / (double) imageWidth));
+        final int my0 = (int) Math.max(0, Math.floor(y * maskHeight / (double) imageHeight));
+        final int mx1 = (int) Math.min(maskWidth, Math.ceil((x + w) * maskWidth / (double) imageWidth));
+        final int my1 = (int) Math.min(maskHeight, Math.ceil((y + h) * maskHeight / (double) imageHeight));
+        for (int my = my0; my < my1; my++) {
+            for (int mx = mx0; mx < mx1; mx++) {
+                if (mask[my * maskWidth + mx]) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Fraction of the mask pixels which are foreground.
+     */
+    public double getForegroundFraction() {
+        return foregroundFraction;
+    }
+
+    public int getMaskWidth() {
+        return maskWidth;
+    }
+
+    public int getMaskHeight() {
+        return maskHeight;
+    }
+
+    /**
+     * Minimum difference (0..255) to the background intensity of foreground pixels. Applies to masks computed afterwards.
+     */
+    public static void setThreshold(double threshold) {
+        TissueMask.threshold = threshold;
+    }
+
+    public static double getThreshold() {
+        return threshold;
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider.playground;
+
+import com.actelion.research.orbit.beans.MinMaxPerChan;
+import com.actelion.research.orbit.imageprovider.ChannelMinMax;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the channel windows of ChannelMinMax (server histogram layout and streamed histograms) with the exact min/max of the pixels
+ * (as the former MinMaxCalculator computed them) and with exact percentiles if clipping is enabled. The server binning of
+ * RawPixelsStore.getHistogram(globalRange=true) is simulated on synthetic 16bit planes. Does not need an Omero server.
+ */
+public class ChannelMinMaxTest {
+
+    public static void main(String[] args) {
+        final Random random = new Random(42);
+        int failed = 0;
+        for (int round = 0; round < 200; round++) {
+            final int[] plane = createPlane(random);
+            final double clip = round % 4 == 0 ? 0d : random.nextDouble() * 2d;
+            failed += check("round " + round + " server (clip " + clip + ")", serverWindow(random, plane, clip), exactWindow(plane, clip));
+            failed += check("round " + round + " streamed (clip " + clip + ")", streamedWindow(plane, clip), exactWindow(plane, clip));
+        }
+        failed += check("constant plane", serverWindow(random, new int[]{7, 7, 7, 7}, 0d), new int[]{7, 7});
+        System.out.println(failed == 0 ? "all channel windows are exact" : failed + " checks FAILED");
+    }
+
+    private static int check(String name, int[] window, int[] expected) {
+        if (Arrays.equals(window, expected)) return 0;
+        System.out.println(name + ": window " + Arrays.toString(window) + " but expected " + Arrays.toString(expected));
+        return 1;
+    }
+
+    /**
+     * Random 16bit plane with a random intensity range (narrow and wide, with outliers).
+     */
+    private static int[] createPlane(Random random) {
+        final int[] plane = new int[1000 + random.nextInt(50000)];
+        final int base = random.nextInt(60000);
+        final int spread = 1 + random.nextInt(65536 - base);
+        for (int i = 0; i < plane.length; i++) plane[i] = base + random.nextInt(spread);
+        if (random.nextBoolean()) plane[random.nextInt(plane.length)] = random.nextInt(65536);   // outlier
+        return plane;
+    }
+
+    /**
+     * Exact window: min/max of the pixels, or the percentiles at both ends if clip > 0 (same limit as ChannelMinMax.getWindows()).
+     */
+    private static int[] exactWindow(int[] plane, double clip) {
+        final int[] sorted = plane.clone();
+        Arrays.sort(sorted);
+        final int limit = (int) Math.floor(sorted.length * clip / 100d);
+        return new int[]{sorted[limit], sorted[sorted.length - 1 - limit]};
+    }
+
+    /**
+     * Histogram binned like the server: the global range of the channel (StatsInfo over all planes) contains the plane range.
+     */
+    private static int[] serverWindow(Random random, int[] plane, double clip) {
+        int planeMin = Integer.MAX_VALUE;
+        int planeMax = Integer.MIN_VALUE;
+        for (int v : plane) {
+            planeMin = Math.min(planeMin, v);
+            planeMax = Math.max(planeMax, v);
+        }
+        final int globalMin = planeMin - random.nextInt(planeMin + 1);
+        final int globalMax = planeMax + random.nextInt(65536 - planeMax);
+        final ChannelMinMax.Histogram histogram = ChannelMinMax.serverHistogramLayout(globalMin, globalMax);
+        if (histogram == null) return null;
+        final int bins = histogram.getBins();
+        final double binRange = (globalMax - globalMin + 1d) / bins;
+        for (int v : plane) {
+            final int bin = (int) ((v - globalMin) / binRange);
+            if (bin >= 0 && bin < bins) histogram.add(bin, 1);
+        }
+        return toWindow(ChannelMinMax.getWindows(new ChannelMinMax.Histogram[]{histogram}, clip));
+    }
+
+    private static int[] streamedWindow(int[] plane, double clip) {
+        final ChannelMinMax.Histogram histogram = new ChannelMinMax.Histogram(0, 1d, 65536);
+        for (int v : plane) histogram.add(v, 1);
+        return toWindow(ChannelMinMax.getWindows(new ChannelMinMax.Histogram[]{histogram}, clip));
+    }
+
+    private static int[] toWindow(MinMaxPerChan minMax) {
+        return new int[]{minMax.getMin()[0], minMax.getMax()[0]};
+    }
+
+}
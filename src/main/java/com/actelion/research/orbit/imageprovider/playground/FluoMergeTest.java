@@ -0,0 +1,218 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider.playground;
+
+import com.actelion.research.orbit.imageprovider.AutoscaleLut;
+import com.actelion.research.orbit.imageprovider.FluoChannelMerger;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.Random;
+
+/**
+ * Compares the FluoChannelMerger with the former per-pixel channel merge of OrbitImageBioformatsOmero.getPlane()
+ * on synthetic 8bit and 16bit channel tiles. Does not need an Omero server.
+ */
+public class FluoMergeTest {
+
+    public static void main(String[] args) {
+        final int w = 512;
+        final int h = 384;
+        final float[] hues = new float[]{0.66f, 0.33f, 0f, 0.15f};
+        final Random random = new Random(42);
+
+        int failed = 0;
+        failed += compare("8bit", createChannels(random, hues.length, w, h, DataBuffer.TYPE_BYTE, 1), hues, null, false, null, null);
+        failed += compare("8bit contributions", createChannels(random, hues.length, w, h, DataBuffer.TYPE_BYTE, 1), hues, new float[]{1f, 0.5f, 2.5f, 0f}, false, null, null);
+        failed += compare("8bit 2 bands", createChannels(random, hues.length, w, h, DataBuffer.TYPE_BYTE, 2), hues, new float[]{0.7f, 1f, 1f, 1.3f}, false, null, null);
+        int[] min = new int[]{100, 0, 2000, 500};
+        int[] max = new int[]{4000, 65535, 2100, 30000};
+        failed += compare("16bit", createChannels(random, hues.length, w, h, DataBuffer.TYPE_USHORT, 1), hues, null, true, min, max);
+        failed += compare("16bit contributions", createChannels(random, hues.length, w, h, DataBuffer.TYPE_USHORT, 1), hues, new float[]{1f, 0.2f, 3f, 1f}, true, min, max);
+        failed += compare("32bit", createChannels(random, hues.length, w, h, DataBuffer.TYPE_INT, 1), hues, null, true, min, max);
+
+        benchmark(createChannels(random, hues.length, 1024, 1024, DataBuffer.TYPE_USHORT, 1), hues, min, max);
+
+        System.out.println(failed == 0 ? "all merge results are pixel-identical" : failed + " comparisons FAILED");
+    }
+
+    private static int compare(String name, Raster[] channels, float[] hues, float[] contributions, boolean is16bit, int[] min, int[] max) {
+        BufferedImage legacy = mergeLegacy(channels, hues, contributions, is16bit, min, max);
+        BufferedImage merged = mergeNew(channels, hues, contributions, is16bit, min, max);
+        int diff = 0;
+        for (int y = 0; y < legacy.getHeight(); y++) {
+            for (int x = 0; x < legacy.getWidth(); x++) {
+                if (legacy.getRGB(x, y) != merged.getRGB(x, y)) diff++;
+            }
+        }
+        System.out.println(name + ": " + (diff == 0 ? "ok" : diff + " pixels differ"));
+        return diff == 0 ? 0 : 1;
+    }
+
+    private static void benchmark(Raster[] channels, float[] hues, int[] min, int[] max) {
+        for (int warmup = 0; warmup < 3; warmup++) {
+            mergeLegacy(channels, hues, null, true, min, max);
+            mergeNew(channels, hues, null, true, min, max);
+        }
+        final int runs = 10;
+        long startt = System.nanoTime();
+        for (int i = 0; i < runs; i++) mergeLegacy(channels, hues, null, true, min, max);
+        long legacyt = System.nanoTime() - startt;
+        startt = System.nanoTime();
+        for (int i = 0; i < runs; i++) mergeNew(channels, hues, null, true, min, max);
+        long newt = System.nanoTime() - startt;
+        System.out.println(String.format("merge of %d channels %dx%d: legacy %.1f ms, FluoChannelMerger %.1f ms",
+                channels.length, channels[0].getWidth(), channels[0].getHeight(), legacyt / 1e6 / runs, newt / 1e6 / runs));
+    }
+
+    private static BufferedImage mergeNew(Raster[] channels, float[] hueMap, float[] channelContributions, boolean is16bit, int[] min, int[] max) {
+        final int w = channels[0].getWidth();
+        final int h = channels[0].getHeight();
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        final int[] rgb = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+        final FluoChannelMerger merger = new FluoChannelMerger(w, h);
+        for (int c = 0; c < channels.length; c++) {
+            if (channelContributions != null && Math.abs(channelContributions[c]) <= 0.00001f) continue;
+            Raster bit = channels[c];
+            final int scaling = is16bit ? FluoChannelMerger.getScaling(getPixels(bit)) : FluoChannelMerger.SCALING_NONE;
+            final float contribution = channelContributions != null ? channelContributions[c] : Float.NaN;
+            final int minIntens = is16bit ? min[c] : 0;
+            final int maxIntens = is16bit ? max[c] : 256;
+            final byte[] lut = scaling != FluoChannelMerger.SCALING_NONE ? AutoscaleLut.getFluoLut("test", 0, c, false, scaling, minIntens, maxIntens) : null;
+            merger.mergeChannel(bit, rgb, hueMap[c], contribution, scaling, minIntens, maxIntens, lut);
+        }
+        return bi;
+    }
+
+    /**
+     * The channel merge loop (on rasters instead of channel images) as it was implemented in OrbitImageBioformatsOmero.getPlane() before the FluoChannelMerger.
+     */
+    private static BufferedImage mergeLegacy(Raster[] channels, float[] hueMap, float[] channelContributions, boolean is16bit, int[] min, int[] max) {
+        final int w = channels[0].getWidth();
+        final int h = channels[0].getHeight();
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        WritableRaster raster = bi.getRaster();
+        int col;
+        int[] pix = new int[3];
+        for (int c = 0; c < channels.length; c++) {
+            if (channelContributions != null && Math.abs(channelContributions[c]) <= 0.00001f) continue;
+            Raster bit = channels[c];
+            Object pixels = getPixels(bit);
+            int minIntens = 0;
+            int maxIntens = 256;
+            if (is16bit) {
+                minIntens = min[c];
+                maxIntens = max[c];
+            }
+            for (int iy = 0; iy < h; iy++) {
+                for (int ix = 0; ix < w; ix++) {
+                    int s = 0;
+                    for (int b = 0; b < bit.getSampleModel().getNumBands(); b++) {
+                        int intens = bit.getSample(ix, iy, b);
+                        if (is16bit) {
+                            intens = autoscaleLegacy(intens, pixels, minIntens, maxIntens);
+                        }
+                        s += intens;
+                    }
+                    if (channelContributions != null) {
+                        s *= channelContributions[c];
+                    }
+                    int intens = s <= 255 ? s : 255;
+                    pix = raster.getPixel(ix, iy, pix);
+
+                    col = Color.HSBtoRGB(hueMap[c], 1f, intens / 255f);
+                    pix[0] += (col >> 16) & 0xFF;    // red
+                    pix[1] += (col >> 8) & 0xFF;  // green
+                    pix[2] += col & 0xFF;    // blue
+                    if (pix[0] > 255) pix[0] = 255;
+                    if (pix[1] > 255) pix[1] = 255;
+                    if (pix[2] > 255) pix[2] = 255;
+
+                    raster.setPixel(ix, iy, pix);
+                }
+            }
+        }
+        return bi;
+    }
+
+    private static int autoscaleLegacy(int s, Object pixels, int min, int max) {
+        int out;
+        if (pixels instanceof byte[][]) return s;
+        else if (pixels instanceof short[][]) {
+
+            if (s < 0) s += 32767;
+            int diff = max - min;
+            float dist = (float) (s - min) / diff;
+
+            if (s >= max) out = 255;
+            else if (s <= min) out = 0;
+            else out = (int) (dist * 256);
+
+            return out;
+        } else if (pixels instanceof int[][]) {
+
+            if (s >= max) out = 255;
+            else if (s <= min) out = 0;
+            else {
+                int diff = max - min;
+                float dist = (s - min) / diff;
+                out = (int) (dist * 256);
+            }
+
+            return out;
+        }
+        return s;
+    }
+
+    /**
+     * Pixel container type like AWTImageTools.getPixels() returns it (only the type matters here).
+     */
+    private static Object getPixels(Raster raster) {
+        switch (raster.getTransferType()) {
+            case DataBuffer.TYPE_USHORT:
+            case DataBuffer.TYPE_SHORT:
+                return new short[1][1];
+            case DataBuffer.TYPE_INT:
+                return new int[1][1];
+            default:
+                return new byte[1][1];
+        }
+    }
+
+    private static Raster[] createChannels(Random random, int sizeC, int w, int h, int dataType, int numBands) {
+        Raster[] channels = new Raster[sizeC];
+        int[] bandOffsets = new int[numBands];
+        for (int b = 0; b < numBands; b++) bandOffsets[b] = b;
+        final int maxVal = dataType == DataBuffer.TYPE_BYTE ? 256 : 65536;
+        for (int c = 0; c < sizeC; c++) {
+            WritableRaster raster = Raster.createWritableRaster(new PixelInterleavedSampleModel(dataType, w, h, numBands, w * numBands, bandOffsets), null);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    for (int b = 0; b < numBands; b++) {
+                        raster.setSample(x, y, b, random.nextInt(maxVal));
+                    }
+                }
+            }
+            channels[c] = raster;
+        }
+        return channels;
+    }
+
+}
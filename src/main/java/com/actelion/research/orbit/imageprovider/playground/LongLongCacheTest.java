@@ -0,0 +1,213 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider.playground;
+
+import com.actelion.research.orbit.imageprovider.LongLongCache;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Consistency and stress checks of the LongLongCache (group maps of ImageProviderOmero) against a HashMap model:
+ * random put/get/remove, removeValue() on densely filled tables (entries shifted by backward shift deletion), eviction at maxSize,
+ * expiry and concurrent readers during writes. Does not need an Omero server.
+ */
+public class LongLongCacheTest {
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        failed += check("random operations", randomOperations(new Random(42)));
+        failed += check("removeValue with shifted chains", removeValueChains(new Random(7)));
+        failed += check("eviction at maxSize", eviction());
+        failed += check("expiry", expiry());
+        failed += check("concurrent put/get/remove", concurrent());
+        System.out.println(failed == 0 ? "all cache checks passed" : failed + " checks FAILED");
+    }
+
+    private static int check(String name, String error) {
+        System.out.println(name + ": " + (error == null ? "ok" : error));
+        return error == null ? 0 : 1;
+    }
+
+    /**
+     * @return null if the cache matches the model, otherwise the first difference
+     */
+    private static String compare(LongLongCache cache, Map<Long, Long> model, long keyRange) {
+        if (cache.size() != model.size()) return "size " + cache.size() + " but model size " + model.size();
+        for (long k = 0; k < keyRange; k++) {
+            final long expected = model.getOrDefault(k, -1L);
+            final long value = cache.get(k, -1);
+            if (value != expected) return "key " + k + ": " + value + " but expected " + expected;
+        }
+        return null;
+    }
+
+    private static String randomOperations(Random random) {
+        final int keyRange = 50000;
+        final LongLongCache cache = new LongLongCache(keyRange, 0, TimeUnit.SECONDS);   // no eviction
+        final Map<Long, Long> model = new HashMap<>();
+        for (int i = 0; i < 2000000; i++) {
+            final long key = random.nextInt(keyRange);
+            final int op = random.nextInt(10);
+            if (op < 5) {
+                final long value = random.nextInt(100);
+                cache.put(key, value);
+                model.put(key, value);
+            } else if (op < 7) {
+                if (cache.remove(key) != (model.remove(key) != null)) return "remove(" + key + ") differs at operation " + i;
+            } else {
+                final long value = cache.get(key, -1);
+                if (value != model.getOrDefault(key, -1L)) return "get(" + key + ") = " + value + " at operation " + i;
+            }
+        }
+        return compare(cache, model, keyRange);
+    }
+
+    /**
+     * Tables filled up to the resize threshold (long probe chains), then all entries of some values are removed.
+     */
+    private static String removeValueChains(Random random) {
+        for (int round = 0; round < 2000; round++) {
+            final int keyRange = 16 + random.nextInt(2000);
+            final LongLongCache cache = new LongLongCache(keyRange, 0, TimeUnit.SECONDS);
+            final Map<Long, Long> model = new HashMap<>();
+            final int values = 1 + random.nextInt(8);
+            for (int i = 0; i < keyRange; i++) {
+                final long key = random.nextInt(keyRange * 4) % keyRange;
+                final long value = random.nextInt(values);
+                cache.put(key, value);
+                model.put(key, value);
+            }
+            for (int n = 0; n < 3; n++) {
+                final long value = random.nextInt(values);
+                final int removed = cache.removeValue(value);
+                int expected = 0;
+                for (Iterator<Long> it = model.values().iterator(); it.hasNext(); ) {
+                    if (it.next() == value) {
+                        it.remove();
+                        expected++;
+                    }
+                }
+                if (removed != expected) return "round " + round + ": removeValue(" + value + ") removed " + removed + " but expected " + expected;
+                final String error = compare(cache, model, keyRange);
+                if (error != null) return "round " + round + ": " + error;
+            }
+        }
+        return null;
+    }
+
+    private static String eviction() {
+        final int maxSize = 1000;
+        final LongLongCache cache = new LongLongCache(maxSize, 0, TimeUnit.SECONDS);
+        for (long k = 0; k < maxSize; k++) cache.put(k, k);
+        for (long k = maxSize; k < 3 * maxSize; k++) {
+            cache.put(k, k);
+            if (cache.size() > maxSize) return "size " + cache.size() + " after put(" + k + ")";
+            if (cache.get(k, -1) != k) return "new key " + k + " evicted immediately";
+            if (k % 100 == 0) {
+                for (long hot = 0; hot < 100; hot++) cache.get(hot, -1);   // hot keys are used all the time
+            }
+        }
+        int hotKept = 0;
+        for (long k = 0; k < 100; k++) {
+            final long value = cache.get(k, -1);
+            if (value != -1 && value != k) return "key " + k + " has value " + value;
+            if (value == k) hotKept++;
+        }
+        if (hotKept < 90) return "only " + hotKept + " of 100 hot keys kept (approximated LRU)";
+        cache.setMaxSize(100);
+        if (cache.size() > 100) return "size " + cache.size() + " after setMaxSize(100)";
+        System.out.println("  hot keys kept: " + hotKept + "/100, evictions: " + cache.getEvictions() + ", capacity after shrinking: " + cache.capacity());
+        return null;
+    }
+
+    private static String expiry() throws InterruptedException {
+        final LongLongCache cache = new LongLongCache(100, 1, TimeUnit.SECONDS);
+        cache.put(1, 2);
+        if (cache.get(1, -1) != 2) return "value missing before expiry";
+        Thread.sleep(2100);
+        if (cache.get(1, -1) != -1) return "value returned after expiry";
+        cache.put(1, 3);
+        if (cache.get(1, -1) != 3) return "value missing after put of an expired key";
+        cache.setTimeToLive(0, TimeUnit.SECONDS);
+        Thread.sleep(2100);
+        if (cache.get(1, -1) != 3) return "value expired with time to live 0";
+        return null;
+    }
+
+    /**
+     * Readers check that they only see absent keys or the value of the key (value = 3 * key) while two writers put and remove
+     * (disjoint key ranges, each with its own model), finally the cache is compared with the models.
+     */
+    private static String concurrent() throws Exception {
+        final int keyRange = 100000;
+        final LongLongCache cache = new LongLongCache(2 * keyRange, 0, TimeUnit.SECONDS);
+        for (long k = 0; k < keyRange; k += 2) cache.put(k, 3 * k);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<String>> readers = new ArrayList<>();
+        final List<Future<Map<Long, Long>>> writers = new ArrayList<>();
+        try {
+            for (int w = 0; w < 2; w++) {
+                final int writer = w;
+                writers.add(executor.submit(() -> {
+                    final Random random = new Random(writer);
+                    final Map<Long, Long> model = new HashMap<>();
+                    if (writer == 0) {   // even keys: writer 0 (initially filled), odd keys: writer 1
+                        for (long k = 0; k < keyRange; k += 2) model.put(k, 3 * k);
+                    }
+                    for (int i = 0; i < 1000000; i++) {
+                        final long key = 2L * random.nextInt(keyRange / 2) + writer;
+                        if (random.nextBoolean()) {
+                            cache.put(key, 3 * key);
+                            model.put(key, 3 * key);
+                        } else {
+                            cache.remove(key);
+                            model.remove(key);
+                        }
+                    }
+                    return model;
+                }));
+            }
+            for (int r = 0; r < 6; r++) {
+                final int reader = r;
+                readers.add(executor.submit(() -> {
+                    final Random random = new Random(100 + reader);
+                    for (int i = 0; i < 3000000; i++) {
+                        final long key = random.nextInt(keyRange);
+                        final long value = cache.get(key, -1);
+                        if (value != -1 && value != 3 * key) return "get(" + key + ") = " + value;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<String> reader : readers) {
+                if (reader.get() != null) return reader.get();
+            }
+            final Map<Long, Long> model = new HashMap<>();
+            for (Future<Map<Long, Long>> writer : writers) model.putAll(writer.get());
+            final String error = compare(cache, model, keyRange);
+            if (error == null) System.out.println("  " + cache);
+            return error;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider.playground;
+
+import com.actelion.research.orbit.imageprovider.PackedRGB;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Compares the former tile raster construction of OrbitImageBioformatsOmero.getTileData() (plane of region size, drawImage() into a
+ * padded image at borders, getData() copy, translated child) with the direct construction (plane rendered into a tile sized
+ * TYPE_INT_RGB image, translated writable child of its raster).
+ * Checks that both produce identical pixels and prints time and allocated bytes per tile. Does not need an Omero server.
+ */
+public class TileRasterBenchmark {
+
+    private static final int TILE = 512;
+
+    public static void main(String[] args) {
+        final Random random = new Random(42);
+        final BufferedImage grayFull = createGray(random, TILE, TILE);
+        final BufferedImage grayEdge = createGray(random, 317, 129);
+        final BufferedImage rgbFull = createRGB(random, TILE, TILE);
+        final BufferedImage rgbEdge = createRGB(random, 200, TILE);
+
+        int failed = 0;
+        failed += run("gray full tile", grayFull);
+        failed += run("gray edge tile", grayEdge);
+        failed += run("rgb full tile", rgbFull);
+        failed += run("rgb edge tile", rgbEdge);
+        System.out.println(failed == 0 ? "all tile rasters are pixel-identical" : failed + " comparisons FAILED");
+    }
+
+    private static int run(String name, final BufferedImage decoded) {
+        final int tileX = 3, tileY = 5;
+        Raster legacy = legacyTile(decoded, tileX, tileY);
+        Raster direct = directTile(decoded, tileX, tileY);
+        int diff = 0;
+        if (!legacy.getBounds().equals(direct.getBounds())) diff++;
+        else {
+            int[] a = new int[3], b = new int[3];
+            for (int y = legacy.getMinY(); y < legacy.getMinY() + legacy.getHeight(); y++) {
+                for (int x = legacy.getMinX(); x < legacy.getMinX() + legacy.getWidth(); x++) {
+                    if (!java.util.Arrays.equals(legacy.getPixel(x, y, a), direct.getPixel(x, y, b))) diff++;
+                }
+            }
+        }
+        Measurement legacyM = measure(() -> legacyTile(decoded, tileX, tileY));
+        Measurement directM = measure(() -> directTile(decoded, tileX, tileY));
+        System.out.println(String.format("%s: %s, legacy %.3f ms / %d KB, direct %.3f ms / %d KB per tile", name,
+                diff == 0 ? "identical" : diff + " pixels differ", legacyM.ms, legacyM.bytes / 1024, directM.ms, directM.bytes / 1024));
+        return diff == 0 ? 0 : 1;
+    }
+
+    /**
+     * getPlane() and getTileData() as they were implemented before.
+     */
+    private static Raster legacyTile(BufferedImage decoded, int tileX, int tileY) {
+        BufferedImage img = decoded;
+        if (img.getType() != BufferedImage.TYPE_INT_RGB) {
+            BufferedImage biRGB = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+            biRGB.getGraphics().drawImage(img, 0, 0, null);
+            img = biRGB;
+        }
+        if (img.getWidth() != TILE || img.getHeight() != TILE) {
+            BufferedImage bi = new BufferedImage(TILE, TILE, img.getType());
+            bi.getGraphics().drawImage(img, 0, 0, null);
+            img = bi;
+        }
+        return img.getData().createTranslatedChild(tileX * TILE, tileY * TILE);
+    }
+
+    /**
+     * getPlane() and getTileData() as they are implemented now.
+     */
+    private static Raster directTile(BufferedImage decoded, int tileX, int tileY) {
+        BufferedImage img;
+        if (decoded.getType() == BufferedImage.TYPE_INT_RGB && decoded.getWidth() == TILE && decoded.getHeight() == TILE) {
+            img = decoded;
+        } else {
+            img = PackedRGB.createImage(TILE, TILE);
+            PackedRGB.draw(decoded, img);
+        }
+        return img.getRaster().createWritableTranslatedChild(tileX * TILE, tileY * TILE);
+    }
+
+    private static Measurement measure(Supplier<Raster> tile) {
+        for (int i = 0; i < 200; i++) tile.get();   // warmup
+        final int runs = 500;
+        long bytes = allocatedBytes();
+        long startt = System.nanoTime();
+        for (int i = 0; i < runs; i++) tile.get();
+        long t = System.nanoTime() - startt;
+        bytes = allocatedBytes() - bytes;
+        return new Measurement(t / 1e6 / runs, bytes < 0 ? -1 : bytes / runs);
+    }
+
+    /**
+     * Bytes allocated by the current thread, -1 if not supported by the JVM.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * 8bit gray image with a linear gray color space, like Bio-Formats AWTImageTools creates it.
+     */
+    private static BufferedImage createGray(Random random, int w, int h) {
+        byte[] data = new byte[w * h];
+        random.nextBytes(data);
+        ColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        SampleModel sm = new ComponentSampleModel(DataBuffer.TYPE_BYTE, w, h, 1, w, new int[]{0});
+        WritableRaster raster = Raster.createWritableRaster(sm, new DataBufferByte(data, data.length), null);
+        return new BufferedImage(cm, raster, false, null);
+    }
+
+    private static BufferedImage createRGB(Random random, int w, int h) {
+        BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) bi.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) data[i] = random.nextInt() & 0xFFFFFF;
+        return bi;
+    }
+
+    private static final class Measurement {
+        final double ms;
+        final long bytes;
+
+        Measurement(double ms, long bytes) {
+            this.ms = ms;
+            this.bytes = bytes;
+        }
+    }
+
+}
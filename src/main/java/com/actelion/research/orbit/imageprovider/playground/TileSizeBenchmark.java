@@ -0,0 +1,117 @@
+/*
+ *     Orbit, a versatile image analysis software for biological image-based quantification.
+ *     Copyright (C) 2009 - 2017  Idorsia Pharmaceuticals Ltd., Hegenheimermattweg 91, CH-4123 Allschwil, Switzerland.
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.actelion.research.orbit.imageprovider.playground;
+
+import com.actelion.research.orbit.imageprovider.ImageProviderOmero;
+import com.actelion.research.orbit.imageprovider.OmeroReaderOrbit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures tiles/s and megapixels/s of raw tile reads for several client tile sizes against one image (level 0, first plane),
+ * to choose the TileSizeMultiplier. Tiles straddling server tiles make the server decode several native tiles per request.
+ * <p>
+ * Usage: TileSizeBenchmark user password imageId [areaSize] [tileSize ...]<br>
+ * Without tile sizes the native tile size and its multiples 2x and 4x are measured, plus 512. The disk tile cache is not used.
+ * </p>
+ */
+public class TileSizeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: TileSizeBenchmark user password imageId [areaSize] [tileSize ...]");
+            return;
+        }
+        final long imageId = Long.parseLong(args[2]);
+        final int areaSize = args.length > 3 ? Integer.parseInt(args[3]) : 4096;
+        OmeroReaderOrbit.setDiskTileCache(null);
+
+        try (ImageProviderOmero ip = new ImageProviderOmero()) {
+            if (!ip.authenticateUser(args[0], args[1])) {
+                System.out.println("login failed");
+                return;
+            }
+            final long group = ip.getImageGroup(imageId);
+            final ImageProviderOmero.GatewayAndCtx gatewayAndCtx = ip.new GatewayAndCtx();
+            OmeroReaderOrbit reader = openReader(gatewayAndCtx, group, imageId);
+            try {
+                final int nativeW = reader.getNativeTileWidth();
+                final int nativeH = reader.getNativeTileHeight();
+                System.out.println("image " + imageId + ": " + reader.getSizeX() + " x " + reader.getSizeY() + ", native tile size " + nativeW + " x " + nativeH);
+
+                List<Integer> sizes = new ArrayList<>();
+                for (int i = 4; i < args.length; i++) sizes.add(Integer.parseInt(args[i]));
+                if (sizes.isEmpty()) {
+                    if (nativeW > 0) {
+                        sizes.add(nativeW);
+                        sizes.add(nativeW * 2);
+                        sizes.add(nativeW * 4);
+                    }
+                    if (!sizes.contains(512)) sizes.add(512);
+                }
+
+                // area in the center of the image (the same for all tile sizes)
+                final int w = Math.min(areaSize, reader.getSizeX());
+                final int h = Math.min(areaSize, reader.getSizeY());
+                final int x0 = (reader.getSizeX() - w) / 2 / Math.max(1, nativeW) * Math.max(1, nativeW);
+                final int y0 = (reader.getSizeY() - h) / 2 / Math.max(1, nativeH) * Math.max(1, nativeH);
+                read(reader, x0, y0, Math.min(w, 512), Math.min(h, 512), 512);   // warm up
+
+                for (int size : sizes) {
+                    final long start = System.nanoTime();
+                    final int tiles = read(reader, x0, y0, w, h, size);
+                    final double seconds = (System.nanoTime() - start) / 1e9;
+                    System.out.println(String.format("tile size %5d: %4d tiles in %6.2f s, %7.1f tiles/s, %6.1f MPixel/s%s", size, tiles, seconds,
+                            tiles / seconds, (double) w * h / seconds / 1e6, nativeW > 0 && size % nativeW == 0 ? "" : " (not aligned)"));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static OmeroReaderOrbit openReader(ImageProviderOmero.GatewayAndCtx gatewayAndCtx, long group, long imageId) throws Exception {
+        OmeroReaderOrbit reader = new OmeroReaderOrbit();
+        reader.setGroupId(group);
+        reader.setGatewayAndCtx(gatewayAndCtx);
+        reader.setFlattenedResolutions(false);
+        reader.setResolution(0);
+        reader.setId("omeroorbit:iid=" + imageId);
+        return reader;
+    }
+
+    /**
+     * Reads the area with tiles of the given size (aligned to x0/y0).
+     *
+     * @return number of tiles read
+     */
+    private static int read(OmeroReaderOrbit reader, int x0, int y0, int w, int h, int tileSize) throws Exception {
+        int tiles = 0;
+        for (int y = y0; y < y0 + h; y += tileSize) {
+            for (int x = x0; x < x0 + w; x += tileSize) {
+                reader.openBytes(0, x, y, Math.min(tileSize, x0 + w - x), Math.min(tileSize, y0 + h - y));
+                tiles++;
+            }
+        }
+        return tiles;
+    }
+
+}